@@ -0,0 +1,227 @@
+package ru.mipt.java2016.homework.base.task1;
+
+import java.util.Arrays;
+
+/**
+ * Выражение, один раз разобранное в компактный постфиксный байткод.
+ *
+ * Грамматика та же, что описана в {@link Calculator}: десятичные числа, бинарные +, -, *, /, унарный минус
+ * и скобки, между лексемами любые space-символы. Код — массив опкодов, константы лежат отдельным массивом
+ * в порядке их появления в коде, так что PUSH просто берёт следующую константу. Глубина стека считается
+ * при компиляции, а сам стек берётся из {@link ThreadLocal}, поэтому {@link #evaluate()} ничего не аллоцирует.
+ */
+public final class CompiledExpression {
+    private static final byte PUSH = 0;
+    private static final byte ADD = 1;
+    private static final byte SUBTRACT = 2;
+    private static final byte MULTIPLY = 3;
+    private static final byte DIVIDE = 4;
+    private static final byte NEGATE = 5;
+
+    private static final ThreadLocal<double[]> STACK = ThreadLocal.withInitial(() -> new double[16]);
+
+    private final byte[] code;
+    private final double[] constants;
+    private final int maxStackDepth;
+
+    private CompiledExpression(byte[] code, double[] constants, int maxStackDepth) {
+        this.code = code;
+        this.constants = constants;
+        this.maxStackDepth = maxStackDepth;
+    }
+
+    /**
+     * @param expression строка с арифметическим выражением
+     * @return           скомпилированное выражение, которое можно вычислять сколько угодно раз
+     * @throws ParsingException
+     *                   не удалось распознать выражение
+     */
+    public static CompiledExpression compile(String expression) throws ParsingException {
+        if (expression == null) {
+            throw new ParsingException("Null expression");
+        }
+        return new Compiler(expression).compile();
+    }
+
+    /**
+     * Вычисляет выражение. Можно вызывать из нескольких потоков одновременно.
+     */
+    public double evaluate() {
+        double[] stack = STACK.get();
+        if (stack.length < maxStackDepth) {
+            stack = new double[maxStackDepth];
+            STACK.set(stack);
+        }
+        int top = -1;
+        int nextConstant = 0;
+        for (byte operation : code) {
+            switch (operation) {
+                case PUSH:
+                    stack[++top] = constants[nextConstant++];
+                    break;
+                case ADD:
+                    stack[top - 1] += stack[top];
+                    --top;
+                    break;
+                case SUBTRACT:
+                    stack[top - 1] -= stack[top];
+                    --top;
+                    break;
+                case MULTIPLY:
+                    stack[top - 1] *= stack[top];
+                    --top;
+                    break;
+                case DIVIDE:
+                    stack[top - 1] /= stack[top];
+                    --top;
+                    break;
+                case NEGATE:
+                    stack[top] = -stack[top];
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + operation);
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Рекурсивный спуск:
+     * expression = term (('+' | '-') term)*,
+     * term = unary (('*' | '/') unary)*,
+     * unary = '-' unary | number | '(' expression ')'.
+     */
+    private static final class Compiler {
+        private final String expression;
+        private int position;
+
+        private byte[] code = new byte[16];
+        private int codeLength;
+        private double[] constants = new double[8];
+        private int constantCount;
+        private int stackDepth;
+        private int maxStackDepth;
+
+        Compiler(String expression) {
+            this.expression = expression;
+        }
+
+        CompiledExpression compile() throws ParsingException {
+            parseExpression();
+            skipSpaces();
+            if (position != expression.length()) {
+                throw error("Unexpected symbol");
+            }
+            return new CompiledExpression(Arrays.copyOf(code, codeLength),
+                    Arrays.copyOf(constants, constantCount), maxStackDepth);
+        }
+
+        private void parseExpression() throws ParsingException {
+            parseTerm();
+            while (true) {
+                char operator = peek();
+                if (operator != '+' && operator != '-') {
+                    return;
+                }
+                ++position;
+                parseTerm();
+                emit(operator == '+' ? ADD : SUBTRACT);
+            }
+        }
+
+        private void parseTerm() throws ParsingException {
+            parseUnary();
+            while (true) {
+                char operator = peek();
+                if (operator != '*' && operator != '/') {
+                    return;
+                }
+                ++position;
+                parseUnary();
+                emit(operator == '*' ? MULTIPLY : DIVIDE);
+            }
+        }
+
+        private void parseUnary() throws ParsingException {
+            char symbol = peek();
+            if (symbol == '-') {
+                ++position;
+                parseUnary();
+                emit(NEGATE);
+            } else if (symbol == '(') {
+                ++position;
+                parseExpression();
+                if (peek() != ')') {
+                    throw error("Expected ')'");
+                }
+                ++position;
+            } else if (isDigit(symbol)) {
+                emitConstant(parseNumber());
+            } else {
+                throw error("Expected number, '-' or '('");
+            }
+        }
+
+        private double parseNumber() throws ParsingException {
+            int start = position;
+            skipDigits();
+            if (position < expression.length() && expression.charAt(position) == '.') {
+                ++position;
+                int fractionStart = position;
+                skipDigits();
+                if (position == fractionStart) {
+                    throw error("Expected digits after '.'");
+                }
+            }
+            return Double.parseDouble(expression.substring(start, position));
+        }
+
+        private void skipDigits() {
+            while (position < expression.length() && isDigit(expression.charAt(position))) {
+                ++position;
+            }
+        }
+
+        private static boolean isDigit(char symbol) {
+            return symbol >= '0' && symbol <= '9';
+        }
+
+        /**
+         * @return следующий непробельный символ, не сдвигаясь с него, или 0 в конце строки
+         */
+        private char peek() {
+            skipSpaces();
+            return position < expression.length() ? expression.charAt(position) : 0;
+        }
+
+        private void skipSpaces() {
+            while (position < expression.length() && Character.isWhitespace(expression.charAt(position))) {
+                ++position;
+            }
+        }
+
+        private void emitConstant(double value) {
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+            }
+            constants[constantCount++] = value;
+            emit(PUSH);
+        }
+
+        private void emit(byte operation) {
+            if (codeLength == code.length) {
+                code = Arrays.copyOf(code, codeLength * 2);
+            }
+            code[codeLength++] = operation;
+            if (operation == PUSH) {
+                maxStackDepth = Math.max(maxStackDepth, ++stackDepth);
+            } else if (operation != NEGATE) {
+                --stackDepth;
+            }
+        }
+
+        private ParsingException error(String message) {
+            return new ParsingException(message + " at position " + position + " in '" + expression + "'");
+        }
+    }
+}
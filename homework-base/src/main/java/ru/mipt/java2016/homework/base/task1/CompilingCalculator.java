@@ -0,0 +1,76 @@
+package ru.mipt.java2016.homework.base.task1;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Калькулятор, который разбирает каждое выражение один раз: скомпилированные {@link CompiledExpression}
+ * хранятся в LRU-кэше по тексту выражения, и повторный вызов с той же строкой — это поиск в кэше
+ * и вычисление байткода без разбора и без аллокаций.
+ *
+ * Если выражение не удалось скомпилировать, оно передаётся в fallback-калькулятор (если он задан),
+ * так что поверх калькулятора с расширенной грамматикой декоратор ничего не ломает. Такие выражения
+ * не кэшируются.
+ */
+public class CompilingCalculator implements Calculator {
+    private final Calculator fallback;
+    private final Map<String, CompiledExpression> cache;
+
+    /**
+     * @param maxCachedExpressions сколько скомпилированных выражений держать в памяти
+     */
+    public CompilingCalculator(int maxCachedExpressions) {
+        this(null, maxCachedExpressions);
+    }
+
+    /**
+     * @param fallback             калькулятор для выражений, которые не удалось скомпилировать; может быть null
+     * @param maxCachedExpressions сколько скомпилированных выражений держать в памяти
+     */
+    public CompilingCalculator(Calculator fallback, int maxCachedExpressions) {
+        if (maxCachedExpressions <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxCachedExpressions);
+        }
+        this.fallback = fallback;
+        cache = new LinkedHashMap<String, CompiledExpression>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+                return size() > maxCachedExpressions;
+            }
+        };
+    }
+
+    @Override
+    public double calculate(String expression) throws ParsingException {
+        if (expression == null) {
+            throw new ParsingException("Null expression");
+        }
+        CompiledExpression compiled;
+        synchronized (cache) {
+            compiled = cache.get(expression);
+        }
+        if (compiled == null) {
+            try {
+                compiled = CompiledExpression.compile(expression);
+            } catch (ParsingException e) {
+                if (fallback == null) {
+                    throw e;
+                }
+                return fallback.calculate(expression);
+            }
+            synchronized (cache) {
+                cache.put(expression, compiled);
+            }
+        }
+        return compiled.evaluate();
+    }
+
+    /**
+     * @return сколько выражений сейчас лежит в кэше
+     */
+    public int cachedExpressions() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
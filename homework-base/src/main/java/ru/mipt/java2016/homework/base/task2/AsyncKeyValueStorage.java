@@ -0,0 +1,249 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Асинхронная обёртка над любым {@link KeyValueStorage}: каждая операция выполняется на ограниченном пуле
+ * потоков ввода-вывода и сразу возвращает {@link CompletableFuture}, так что поток, обрабатывающий запрос,
+ * не ждёт диска.
+ *
+ * Операции с одним и тем же ключом выполняются строго в порядке вызова: следующая операция по ключу
+ * запускается только после завершения предыдущей (даже если та завершилась ошибкой), поэтому чтение
+ * видит все записи, вызванные до него. Операции с разными ключами идут параллельно, так что обёрнутое
+ * хранилище должно быть потокобезопасным.
+ *
+ * Число незавершённых операций ограничено: когда очередь заполнена, вызывающий поток блокируется,
+ * пока какая-нибудь операция не завершится; это касается и {@link #size()} с {@link #flushAsync()}.
+ * {@link #size()}, {@link #flushAsync()} и {@link #closeAsync()} выполняются после всех операций,
+ * вызванных до них. Повторное закрытие возвращает то же future, что и первое.
+ */
+public class AsyncKeyValueStorage<K, V> implements Closeable {
+    private final KeyValueStorage<K, V> storage;
+    private final ExecutorService executor;
+    private final Semaphore pendingPermits;
+
+    /**
+     * Последняя операция по каждому ключу, у которого есть незавершённые операции.
+     */
+    private final Map<K, CompletableFuture<?>> tails = new HashMap<>();
+    private final Set<CompletableFuture<?>> inFlight = new HashSet<>();
+    private CompletableFuture<Void> closeFuture;
+
+    /**
+     * @param storage    хранилище, в которое уходят операции; должно быть потокобезопасным
+     * @param threads    сколько потоков ввода-вывода использовать
+     * @param maxPending сколько операций может ждать выполнения, прежде чем вызывающий поток начнёт блокироваться
+     */
+    public AsyncKeyValueStorage(KeyValueStorage<K, V> storage, int threads, int maxPending) {
+        if (threads <= 0 || maxPending <= 0) {
+            throw new IllegalArgumentException("Thread count and queue size must be positive");
+        }
+        this.storage = storage;
+        this.pendingPermits = new Semaphore(maxPending);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "storage-io-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public CompletableFuture<V> read(K key) {
+        return submit(key, () -> storage.read(key));
+    }
+
+    public CompletableFuture<Boolean> exists(K key) {
+        return submit(key, () -> storage.exists(key));
+    }
+
+    public CompletableFuture<Void> write(K key, V value) {
+        return submit(key, () -> {
+            storage.write(key, value);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> delete(K key) {
+        return submit(key, () -> {
+            storage.delete(key);
+            return null;
+        });
+    }
+
+    /**
+     * Читает ключи одной операцией {@link KeyValueStorage#readAll(Collection)} после всех ранее вызванных
+     * операций с этими ключами.
+     */
+    public CompletableFuture<Map<K, V>> readAll(Collection<? extends K> keys) {
+        List<K> copy = new ArrayList<>(keys);
+        return submit(copy, () -> storage.readAll(copy));
+    }
+
+    /**
+     * Записывает пары одной операцией {@link KeyValueStorage#writeAll(Map)}; по отношению к каждому ключу
+     * запись упорядочена так же, как {@link #write(Object, Object)}.
+     */
+    public CompletableFuture<Void> writeAll(Map<? extends K, ? extends V> entries) {
+        Map<K, V> copy = new HashMap<>(entries);
+        return submit(copy.keySet(), () -> {
+            storage.writeAll(copy);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Integer> size() {
+        return submitAfterAll(storage::size);
+    }
+
+    /**
+     * Вызывает {@link KeyValueStorage#flush()} после завершения всех операций, вызванных до него.
+     */
+    public CompletableFuture<Void> flushAsync() {
+        return submitAfterAll(() -> {
+            storage.flush();
+            return null;
+        });
+    }
+
+    /**
+     * Запрещает новые операции, дожидается вызванных и закрывает хранилище, после чего останавливает пул.
+     * Очередь не занимает, так что не блокируется, даже если она заполнена.
+     */
+    public CompletableFuture<Void> closeAsync() {
+        synchronized (tails) {
+            if (closeFuture == null) {
+                closeFuture = afterAll(() -> {
+                    try {
+                        storage.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                });
+                closeFuture.whenComplete((ignored, error) -> executor.shutdown());
+            }
+            return closeFuture;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            closeAsync().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing storage", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Failed to close storage", cause);
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(K key, Supplier<T> operation) {
+        return submit(Collections.singleton(key), operation);
+    }
+
+    private <T> CompletableFuture<T> submit(Collection<? extends K> keys, Supplier<T> operation) {
+        acquirePermit();
+        CompletableFuture<T> result;
+        synchronized (tails) {
+            checkNotClosed();
+            CompletableFuture<?>[] previous = keys.stream()
+                    .map(tails::get)
+                    .filter(tail -> tail != null)
+                    .distinct()
+                    .toArray(CompletableFuture<?>[]::new);
+            result = after(previous).thenApplyAsync(ignored -> operation.get(), executor);
+            for (K key : keys) {
+                tails.put(key, result);
+            }
+            inFlight.add(result);
+        }
+        result.whenComplete((value, error) -> {
+            synchronized (tails) {
+                for (K key : keys) {
+                    tails.remove(key, result);
+                }
+                inFlight.remove(result);
+            }
+            pendingPermits.release();
+        });
+        return result;
+    }
+
+    private <T> CompletableFuture<T> submitAfterAll(Supplier<T> operation) {
+        acquirePermit();
+        CompletableFuture<T> result;
+        synchronized (tails) {
+            checkNotClosed();
+            result = afterAll(operation);
+        }
+        result.whenComplete((value, error) -> pendingPermits.release());
+        return result;
+    }
+
+    /**
+     * Вызывается под блокировкой tails.
+     */
+    private <T> CompletableFuture<T> afterAll(Supplier<T> operation) {
+        CompletableFuture<?>[] previous = inFlight.toArray(new CompletableFuture<?>[inFlight.size()]);
+        CompletableFuture<T> result = after(previous).thenApplyAsync(ignored -> operation.get(), executor);
+        inFlight.add(result);
+        result.whenComplete((value, error) -> {
+            synchronized (tails) {
+                inFlight.remove(result);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Вызывается под блокировкой tails; отпускает место в очереди, которое успел занять вызывающий поток.
+     */
+    private void checkNotClosed() {
+        if (closeFuture != null) {
+            pendingPermits.release();
+            throw new IllegalStateException("Storage is closed");
+        }
+    }
+
+    /**
+     * @return future, которое завершается успешно, когда завершены все previous, как бы они ни завершились
+     */
+    private static CompletableFuture<Void> after(CompletableFuture<?>[] previous) {
+        if (previous.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.allOf(previous).handle((ignored, error) -> null);
+    }
+
+    private void acquirePermit() {
+        try {
+            pendingPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Общие процедуры кодирования для стратегий сериализации: varint-числа и строки без промежуточных массивов.
+ *
+ * Строка записывается как varint-заголовок (длина в байтах, сдвинутая на 1, младший бит — флаг Latin-1)
+ * и тело. Если все символы строки меньше 256, тело — по байту на символ, иначе UTF-8, в котором
+ * непарные суррогаты кодируются тремя байтами как обычные символы, так что любая строка читается обратно
+ * без изменений. В отличие от writeUTF длина строки не ограничена 64 КБ.
+ *
+ * Запись в {@link DataOutput} и каналы идёт через буфер потока ({@link #scratch(int)}), чтение из
+ * {@link DataInput} — через такой же буфер, поэтому на вызов аллоцируется только сама строка.
+ */
+public final class BinaryCodec {
+    private static final int LATIN1_FLAG = 1;
+    private static final int MAX_VARINT_SIZE = 5;
+    private static final int MAX_VARLONG_SIZE = 10;
+    private static final int INITIAL_SCRATCH_SIZE = 4 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BYTE_SCRATCH =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_SCRATCH_SIZE));
+    private static final ThreadLocal<char[]> CHAR_SCRATCH =
+            ThreadLocal.withInitial(() -> new char[INITIAL_SCRATCH_SIZE]);
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Возвращает очищенный буфер текущего потока ёмкостью не меньше capacity.
+     * Буфер переиспользуется следующим вызовом любого метода этого класса в том же потоке.
+     */
+    public static ByteBuffer scratch(int capacity) {
+        ByteBuffer buffer = BYTE_SCRATCH.get();
+        if (buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(Math.max(capacity, 2 * buffer.capacity()));
+            BYTE_SCRATCH.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Размер varint-записи числа, которое считается беззнаковым.
+     */
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    public static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    public static void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static int readVarInt(ByteBuffer buffer) {
+        int result = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            byte current = buffer.get();
+            result |= (current & 0x7F) << shift;
+            if (current >= 0) {
+                return result;
+            }
+        }
+        throw new MalformedDataException("Varint is too long");
+    }
+
+    public static void writeVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static long readVarLong(ByteBuffer buffer) {
+        long result = 0;
+        for (int shift = 0; shift < 7 * MAX_VARLONG_SIZE; shift += 7) {
+            byte current = buffer.get();
+            result |= (long) (current & 0x7F) << shift;
+            if (current >= 0) {
+                return result;
+            }
+        }
+        throw new MalformedDataException("Varlong is too long");
+    }
+
+    public static void writeVarInt(DataOutput output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput input) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            byte current = input.readByte();
+            result |= (current & 0x7F) << shift;
+            if (current >= 0) {
+                return result;
+            }
+        }
+        throw new MalformedDataException("Varint is too long");
+    }
+
+    /**
+     * Сколько байт займёт строка вместе с заголовком.
+     */
+    public static int encodedSize(String string) {
+        int bodySize = isLatin1(string) ? string.length() : utf8Size(string);
+        return varIntSize(bodySize << 1) + bodySize;
+    }
+
+    public static void writeString(ByteBuffer buffer, String string) {
+        int length = string.length();
+        if (isLatin1(string)) {
+            writeVarInt(buffer, length << 1 | LATIN1_FLAG);
+            for (int i = 0; i < length; ++i) {
+                buffer.put((byte) string.charAt(i));
+            }
+            return;
+        }
+
+        writeVarInt(buffer, utf8Size(string) << 1);
+        for (int i = 0; i < length; ++i) {
+            char symbol = string.charAt(i);
+            if (symbol < 0x80) {
+                buffer.put((byte) symbol);
+            } else if (symbol < 0x800) {
+                buffer.put((byte) (0xC0 | symbol >> 6));
+                buffer.put((byte) (0x80 | symbol & 0x3F));
+            } else if (isSurrogatePair(string, i)) {
+                int codePoint = Character.toCodePoint(symbol, string.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else {
+                buffer.put((byte) (0xE0 | symbol >> 12));
+                buffer.put((byte) (0x80 | symbol >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | symbol & 0x3F));
+            }
+        }
+    }
+
+    public static String readString(ByteBuffer buffer) {
+        int header = readVarInt(buffer);
+        int size = header >>> 1;
+        if (buffer.remaining() < size) {
+            throw new MalformedDataException("String of " + size + " bytes doesn't fit into the buffer");
+        }
+        byte[] bytes;
+        int offset;
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + size);
+        } else {
+            ByteBuffer scratch = scratch(size);
+            bytes = scratch.array();
+            offset = 0;
+            buffer.get(bytes, 0, size);
+        }
+        return decode(bytes, offset, size, (header & LATIN1_FLAG) != 0);
+    }
+
+    public static void writeString(DataOutput output, String string) throws IOException {
+        ByteBuffer buffer = scratch(encodedSize(string));
+        writeString(buffer, string);
+        output.write(buffer.array(), 0, buffer.position());
+    }
+
+    public static String readString(DataInput input) throws IOException {
+        int header = readVarInt(input);
+        int size = header >>> 1;
+        byte[] bytes = scratch(size).array();
+        input.readFully(bytes, 0, size);
+        return decode(bytes, 0, size, (header & LATIN1_FLAG) != 0);
+    }
+
+    /**
+     * Записывает строку в канал целиком, например в FileChannel с его текущей позиции.
+     */
+    public static void writeString(WritableByteChannel channel, String string) throws IOException {
+        ByteBuffer buffer = scratch(encodedSize(string));
+        writeString(buffer, string);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static String decode(byte[] bytes, int offset, int size, boolean latin1) {
+        if (latin1) {
+            // Конструктор с hibyte копирует байты прямо в символы, без CharsetDecoder
+            return new String(bytes, 0, offset, size);
+        }
+
+        char[] chars = CHAR_SCRATCH.get();
+        if (chars.length < size) {
+            chars = new char[Math.max(size, 2 * chars.length)];
+            CHAR_SCRATCH.set(chars);
+        }
+        int length = 0;
+        int end = offset + size;
+        int position = offset;
+        while (position < end) {
+            int first = bytes[position++] & 0xFF;
+            if (first < 0x80) {
+                chars[length++] = (char) first;
+            } else if (first >= 0xF0) {
+                checkContinuation(bytes, position, 3, end);
+                int codePoint = (first & 0x07) << 18 | (bytes[position] & 0x3F) << 12
+                        | (bytes[position + 1] & 0x3F) << 6 | bytes[position + 2] & 0x3F;
+                position += 3;
+                chars[length++] = Character.highSurrogate(codePoint);
+                chars[length++] = Character.lowSurrogate(codePoint);
+            } else if (first >= 0xE0) {
+                checkContinuation(bytes, position, 2, end);
+                chars[length++] = (char) ((first & 0x0F) << 12 | (bytes[position] & 0x3F) << 6
+                        | bytes[position + 1] & 0x3F);
+                position += 2;
+            } else if (first >= 0xC0) {
+                checkContinuation(bytes, position, 1, end);
+                chars[length++] = (char) ((first & 0x1F) << 6 | bytes[position] & 0x3F);
+                position += 1;
+            } else {
+                throw new MalformedDataException("Unexpected UTF-8 continuation byte");
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    private static void checkContinuation(byte[] bytes, int position, int count, int end) {
+        if (position + count > end) {
+            throw new MalformedDataException("Truncated UTF-8 sequence");
+        }
+        for (int i = position; i < position + count; ++i) {
+            if ((bytes[i] & 0xC0) != 0x80) {
+                throw new MalformedDataException("Broken UTF-8 sequence");
+            }
+        }
+    }
+
+    private static boolean isLatin1(String string) {
+        for (int i = 0; i < string.length(); ++i) {
+            if (string.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int utf8Size(String string) {
+        int size = 0;
+        for (int i = 0; i < string.length(); ++i) {
+            char symbol = string.charAt(i);
+            if (symbol < 0x80) {
+                size += 1;
+            } else if (symbol < 0x800) {
+                size += 2;
+            } else if (isSurrogatePair(string, i)) {
+                size += 4;
+                ++i;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    private static boolean isSurrogatePair(String string, int index) {
+        return Character.isHighSurrogate(string.charAt(index)) && index + 1 < string.length()
+                && Character.isLowSurrogate(string.charAt(index + 1));
+    }
+}
@@ -0,0 +1,296 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.zip.CRC32;
+
+/**
+ * Файл индекса ключ → смещение, разбитый на чанки, которые можно читать независимо и параллельно.
+ *
+ * Формат: long MAGIC, int версия, int число чанков, long число записей, затем каталог чанков
+ * (для каждого long смещение, int длина в байтах, int число записей, int CRC32) и сами чанки:
+ * ключ, long смещение, ... Ключ попадает в чанк по своему хэшу, поэтому для поиска одного ключа
+ * достаточно прочитать один чанк.
+ *
+ * При открытии чанки десериализуются в fork-join пуле в заранее выделенную {@link ConcurrentHashMap}.
+ * В ленивом режиме конструктор только читает каталог и запускает загрузку в фоне, а {@link #get(Object)}
+ * и {@link #ensureLoaded(Object)} дочитывают нужный чанк сами, не дожидаясь остальных. Для ленивого
+ * режима хэш ключа должен быть одинаковым при разных запусках программы (как у строк, чисел и классов,
+ * считающих хэш по полям). Десериализатор ключей вызывается из нескольких потоков одновременно.
+ */
+public class ChunkedIndexFile<K> {
+    private static final long MAGIC = 0x4B56494E44455831L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 4 + 4 + 8;
+    private static final int DIRECTORY_ENTRY_SIZE = 8 + 4 + 4 + 4;
+    private static final int ENTRIES_PER_CHUNK = 4096;
+    private static final int MAX_CHUNKS = 1 << 16;
+
+    /**
+     * Чтение ключа из чанка.
+     */
+    public interface KeyReader<K> {
+        K read(DataInput input) throws IOException;
+    }
+
+    /**
+     * Запись ключа в чанк.
+     */
+    public interface KeyWriter<K> {
+        void write(DataOutput output, K key) throws IOException;
+    }
+
+    private final FileChannel channel;
+    private final KeyReader<K> keyReader;
+    private final long[] chunkOffsets;
+    private final int[] chunkLengths;
+    private final int[] chunkChecksums;
+    private final AtomicIntegerArray loadedChunks;
+    private final Object[] chunkLocks;
+    private final ConcurrentHashMap<K, Long> index;
+    private final LoadChunks loader;
+
+    /**
+     * Читает каталог чанков и загружает индекс: сразу, если lazy == false, иначе в фоне.
+     * Канал не должен закрываться, пока индекс не загружен целиком.
+     */
+    public ChunkedIndexFile(FileChannel channel, KeyReader<K> keyReader, boolean lazy) throws IOException {
+        this.channel = channel;
+        this.keyReader = keyReader;
+
+        ByteBuffer header = readFully(0, HEADER_SIZE);
+        if (header.getLong() != MAGIC) {
+            throw new MalformedDataException("Not a chunked index file");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new MalformedDataException("Unsupported chunked index version " + version);
+        }
+        int chunkCount = header.getInt();
+        long entryCount = header.getLong();
+        if (chunkCount <= 0 || chunkCount > MAX_CHUNKS || entryCount < 0) {
+            throw new MalformedDataException("Chunked index header is corrupted");
+        }
+
+        ByteBuffer directory = readFully(HEADER_SIZE, chunkCount * DIRECTORY_ENTRY_SIZE);
+        chunkOffsets = new long[chunkCount];
+        chunkLengths = new int[chunkCount];
+        chunkChecksums = new int[chunkCount];
+        long expectedOffset = HEADER_SIZE + (long) chunkCount * DIRECTORY_ENTRY_SIZE;
+        long totalEntries = 0;
+        for (int i = 0; i < chunkCount; ++i) {
+            chunkOffsets[i] = directory.getLong();
+            chunkLengths[i] = directory.getInt();
+            totalEntries += directory.getInt();
+            chunkChecksums[i] = directory.getInt();
+            if (chunkOffsets[i] != expectedOffset || chunkLengths[i] < 0) {
+                throw new MalformedDataException("Chunk directory is corrupted");
+            }
+            expectedOffset += chunkLengths[i];
+        }
+        if (totalEntries != entryCount || expectedOffset != channel.size()) {
+            throw new MalformedDataException("Chunked index doesn't match its directory");
+        }
+
+        loadedChunks = new AtomicIntegerArray(chunkCount);
+        chunkLocks = new Object[chunkCount];
+        for (int i = 0; i < chunkCount; ++i) {
+            chunkLocks[i] = new Object();
+        }
+        index = new ConcurrentHashMap<>((int) Math.min(Integer.MAX_VALUE, entryCount * 4 / 3 + 1), 0.75f,
+                ForkJoinPool.getCommonPoolParallelism());
+        loader = new LoadChunks(0, chunkCount);
+        if (lazy) {
+            ForkJoinPool.commonPool().execute(loader);
+        } else {
+            ForkJoinPool.commonPool().invoke(loader);
+        }
+    }
+
+    /**
+     * Проверяет, что файл начинается с заголовка этого формата, а не записан в каком-то старом формате.
+     */
+    public static boolean isChunked(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return false;
+        }
+        return readFully(channel, 0, 8).getLong() == MAGIC;
+    }
+
+    /**
+     * Перезаписывает файл индексом entries. Каждый чанк сериализуется целиком в память и пишется одним вызовом.
+     */
+    public static <K> void write(FileChannel channel, Map<K, Long> entries, KeyWriter<K> keyWriter)
+            throws IOException {
+        int chunkCount = Math.max(1, Math.min(MAX_CHUNKS, entries.size() / ENTRIES_PER_CHUNK));
+        List<List<Map.Entry<K, Long>>> chunks = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; ++i) {
+            chunks.add(new ArrayList<>());
+        }
+        for (Map.Entry<K, Long> entry : entries.entrySet()) {
+            chunks.get(chunkOf(entry.getKey(), chunkCount)).add(entry);
+        }
+
+        channel.truncate(0);
+        ByteBuffer directory = ByteBuffer.allocate(HEADER_SIZE + chunkCount * DIRECTORY_ENTRY_SIZE);
+        directory.putLong(MAGIC).putInt(VERSION).putInt(chunkCount).putLong(entries.size());
+        long offset = directory.capacity();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        CRC32 checksum = new CRC32();
+        for (List<Map.Entry<K, Long>> chunk : chunks) {
+            bytes.reset();
+            for (Map.Entry<K, Long> entry : chunk) {
+                keyWriter.write(output, entry.getKey());
+                output.writeLong(entry.getValue());
+            }
+            output.flush();
+            byte[] chunkBytes = bytes.toByteArray();
+            checksum.reset();
+            checksum.update(chunkBytes);
+            directory.putLong(offset).putInt(chunkBytes.length).putInt(chunk.size()).putInt((int) checksum.getValue());
+            writeFully(channel, ByteBuffer.wrap(chunkBytes), offset);
+            offset += chunkBytes.length;
+        }
+        directory.flip();
+        writeFully(channel, directory, 0);
+    }
+
+    /**
+     * Значение для ключа; если индекс ещё грузится, дочитывает только чанк этого ключа.
+     */
+    public Long get(K key) {
+        ensureLoaded(key);
+        return index.get(key);
+    }
+
+    /**
+     * Дочитывает чанк, в котором лежит ключ. После этого ключ можно менять в {@link #map()} напрямую.
+     */
+    public void ensureLoaded(K key) {
+        loadChunk(chunkOf(key, chunkOffsets.length));
+    }
+
+    /**
+     * Карта, в которую грузится индекс. Пока загрузка не закончена, в ней есть только загруженные чанки,
+     * поэтому перед обращением к ключу нужно вызвать {@link #ensureLoaded(Object)}, а перед обходом всей
+     * карты — {@link #awaitLoaded()}. Изменения карты в файл не попадают.
+     */
+    public ConcurrentHashMap<K, Long> map() {
+        return index;
+    }
+
+    /**
+     * Дожидается загрузки всех чанков.
+     */
+    public void awaitLoaded() {
+        if (!loader.isDone()) {
+            loader.join();
+        }
+        rethrowLoadFailure();
+    }
+
+    public boolean isLoaded() {
+        return loader.isDone();
+    }
+
+    private void rethrowLoadFailure() {
+        Throwable failure = loader.getException();
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new MalformedDataException("Failed to load index", failure);
+        }
+    }
+
+    private void loadChunk(int chunk) {
+        if (loadedChunks.get(chunk) != 0) {
+            return;
+        }
+        synchronized (chunkLocks[chunk]) {
+            if (loadedChunks.get(chunk) != 0) {
+                return;
+            }
+            try {
+                ByteBuffer bytes = readFully(chunkOffsets[chunk], chunkLengths[chunk]);
+                CRC32 checksum = new CRC32();
+                checksum.update(bytes.array(), 0, bytes.limit());
+                if ((int) checksum.getValue() != chunkChecksums[chunk]) {
+                    throw new MalformedDataException("Checksum mismatch in index chunk " + chunk);
+                }
+                DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.array(), 0, bytes.limit()));
+                while (input.available() > 0) {
+                    K key = keyReader.read(input);
+                    index.put(key, input.readLong());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            loadedChunks.set(chunk, 1);
+        }
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        return readFully(channel, position, length);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new MalformedDataException("Chunked index is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static int chunkOf(Object key, int chunkCount) {
+        int hash = key.hashCode() * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), chunkCount);
+    }
+
+    /**
+     * Делит отрезок чанков пополам, пока в нём не останется один чанк.
+     */
+    private class LoadChunks extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        LoadChunks(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                loadChunk(from);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new LoadChunks(from, middle), new LoadChunks(middle, to));
+        }
+    }
+}
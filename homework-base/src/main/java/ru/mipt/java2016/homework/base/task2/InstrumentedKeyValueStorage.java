@@ -0,0 +1,262 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Обёртка над любым {@link KeyValueStorage}, которая считает вызовы и ошибки операций read, write, delete,
+ * exists, flush и close и строит гистограммы их длительности (p50, p99, p999). Статистика вместе со
+ * счётчиками {@link StorageStats}, если обёрнутое хранилище их ведёт, публикуется в платформенном
+ * MBean-сервере под именем {@code ru.mipt.java2016.homework:type=KeyValueStorage,name=<name>}, так что
+ * её видно в jconsole и любом JMX-клиенте. При закрытии обёртка снимает регистрацию.
+ *
+ * Время каждой операции меряется вокруг вызова обёрнутого хранилища, в том числе время ожидания его
+ * блокировок. Остальные методы передаются хранилищу без замеров. Обёртка потокобезопасна, если
+ * потокобезопасно обёрнутое хранилище.
+ */
+public class InstrumentedKeyValueStorage<K, V> implements KeyValueStorage<K, V>, StorageMetricsMXBean {
+    public static final String DOMAIN = "ru.mipt.java2016.homework";
+    private static final StorageStats NO_STATS = new StorageStats() {
+    };
+
+    private final KeyValueStorage<K, V> storage;
+    private final ObjectName objectName;
+
+    private final Operation read = new Operation();
+    private final Operation write = new Operation();
+    private final Operation delete = new Operation();
+    private final Operation exists = new Operation();
+    private final Operation flush = new Operation();
+    private final Operation close = new Operation();
+
+    /**
+     * @param name имя в JMX; должно быть уникальным среди открытых обёрток
+     */
+    public InstrumentedKeyValueStorage(KeyValueStorage<K, V> storage, String name) {
+        this.storage = storage;
+        try {
+            objectName = new ObjectName(DOMAIN + ":type=KeyValueStorage,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (InstanceAlreadyExistsException e) {
+            throw new IllegalArgumentException("Storage " + name + " is already registered", e);
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register storage " + name, e);
+        }
+    }
+
+    public ObjectName objectName() {
+        return objectName;
+    }
+
+    @Override
+    public V read(K key) {
+        return read.measure(() -> storage.read(key));
+    }
+
+    @Override
+    public boolean exists(K key) {
+        return exists.measure(() -> storage.exists(key));
+    }
+
+    @Override
+    public void write(K key, V value) {
+        write.measure(() -> {
+            storage.write(key, value);
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(K key) {
+        delete.measure(() -> {
+            storage.delete(key);
+            return null;
+        });
+    }
+
+    @Override
+    public Map<K, V> readAll(Collection<? extends K> keys) {
+        return storage.readAll(keys);
+    }
+
+    @Override
+    public void writeAll(Map<? extends K, ? extends V> entries) {
+        storage.writeAll(entries);
+    }
+
+    @Override
+    public Iterator<K> readKeys() {
+        return storage.readKeys();
+    }
+
+    @Override
+    public int size() {
+        return storage.size();
+    }
+
+    @Override
+    public KeyValueSnapshot<K, V> openSnapshot() {
+        return storage.openSnapshot();
+    }
+
+    @Override
+    public void flush() {
+        flush.measure(() -> {
+            storage.flush();
+            return null;
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            storage.close();
+            failed = false;
+        } finally {
+            close.record(System.nanoTime() - start, failed);
+            unregister();
+        }
+    }
+
+    private void unregister() throws IOException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            throw new IOException("Failed to unregister " + objectName, e);
+        }
+    }
+
+    @Override
+    public OperationStats getRead() {
+        return read.stats();
+    }
+
+    @Override
+    public OperationStats getWrite() {
+        return write.stats();
+    }
+
+    @Override
+    public OperationStats getDelete() {
+        return delete.stats();
+    }
+
+    @Override
+    public OperationStats getExists() {
+        return exists.stats();
+    }
+
+    @Override
+    public OperationStats getFlush() {
+        return flush.stats();
+    }
+
+    @Override
+    public OperationStats getClose() {
+        return close.stats();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return engineStats().bytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return engineStats().bytesWritten();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        StorageStats stats = engineStats();
+        long hits = stats.cacheHits();
+        long misses = stats.cacheMisses();
+        if (hits == StorageStats.UNKNOWN || misses == StorageStats.UNKNOWN || hits + misses == 0) {
+            return StorageStats.UNKNOWN;
+        }
+        return (double) hits / (hits + misses);
+    }
+
+    @Override
+    public long getCompactionCount() {
+        return engineStats().compactionCount();
+    }
+
+    @Override
+    public long getCompactionNanos() {
+        return engineStats().compactionNanos();
+    }
+
+    @Override
+    public long getBackgroundFlushCount() {
+        return engineStats().flushCount();
+    }
+
+    @Override
+    public long getBackgroundFlushNanos() {
+        return engineStats().flushNanos();
+    }
+
+    @Override
+    public void resetOperationStats() {
+        for (Operation operation : new Operation[] {read, write, delete, exists, flush, close}) {
+            operation.reset();
+        }
+    }
+
+    private StorageStats engineStats() {
+        if (storage instanceof StorageStats) {
+            return (StorageStats) storage;
+        }
+        return NO_STATS;
+    }
+
+    private static class Operation {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+
+        <T> T measure(Supplier<T> action) {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                T result = action.get();
+                failed = false;
+                return result;
+            } finally {
+                record(System.nanoTime() - start, failed);
+            }
+        }
+
+        void record(long nanos, boolean failed) {
+            latencies.record(nanos);
+            if (failed) {
+                errors.incrementAndGet();
+            }
+        }
+
+        OperationStats stats() {
+            return new OperationStats(latencies.count(), errors.get(), latencies.meanNanos(),
+                    latencies.percentileNanos(0.5), latencies.percentileNanos(0.99),
+                    latencies.percentileNanos(0.999), latencies.maxNanos());
+        }
+
+        void reset() {
+            latencies.reset();
+            errors.set(0);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Хранилище Integer -&gt; Double для {@code buildNumbersStorage}, которое внутри не использует объекты-обёртки.
+ *
+ * На диске лежит файл из заголовка (магическое число и число записей) и записей фиксированной длины
+ * (int ключ, double значение). Записи лежат плотно: при удалении на место удалённой переносится последняя.
+ * В памяти хранится только открытая адресация int ключ -&gt; int номер записи, так что чтение значения — это
+ * один поиск в массиве и одно позиционное чтение по смещению HEADER_SIZE + номер * RECORD_SIZE.
+ *
+ * Число записей в заголовке обновляется только в flush и close. Файл же всегда обрезан ровно по последней записи,
+ * поэтому после падения число записей восстанавливается по длине файла, а недописанная последняя запись
+ * отбрасывается.
+ *
+ * Боксинг остаётся только на границе интерфейса {@link KeyValueStorage}; для горячих путей есть методы
+ * {@link #readDouble(int, double)}, {@link #writeDouble(int, double)}, {@link #containsKey(int)} и
+ * {@link #deleteKey(int)}.
+ */
+public class IntDoubleKeyValueStorage implements KeyValueStorage<Integer, Double> {
+    public static final String FILE_NAME = "int_double_storage.db";
+
+    private static final int MAGIC = 0x49443031;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 12;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NO_RECORD = -1;
+
+    private final FileChannel channel;
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_SIZE);
+
+    // Открытая адресация с линейным пробированием; recordIndices[i] == NO_RECORD — пустая ячейка
+    private int[] keys;
+    private int[] recordIndices;
+    // Ключ записи по её номеру, нужен для переноса последней записи при удалении
+    private int[] recordKeys;
+    private int size;
+    private int modificationCount;
+    private boolean closed;
+
+    public IntDoubleKeyValueStorage(String path) {
+        Path file = Paths.get(path, FILE_NAME);
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new MalformedDataException("Can't open " + file, e);
+        }
+        try {
+            allocate(INITIAL_CAPACITY);
+            recordKeys = new int[INITIAL_CAPACITY];
+            if (channel.size() == 0) {
+                writeHeader();
+            } else {
+                load();
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                channel.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            if (e instanceof MalformedDataException) {
+                throw (MalformedDataException) e;
+            }
+            throw new MalformedDataException("Can't read " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized Double read(Integer key) {
+        checkNotClosed();
+        int slot = findSlot(key);
+        return recordIndices[slot] == NO_RECORD ? null : readValue(recordIndices[slot]);
+    }
+
+    /**
+     * То же, что {@link #read(Object)}, но без обёрток.
+     */
+    public synchronized double readDouble(int key, double defaultValue) {
+        checkNotClosed();
+        int slot = findSlot(key);
+        return recordIndices[slot] == NO_RECORD ? defaultValue : readValue(recordIndices[slot]);
+    }
+
+    @Override
+    public boolean exists(Integer key) {
+        return containsKey(key);
+    }
+
+    public synchronized boolean containsKey(int key) {
+        checkNotClosed();
+        return recordIndices[findSlot(key)] != NO_RECORD;
+    }
+
+    @Override
+    public void write(Integer key, Double value) {
+        writeDouble(key, value);
+    }
+
+    public synchronized void writeDouble(int key, double value) {
+        checkNotClosed();
+        int slot = findSlot(key);
+        int record = recordIndices[slot];
+        if (record == NO_RECORD) {
+            record = size;
+            writeRecord(record, key, value);
+            if (record == recordKeys.length) {
+                int[] newRecordKeys = new int[recordKeys.length * 2];
+                System.arraycopy(recordKeys, 0, newRecordKeys, 0, size);
+                recordKeys = newRecordKeys;
+            }
+            recordKeys[record] = key;
+            keys[slot] = key;
+            recordIndices[slot] = record;
+            ++size;
+            ++modificationCount;
+            if (size * 2 > keys.length) {
+                rehash(keys.length * 2);
+            }
+        } else {
+            writeRecord(record, key, value);
+        }
+    }
+
+    @Override
+    public void delete(Integer key) {
+        deleteKey(key);
+    }
+
+    public synchronized void deleteKey(int key) {
+        checkNotClosed();
+        int slot = findSlot(key);
+        int record = recordIndices[slot];
+        if (record == NO_RECORD) {
+            return;
+        }
+        removeSlot(slot);
+
+        int last = size - 1;
+        try {
+            if (record != last) {
+                int lastKey = recordKeys[last];
+                writeRecord(record, lastKey, readValue(last));
+                recordKeys[record] = lastKey;
+                recordIndices[findSlot(lastKey)] = record;
+            }
+            channel.truncate(HEADER_SIZE + (long) last * RECORD_SIZE);
+        } catch (IOException e) {
+            throw new MalformedDataException("Can't write storage file", e);
+        }
+        --size;
+        ++modificationCount;
+    }
+
+    @Override
+    public synchronized Iterator<Integer> readKeys() {
+        checkNotClosed();
+        return new Iterator<Integer>() {
+            private final int expectedModificationCount = modificationCount;
+            private int record;
+
+            @Override
+            public boolean hasNext() {
+                synchronized (IntDoubleKeyValueStorage.this) {
+                    checkNotModified();
+                    return record < size;
+                }
+            }
+
+            @Override
+            public Integer next() {
+                synchronized (IntDoubleKeyValueStorage.this) {
+                    checkNotModified();
+                    if (record >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return recordKeys[record++];
+                }
+            }
+
+            private void checkNotModified() {
+                if (expectedModificationCount != modificationCount) {
+                    throw new ConcurrentModificationException();
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized int size() {
+        checkNotClosed();
+        return size;
+    }
+
+    @Override
+    public synchronized void flush() {
+        checkNotClosed();
+        try {
+            writeHeader();
+            channel.force(false);
+        } catch (IOException e) {
+            throw new MalformedDataException("Can't write storage file", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            writeHeader();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private void load() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new MalformedDataException("Not an int-double storage file");
+        }
+        int headerCount = header.getInt();
+        long recordsLength = channel.size() - HEADER_SIZE;
+        if (headerCount < 0 || recordsLength / RECORD_SIZE > Integer.MAX_VALUE) {
+            throw new MalformedDataException("Storage file length doesn't match record count");
+        }
+        // Если хранилище не было закрыто, заголовок устарел; недописанная последняя запись отбрасывается
+        int count = (int) (recordsLength / RECORD_SIZE);
+        if (recordsLength % RECORD_SIZE != 0) {
+            channel.truncate(HEADER_SIZE + (long) count * RECORD_SIZE);
+        }
+
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < count * 2) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+        recordKeys = new int[Math.max(count, INITIAL_CAPACITY)];
+
+        ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 4096);
+        long position = HEADER_SIZE;
+        for (int record = 0; record < count;) {
+            records.clear();
+            records.limit((int) Math.min(records.capacity(), (long) (count - record) * RECORD_SIZE));
+            readFully(records, position);
+            position += records.limit();
+            records.flip();
+            while (records.hasRemaining()) {
+                int key = records.getInt();
+                records.getDouble();
+                int slot = findSlot(key);
+                if (recordIndices[slot] != NO_RECORD) {
+                    if (record != count - 1) {
+                        throw new MalformedDataException("Duplicate key " + key);
+                    }
+                    // Удаление перенесло последнюю запись на место удалённой, но не успело обрезать файл
+                    --count;
+                    channel.truncate(HEADER_SIZE + (long) count * RECORD_SIZE);
+                    break;
+                }
+                keys[slot] = key;
+                recordIndices[slot] = record;
+                recordKeys[record] = key;
+                ++record;
+            }
+        }
+        size = count;
+        if (size != headerCount) {
+            writeHeader();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(size).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    private double readValue(int record) {
+        recordBuffer.clear();
+        try {
+            readFully(recordBuffer, HEADER_SIZE + (long) record * RECORD_SIZE);
+        } catch (IOException e) {
+            throw new MalformedDataException("Can't read storage file", e);
+        }
+        return recordBuffer.getDouble(4);
+    }
+
+    private void writeRecord(int record, int key, double value) {
+        recordBuffer.clear();
+        recordBuffer.putInt(key).putDouble(value).flip();
+        long position = HEADER_SIZE + (long) record * RECORD_SIZE;
+        try {
+            while (recordBuffer.hasRemaining()) {
+                channel.write(recordBuffer, position + recordBuffer.position());
+            }
+        } catch (IOException e) {
+            throw new MalformedDataException("Can't write storage file", e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new MalformedDataException("Unexpected end of storage file");
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        recordIndices = new int[capacity];
+        Arrays.fill(recordIndices, NO_RECORD);
+    }
+
+    /**
+     * @return ячейку с данным ключом или пустую ячейку, в которую его надо положить
+     */
+    private int findSlot(int key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (recordIndices[slot] != NO_RECORD && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Удаление из линейного пробирования сдвигом назад, чтобы не оставлять "удалённых" ячеек.
+     */
+    private void removeSlot(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (recordIndices[next] != NO_RECORD) {
+            int home = mix(keys[next]) & mask;
+            // Элемент можно сдвинуть в дыру, если его домашняя ячейка не лежит строго между дырой и им
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                recordIndices[hole] = recordIndices[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        recordIndices[hole] = NO_RECORD;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldRecordIndices = recordIndices;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldRecordIndices[i] != NO_RECORD) {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                recordIndices[slot] = oldRecordIndices[i];
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Storage is closed");
+        }
+    }
+}
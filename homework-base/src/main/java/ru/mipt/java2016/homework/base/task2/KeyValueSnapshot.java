@@ -0,0 +1,34 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Снимок хранилища: ключи и значения такими, какими они были в момент {@link KeyValueStorage#openSnapshot()},
+ * даже если после этого в хранилище продолжают писать. Снимок доступен только для чтения, и его итератор
+ * не бросает {@link java.util.ConcurrentModificationException}, так что долгий обход всех ключей
+ * не мешает записи и не ломается от неё.
+ *
+ * Пока снимок открыт, хранилище хранит старые версии изменённых после него значений, поэтому снимок
+ * нужно закрывать. Закрытие хранилища закрывает и все его снимки.
+ */
+public interface KeyValueSnapshot<K, V> extends Closeable {
+    /**
+     * Номер последнего изменения хранилища, которое видно в снимке.
+     */
+    long sequenceNumber();
+
+    V read(K key);
+
+    boolean exists(K key);
+
+    Iterator<K> readKeys();
+
+    int size();
+
+    /**
+     * Отпускает старые версии значений, которые держались ради этого снимка.
+     */
+    @Override
+    void close();
+}
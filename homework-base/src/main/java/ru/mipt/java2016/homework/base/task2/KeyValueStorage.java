@@ -1,7 +1,10 @@
 package ru.mipt.java2016.homework.base.task2;
 
 import java.io.Closeable;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Перзистентное хранилище ключ-значение.
@@ -9,6 +12,8 @@ import java.util.Iterator;
  * Хранилище не обязано сразу же после выполнения запроса изменять состояние на диске, т.е. в процессе работы допустимо
  * расхождение консистентности. Но после выполнения операций {@link #close()} иkb {@link #flush()} хранилище должно
  * перейти в консистентное состояние, то есть, на диске должны остаться актуальные данные.
+ * Чтобы не терять при падении изменения, сделанные после последнего {@link #flush()}, хранилище может вести
+ * {@link WriteAheadLog}.
  *
  * В случае, если в директории, где предлагается работать хранилищу, нарушена целостность данных, то при создании
  * экземпляра хранилища нужно бросить {@link MalformedDataException}.
@@ -38,11 +43,41 @@ public interface KeyValueStorage<K, V> extends Closeable {
      */
     void delete(K key);
 
+    /**
+     * Читает значения сразу для нескольких ключей. В результат попадают только ключи, которые есть в хранилище.
+     * <p>
+     * По умолчанию вызывает {@link #read(Object)} для каждого ключа. Хранилища, которые знают, где на диске
+     * лежит каждое значение, могут переопределить метод: отсортировать ключи по смещению, читать соседние
+     * значения одним обращением к диску и брать блокировку один раз на весь запрос.
+     */
+    default Map<K, V> readAll(Collection<? extends K> keys) {
+        Map<K, V> result = new HashMap<>();
+        for (K key : keys) {
+            V value = read(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Записывает в хранилище все пары из entries.
+     * <p>
+     * По умолчанию вызывает {@link #write(Object, Object)} для каждой пары.
+     */
+    default void writeAll(Map<? extends K, ? extends V> entries) {
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+    }
+
     /**
      * Читает все ключи в хранилище.
      * <p>
      * Итератор должен бросать {@link java.util.ConcurrentModificationException},
      * если данные в хранилище были изменены в процессе итерирования.
+     * Для обхода, который не должен ломаться от параллельной записи, есть {@link #openSnapshot()}.
      */
     Iterator<K> readKeys();
 
@@ -51,6 +86,13 @@ public interface KeyValueStorage<K, V> extends Closeable {
      */
     int size();
 
+    /**
+     * Открывает снимок текущего состояния хранилища, который не меняется при дальнейших записях.
+     */
+    default KeyValueSnapshot<K, V> openSnapshot() {
+        throw new UnsupportedOperationException("Snapshots are not supported");
+    }
+
     /**
      * Приводит хранилище на диске в консистентное состояние на момент вызова. Может блокировать другие операции записи.
      */
@@ -0,0 +1,103 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма длительностей в наносекундах для подсчёта перцентилей без хранения самих замеров.
+ *
+ * Корзины логарифмически-линейные: значения меньше 16 лежат каждое в своей корзине, а каждый следующий
+ * интервал [2^e, 2^(e+1)) делится на 16 равных корзин, поэтому перцентиль завышается не больше чем на 1/16.
+ * Запись — одно атомарное увеличение счётчика, так что гистограмму можно пополнять из многих потоков.
+ * Снимок, снятый во время записи, может не учитывать последние замеры.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        totalCount.incrementAndGet();
+        totalNanos.addAndGet(value);
+        maxNanos.accumulateAndGet(value, Math::max);
+    }
+
+    public long count() {
+        return totalCount.get();
+    }
+
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Среднее значение или 0, если замеров нет.
+     */
+    public long meanNanos() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : totalNanos.get() / count;
+    }
+
+    /**
+     * Значение, которого не превышает доля quantile замеров (с точностью до корзины), или 0, если замеров нет.
+     */
+    public long percentileNanos(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Quantile must be in [0, 1]: " + quantile);
+        }
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        long upperBound = lowerBound + (1L << shift) - 1;
+        // Верхняя граница последних корзин не помещается в long
+        return upperBound < lowerBound ? Long.MAX_VALUE : upperBound;
+    }
+}
@@ -0,0 +1,65 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Снимок статистики одной операции хранилища. Через JMX виден как CompositeData.
+ */
+public class OperationStats {
+    private final long count;
+    private final long errorCount;
+    private final long meanNanos;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+    private final long maxNanos;
+
+    @ConstructorProperties({"count", "errorCount", "meanNanos", "p50Nanos", "p99Nanos", "p999Nanos", "maxNanos"})
+    public OperationStats(long count, long errorCount, long meanNanos,
+                          long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+        this.count = count;
+        this.errorCount = errorCount;
+        this.meanNanos = meanNanos;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * Сколько раз вызывалась операция, включая завершившиеся исключением.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public long getMeanNanos() {
+        return meanNanos;
+    }
+
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    public long getP999Nanos() {
+        return p999Nanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d errors=%d mean=%dns p50=%dns p99=%dns p999=%dns max=%dns",
+                count, errorCount, meanNanos, p50Nanos, p99Nanos, p999Nanos, maxNanos);
+    }
+}
@@ -0,0 +1,482 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Хранилище, которое раскладывает ключи по хэшу между N независимыми хранилищами-шардами.
+ * Шард номер i живёт в поддиректории shard-i и открывается фабрикой, которой передаётся путь к этой поддиректории.
+ *
+ * У каждого шарда своя блокировка, поэтому операции с ключами из разных шардов выполняются параллельно,
+ * а сами шарды не обязаны быть потокобезопасными. {@link #flush()}, {@link #close()}, а также
+ * {@link #readAll(Collection)} и {@link #writeAll(Map)}, затрагивающие несколько шардов, обрабатывают шарды
+ * параллельно.
+ *
+ * Число шардов записано в файле shards.manifest. При открытии манифест проверяется: если он повреждён,
+ * число шардов в нём не совпадает с запрошенным или какой-то из поддиректорий нет, бросается
+ * {@link MalformedDataException} — иначе ключи попали бы не в те шарды.
+ *
+ * Шард ключа определяется по {@link Object#hashCode()}, поэтому хэш ключа должен быть одинаковым
+ * при разных запусках программы (как у строк, чисел и классов, считающих хэш по полям).
+ */
+public class ShardedKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
+    private static final String MANIFEST_NAME = "shards.manifest";
+    private static final String SHARD_PREFIX = "shard-";
+    private static final int MANIFEST_MAGIC = 0x53485244;
+    private static final int MANIFEST_VERSION = 1;
+
+    private final List<KeyValueStorage<K, V>> shards;
+    private final ReentrantLock[] locks;
+    /**
+     * Свой пул по потоку на шард: операции шардов блокируются на вводе-выводе, и в общем ForkJoinPool
+     * они бы мешали параллельным стримам и другим его пользователям.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Увеличивается, когда в каком-нибудь шарде меняется набор ключей, чтобы итератор ключей мог это заметить.
+     * Перезапись значения существующего ключа набор ключей не меняет. Изменение набора определяется через
+     * {@link KeyValueStorage#exists(Object)}, а не size(), которое у некоторых шардов дорогое.
+     */
+    private final AtomicInteger modificationCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Открывает хранилище с тем числом шардов, которое записано в манифесте, или создаёт новое
+     * с числом шардов, равным числу процессоров.
+     */
+    public ShardedKeyValueStorage(String path, Function<String, KeyValueStorage<K, V>> shardFactory)
+            throws IOException {
+        this(path, storedShardCount(path), shardFactory);
+    }
+
+    /**
+     * @param path         директория хранилища, должна существовать
+     * @param shardCount   число шардов
+     * @param shardFactory открывает хранилище-шард в переданной ему директории
+     */
+    public ShardedKeyValueStorage(String path, int shardCount, Function<String, KeyValueStorage<K, V>> shardFactory)
+            throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        }
+        Path directory = Paths.get(path);
+        if (!Files.isDirectory(directory)) {
+            throw new FileNotFoundException("Directory " + path + " does not exist");
+        }
+        Path manifest = directory.resolve(MANIFEST_NAME);
+        if (Files.exists(manifest)) {
+            validateManifest(directory, shardCount);
+        } else {
+            createShards(directory, shardCount);
+        }
+
+        shards = new ArrayList<>(shardCount);
+        locks = new ReentrantLock[shardCount];
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(shardCount, runnable -> {
+            Thread thread = new Thread(runnable, "shard-io-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int i = 0; i < shardCount; ++i) {
+                shards.add(shardFactory.apply(directory.resolve(SHARD_PREFIX + i).toString()));
+                locks[i] = new ReentrantLock();
+            }
+        } catch (RuntimeException e) {
+            for (KeyValueStorage<K, V> shard : shards) {
+                try {
+                    shard.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
+            executor.shutdown();
+            throw e;
+        }
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    @Override
+    public V read(K key) {
+        int shard = shardOf(key);
+        lock(shard);
+        try {
+            return shards.get(shard).read(key);
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    @Override
+    public boolean exists(K key) {
+        int shard = shardOf(key);
+        lock(shard);
+        try {
+            return shards.get(shard).exists(key);
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    @Override
+    public void write(K key, V value) {
+        int shard = shardOf(key);
+        lock(shard);
+        try {
+            KeyValueStorage<K, V> storage = shards.get(shard);
+            boolean existed = storage.exists(key);
+            storage.write(key, value);
+            if (!existed) {
+                modificationCount.incrementAndGet();
+            }
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    @Override
+    public void delete(K key) {
+        int shard = shardOf(key);
+        lock(shard);
+        try {
+            KeyValueStorage<K, V> storage = shards.get(shard);
+            boolean existed = storage.exists(key);
+            storage.delete(key);
+            if (existed) {
+                modificationCount.incrementAndGet();
+            }
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    @Override
+    public Map<K, V> readAll(Collection<? extends K> keys) {
+        checkNotClosed();
+        List<List<K>> groups = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); ++i) {
+            groups.add(new ArrayList<>());
+        }
+        for (K key : keys) {
+            groups.get(shardOf(key)).add(key);
+        }
+
+        List<Map<K, V>> parts = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); ++i) {
+            parts.add(null);
+        }
+        ShardAction readGroup = shard -> parts.set(shard, shards.get(shard).readAll(groups.get(shard)));
+        forEachShard(shard -> !groups.get(shard).isEmpty(), readGroup);
+
+        Map<K, V> result = new HashMap<>();
+        for (Map<K, V> part : parts) {
+            if (part != null) {
+                result.putAll(part);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void writeAll(Map<? extends K, ? extends V> entries) {
+        checkNotClosed();
+        List<Map<K, V>> groups = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); ++i) {
+            groups.add(new HashMap<>());
+        }
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            groups.get(shardOf(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+        forEachShard(shard -> !groups.get(shard).isEmpty(), shard -> {
+            KeyValueStorage<K, V> storage = shards.get(shard);
+            boolean addsKeys = false;
+            for (K key : groups.get(shard).keySet()) {
+                if (!storage.exists(key)) {
+                    addsKeys = true;
+                    break;
+                }
+            }
+            storage.writeAll(groups.get(shard));
+            if (addsKeys) {
+                modificationCount.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Обходит шарды по очереди. Итератор бросает {@link ConcurrentModificationException}, если после его
+     * создания хранилище было изменено, даже если изменился шард, который уже пройден.
+     */
+    @Override
+    public Iterator<K> readKeys() {
+        checkNotClosed();
+        return new MergedKeyIterator();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < shards.size(); ++i) {
+            lock(i);
+            try {
+                size += shards.get(i).size();
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void flush() {
+        checkNotClosed();
+        forEachShard(shard -> true, shard -> shards.get(shard).flush());
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            forEachShard(shard -> true, shard -> {
+                try {
+                    shards.get(shard).close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private int shardOf(K key) {
+        int hash = key.hashCode() * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), shards.size());
+    }
+
+    private void lock(int shard) {
+        locks[shard].lock();
+        if (closed) {
+            locks[shard].unlock();
+            throw new IllegalStateException("Storage is closed");
+        }
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Storage is closed");
+        }
+    }
+
+    /**
+     * Выполняет action для выбранных шардов под их блокировками: для одного шарда — в текущем потоке,
+     * для нескольких — параллельно в пуле хранилища. Бросает первое из исключений, остальные добавляет к нему.
+     */
+    private void forEachShard(ShardFilter filter, ShardAction action) {
+        List<Integer> selected = new ArrayList<>();
+        for (int i = 0; i < shards.size(); ++i) {
+            if (filter.test(i)) {
+                selected.add(i);
+            }
+        }
+        if (selected.size() == 1) {
+            runLocked(selected.get(0), action);
+            return;
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>(selected.size());
+        for (int shard : selected) {
+            futures.add(CompletableFuture.runAsync(() -> runLocked(shard, action), executor));
+        }
+        RuntimeException failure = null;
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                RuntimeException cause = e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause() : e;
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * close() берёт блокировку шарда, уже выставив флаг closed, поэтому здесь флаг не проверяется.
+     */
+    private void runLocked(int shard, ShardAction action) {
+        locks[shard].lock();
+        try {
+            action.run(shard);
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    private static int storedShardCount(String path) throws IOException {
+        Path manifest = Paths.get(path, MANIFEST_NAME);
+        if (!Files.exists(manifest)) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return readManifest(manifest);
+    }
+
+    private static int readManifest(Path manifest) throws IOException {
+        try (InputStream stream = Files.newInputStream(manifest)) {
+            DataInputStream input = new DataInputStream(stream);
+            if (input.readInt() != MANIFEST_MAGIC) {
+                throw new MalformedDataException("File " + manifest + " is not a shard manifest");
+            }
+            int version = input.readInt();
+            if (version != MANIFEST_VERSION) {
+                throw new MalformedDataException("Unsupported shard manifest version " + version);
+            }
+            int shardCount = input.readInt();
+            if (shardCount <= 0 || input.read() != -1) {
+                throw new MalformedDataException("Shard manifest " + manifest + " is corrupted");
+            }
+            return shardCount;
+        } catch (EOFException e) {
+            throw new MalformedDataException("Shard manifest " + manifest + " is truncated", e);
+        }
+    }
+
+    private static void validateManifest(Path directory, int shardCount) throws IOException {
+        int storedCount = readManifest(directory.resolve(MANIFEST_NAME));
+        if (storedCount != shardCount) {
+            throw new MalformedDataException("Storage has " + storedCount + " shards, but "
+                    + shardCount + " were requested");
+        }
+        for (int i = 0; i < shardCount; ++i) {
+            if (!Files.isDirectory(directory.resolve(SHARD_PREFIX + i))) {
+                throw new MalformedDataException("Shard directory " + SHARD_PREFIX + i + " is missing");
+            }
+        }
+    }
+
+    /**
+     * Манифест пишется последним и атомарно, так что прерванное создание не оставит хранилище,
+     * которое откроется с неполным набором шардов.
+     */
+    private static void createShards(Path directory, int shardCount) throws IOException {
+        if (Files.exists(directory.resolve(SHARD_PREFIX + 0))) {
+            throw new MalformedDataException("Shard manifest is missing in " + directory);
+        }
+        for (int i = 0; i < shardCount; ++i) {
+            Files.createDirectories(directory.resolve(SHARD_PREFIX + i));
+        }
+        Path temporary = directory.resolve(MANIFEST_NAME + ".tmp");
+        try (OutputStream stream = Files.newOutputStream(temporary)) {
+            DataOutputStream output = new DataOutputStream(stream);
+            output.writeInt(MANIFEST_MAGIC);
+            output.writeInt(MANIFEST_VERSION);
+            output.writeInt(shardCount);
+            output.flush();
+        }
+        Files.move(temporary, directory.resolve(MANIFEST_NAME), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private interface ShardFilter {
+        boolean test(int shard);
+    }
+
+    private interface ShardAction {
+        void run(int shard);
+    }
+
+    private class MergedKeyIterator implements Iterator<K> {
+        private final int expectedModificationCount = modificationCount.get();
+        private int shard = -1;
+        private Iterator<K> current;
+
+        @Override
+        public boolean hasNext() {
+            checkForModification();
+            while (current == null || !hasNextInShard()) {
+                if (++shard >= shards.size()) {
+                    current = null;
+                    return false;
+                }
+                lock(shard);
+                try {
+                    current = shards.get(shard).readKeys();
+                } finally {
+                    locks[shard].unlock();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public K next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            lock(shard);
+            try {
+                return current.next();
+            } finally {
+                locks[shard].unlock();
+            }
+        }
+
+        private boolean hasNextInShard() {
+            lock(shard);
+            try {
+                return current.hasNext();
+            } finally {
+                locks[shard].unlock();
+            }
+        }
+
+        private void checkForModification() {
+            if (modificationCount.get() != expectedModificationCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+}
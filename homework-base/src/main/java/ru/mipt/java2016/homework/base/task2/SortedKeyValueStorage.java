@@ -0,0 +1,74 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Хранилище, которое держит ключи упорядоченными по {@link #comparator()} и умеет отдавать диапазоны.
+ *
+ * Все итераторы, как и {@link #readKeys()}, бросают {@link java.util.ConcurrentModificationException},
+ * если набор ключей изменился в процессе итерирования. Границы диапазона могут быть null — тогда диапазон
+ * с этой стороны не ограничен.
+ */
+public interface SortedKeyValueStorage<K, V> extends KeyValueStorage<K, V> {
+    /**
+     * Порядок, в котором хранилище отдаёт ключи.
+     */
+    Comparator<? super K> comparator();
+
+    /**
+     * Возвращает по возрастанию ключи из диапазона [from, to). Значения при этом не читаются.
+     */
+    Iterator<K> scan(K from, K to);
+
+    /**
+     * Возвращает по возрастанию пары ключ-значение из диапазона [from, to).
+     * Значение читается только для выдаваемой пары и в том порядке, в котором лежит на диске,
+     * так что диапазон читается последовательно, а не случайными обращениями по каждому ключу.
+     */
+    Iterator<Map.Entry<K, V>> scanEntries(K from, K to);
+
+    /**
+     * Возвращает пары, ключи которых начинаются с prefix. Ключи с общим префиксом в упорядоченном хранилище
+     * идут подряд начиная с самого префикса, поэтому это scanEntries(prefix, null), оборванный на первом
+     * ключе без префикса.
+     *
+     * @param hasPrefix проверяет, что ключ начинается с prefix; для строк это key -&gt; key.startsWith(prefix)
+     */
+    default Iterator<Map.Entry<K, V>> prefixScan(K prefix, Predicate<? super K> hasPrefix) {
+        Iterator<Map.Entry<K, V>> entries = scanEntries(prefix, null);
+        return new Iterator<Map.Entry<K, V>>() {
+            private Map.Entry<K, V> next;
+            private boolean finished;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !finished) {
+                    if (entries.hasNext()) {
+                        next = entries.next();
+                        if (!hasPrefix.test(next.getKey())) {
+                            next = null;
+                            finished = true;
+                        }
+                    } else {
+                        finished = true;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<K, V> result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+}
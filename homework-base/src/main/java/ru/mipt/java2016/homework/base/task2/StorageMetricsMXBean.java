@@ -0,0 +1,44 @@
+package ru.mipt.java2016.homework.base.task2;
+
+/**
+ * JMX-интерфейс {@link InstrumentedKeyValueStorage}. Счётчики из {@link StorageStats} равны
+ * {@link StorageStats#UNKNOWN}, если хранилище их не ведёт.
+ */
+public interface StorageMetricsMXBean {
+    OperationStats getRead();
+
+    OperationStats getWrite();
+
+    OperationStats getDelete();
+
+    OperationStats getExists();
+
+    OperationStats getFlush();
+
+    OperationStats getClose();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    /**
+     * Доля чтений, попавших в кэш, или {@link StorageStats#UNKNOWN}.
+     */
+    double getCacheHitRatio();
+
+    long getCompactionCount();
+
+    long getCompactionNanos();
+
+    /**
+     * Сбросы буферов, которые хранилище делало само, без вызова {@link KeyValueStorage#flush()}.
+     */
+    long getBackgroundFlushCount();
+
+    long getBackgroundFlushNanos();
+
+    /**
+     * Обнуляет счётчики и гистограммы операций. Счётчики хранилища не меняются.
+     */
+    void resetOperationStats();
+}
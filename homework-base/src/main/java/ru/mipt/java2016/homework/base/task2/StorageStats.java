@@ -0,0 +1,57 @@
+package ru.mipt.java2016.homework.base.task2;
+
+/**
+ * Счётчики, которые хранилище может сообщить о своей внутренней работе. Реализуется самим хранилищем
+ * по желанию; {@link InstrumentedKeyValueStorage} публикует их вместе с задержками операций.
+ *
+ * Все значения накопленные с открытия хранилища. Методы вызываются из чужих потоков без блокировок
+ * хранилища, поэтому счётчики должны быть атомарными или volatile. Если хранилище не ведёт какой-то
+ * счётчик, метод возвращает {@link #UNKNOWN}.
+ */
+public interface StorageStats {
+    long UNKNOWN = -1;
+
+    /**
+     * Сколько байт прочитано с диска, не считая попаданий в кэш.
+     */
+    default long bytesRead() {
+        return UNKNOWN;
+    }
+
+    /**
+     * Сколько байт записано на диск, включая перезапись при сжатии.
+     */
+    default long bytesWritten() {
+        return UNKNOWN;
+    }
+
+    default long cacheHits() {
+        return UNKNOWN;
+    }
+
+    default long cacheMisses() {
+        return UNKNOWN;
+    }
+
+    /**
+     * Сколько раз хранилище переписывало файлы, чтобы избавиться от устаревших записей.
+     */
+    default long compactionCount() {
+        return UNKNOWN;
+    }
+
+    default long compactionNanos() {
+        return UNKNOWN;
+    }
+
+    /**
+     * Сколько раз хранилище само сбрасывало буферы на диск, не считая вызовов {@link KeyValueStorage#flush()}.
+     */
+    default long flushCount() {
+        return UNKNOWN;
+    }
+
+    default long flushNanos() {
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,231 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Кэш значений для хранилищ, ограниченный суммарным размером значений в байтах, а не числом записей.
+ * Вес записи передаёт тот, кто кладёт её в кэш; обычно это размер сериализованного значения.
+ *
+ * Политика — W-TinyLFU. Новые записи попадают в маленькое LRU-окно (1% бюджета), вытесненная из окна
+ * запись становится кандидатом в основную LRU-область и попадает туда, только если к ней обращались чаще,
+ * чем к записям, которые придётся ради неё вытеснить. Частоты приблизительно считает count-min sketch
+ * из 4-битных счётчиков, которые делятся пополам после каждых 10 * size() обращений, так что старая
+ * популярность забывается. Поэтому однократный проход по большому числу ключей не вымывает из кэша
+ * часто читаемые значения.
+ *
+ * Все методы синхронизированы.
+ */
+public class TinyLfuCache<K, V> {
+    private static final int WINDOW_PERCENT = 1;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int MAX_FREQUENCY = 15;
+    private static final int MIN_SKETCH_WIDTH = 1 << 10;
+    private static final int MAX_SKETCH_WIDTH = 1 << 20;
+    private static final int MIN_SAMPLE_ENTRIES = 64;
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+        0xD6E8FEB86659FD93L};
+
+    private final long maxBytes;
+    private final long maxWindowBytes;
+
+    private final LinkedHashMap<K, Entry<V>> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Entry<V>> main = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes;
+    private long mainBytes;
+
+    /**
+     * Count-min sketch: SKETCH_DEPTH строк по sketchMask + 1 счётчиков
+     */
+    private final byte[] sketch;
+    private final int sketchMask;
+    private int additions;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * @param maxBytes сколько байт значений можно держать в кэше
+     */
+    public TinyLfuCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.maxWindowBytes = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+        // Примерно по счётчику на каждые 64 байта бюджета
+        long width = Long.highestOneBit(Math.max(MIN_SKETCH_WIDTH, Math.min(MAX_SKETCH_WIDTH, maxBytes / 64)));
+        sketch = new byte[SKETCH_DEPTH * (int) width];
+        sketchMask = (int) width - 1;
+    }
+
+    /**
+     * Возвращает значение из кэша или null и учитывает обращение к ключу.
+     */
+    public synchronized V get(K key) {
+        recordAccess(key);
+        Entry<V> entry = window.get(key);
+        if (entry == null) {
+            entry = main.get(key);
+        }
+        if (entry == null) {
+            ++missCount;
+            return null;
+        }
+        ++hitCount;
+        return entry.value;
+    }
+
+    /**
+     * Кладёт значение в кэш, заменяя старое. Значение тяжелее всего бюджета не кэшируется.
+     *
+     * @param weight размер значения в байтах
+     */
+    public synchronized void put(K key, V value, long weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Negative weight: " + weight);
+        }
+        invalidate(key);
+        if (weight > maxBytes) {
+            return;
+        }
+        recordAccess(key);
+        window.put(key, new Entry<>(value, weight));
+        windowBytes += weight;
+
+        Iterator<Map.Entry<K, Entry<V>>> eldest = window.entrySet().iterator();
+        while (windowBytes > maxWindowBytes) {
+            Map.Entry<K, Entry<V>> candidate = eldest.next();
+            eldest.remove();
+            windowBytes -= candidate.getValue().weight;
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    public synchronized void invalidate(K key) {
+        Entry<V> entry = window.remove(key);
+        if (entry != null) {
+            windowBytes -= entry.weight;
+        }
+        entry = main.remove(key);
+        if (entry != null) {
+            mainBytes -= entry.weight;
+        }
+    }
+
+    public synchronized void clear() {
+        window.clear();
+        main.clear();
+        windowBytes = 0;
+        mainBytes = 0;
+    }
+
+    /**
+     * @return суммарный вес значений в кэше
+     */
+    public synchronized long weightedSize() {
+        return windowBytes + mainBytes;
+    }
+
+    public synchronized int size() {
+        return window.size() + main.size();
+    }
+
+    public synchronized long hitCount() {
+        return hitCount;
+    }
+
+    public synchronized long missCount() {
+        return missCount;
+    }
+
+    /**
+     * @return сколько записей было вытеснено или не допущено в кэш из-за нехватки места
+     */
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Переносит вытесненную из окна запись в основную область, если она популярнее всех, кого придётся вытеснить.
+     * Сначала решается, допускать ли кандидата, и только потом вытесняются жертвы, так что отвергнутый кандидат
+     * ничего из основной области не вытесняет.
+     */
+    private void admit(K key, Entry<V> candidate) {
+        int candidateFrequency = frequency(key);
+        long maxMainBytes = maxBytes - maxWindowBytes;
+        long freedBytes = 0;
+        int victims = 0;
+        Iterator<Map.Entry<K, Entry<V>>> eldest = main.entrySet().iterator();
+        while (mainBytes - freedBytes + candidate.weight > maxMainBytes) {
+            if (!eldest.hasNext()) {
+                ++evictionCount;
+                return;
+            }
+            Map.Entry<K, Entry<V>> victim = eldest.next();
+            if (candidateFrequency <= frequency(victim.getKey())) {
+                ++evictionCount;
+                return;
+            }
+            freedBytes += victim.getValue().weight;
+            ++victims;
+        }
+
+        eldest = main.entrySet().iterator();
+        for (int i = 0; i < victims; ++i) {
+            eldest.next();
+            eldest.remove();
+        }
+        mainBytes -= freedBytes;
+        evictionCount += victims;
+        main.put(key, candidate);
+        mainBytes += candidate.weight;
+    }
+
+    private void recordAccess(K key) {
+        int hash = spread(key.hashCode());
+        for (int row = 0; row < SKETCH_DEPTH; ++row) {
+            int index = counterIndex(hash, row);
+            if (sketch[index] < MAX_FREQUENCY) {
+                ++sketch[index];
+            }
+        }
+        if (++additions >= 10 * Math.max(MIN_SAMPLE_ENTRIES, size())) {
+            for (int i = 0; i < sketch.length; ++i) {
+                sketch[i] >>= 1;
+            }
+            additions /= 2;
+        }
+    }
+
+    private int frequency(K key) {
+        int hash = spread(key.hashCode());
+        int result = MAX_FREQUENCY;
+        for (int row = 0; row < SKETCH_DEPTH; ++row) {
+            result = Math.min(result, sketch[counterIndex(hash, row)]);
+        }
+        return result;
+    }
+
+    private int counterIndex(int hash, int row) {
+        long mixed = (hash + SEEDS[row]) * SEEDS[row];
+        return row * (sketchMask + 1) + ((int) (mixed >>> 32) & sketchMask);
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package ru.mipt.java2016.homework.base.task2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал упреждающей записи для {@link KeyValueStorage}.
+ *
+ * Хранилище сериализует каждое изменение в массив байт и вызывает {@link #append(byte[])} до того, как применить его
+ * к данным в памяти. При открытии журнал отдаёт все сохранённые записи в порядке добавления, и хранилище может
+ * восстановить то, что не успело попасть в свои файлы. Когда данные в памяти сброшены на диск (например, в
+ * {@link KeyValueStorage#flush()}), журнал можно очистить через {@link #reset()}.
+ *
+ * Формат записи: int длина, int CRC32 содержимого, содержимое. Оборванная или испорченная запись в конце файла
+ * (например, после падения посреди записи) при открытии отбрасывается вместе со всем, что после неё.
+ *
+ * Записи копятся в буфере и пишутся на диск пачками (group commit): одна последовательная запись и один fsync
+ * на всех, кто успел добавить записи к этому моменту. При syncIntervalMillis == 0 {@link #append(byte[])} возвращает
+ * управление только после fsync своей записи. При syncIntervalMillis &gt; 0 append не ждёт диска, а буфер сбрасывается
+ * фоновым потоком раз в syncIntervalMillis миллисекунд, то есть при падении теряется не больше последнего интервала.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final int HEADER_SIZE = 8;
+
+    private final FileChannel channel;
+    private final long syncIntervalMillis;
+    private final ScheduledExecutorService syncExecutor;
+
+    private final Object lock = new Object();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final CRC32 crc = new CRC32();
+    private long appendedCount;
+    private long durableCount;
+    private boolean syncing;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * Открывает журнал и отдаёт replayHandler все целые записи из него в порядке добавления.
+     *
+     * @param file               файл журнала, создаётся, если его нет
+     * @param syncIntervalMillis как часто сбрасывать буфер на диск; 0 — синхронно на каждый append
+     * @param replayHandler      получает сохранённые записи; может быть null
+     */
+    public WriteAheadLog(Path file, long syncIntervalMillis, Consumer<byte[]> replayHandler) throws IOException {
+        if (syncIntervalMillis < 0) {
+            throw new IllegalArgumentException("Negative sync interval: " + syncIntervalMillis);
+        }
+        this.syncIntervalMillis = syncIntervalMillis;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            replay(replayHandler);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (syncIntervalMillis > 0) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-sync-" + file.getFileName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncExecutor.scheduleWithFixedDelay(this::backgroundSync,
+                    syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncExecutor = null;
+        }
+    }
+
+    /**
+     * Добавляет запись в журнал.
+     *
+     * @return номер записи, который можно передать в {@link #sync(long)}
+     */
+    public long append(byte[] record) throws IOException {
+        long number;
+        synchronized (lock) {
+            checkState();
+            crc.reset();
+            crc.update(record, 0, record.length);
+            writeInt(record.length);
+            writeInt((int) crc.getValue());
+            pending.write(record, 0, record.length);
+            number = ++appendedCount;
+        }
+        if (syncIntervalMillis == 0) {
+            sync(number);
+        }
+        return number;
+    }
+
+    /**
+     * Дожидается, пока все добавленные к моменту вызова записи окажутся на диске.
+     */
+    public void sync() throws IOException {
+        long number;
+        synchronized (lock) {
+            number = appendedCount;
+        }
+        sync(number);
+    }
+
+    /**
+     * Дожидается, пока запись с данным номером и все предыдущие окажутся на диске. Если диском сейчас никто
+     * не занимается, сам пишет всё накопленное, иначе ждёт текущую пачку и, если её не хватило, пишет следующую.
+     */
+    public void sync(long number) throws IOException {
+        while (true) {
+            byte[] batch;
+            long batchCount;
+            synchronized (lock) {
+                while (durableCount < number && syncing && failure == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for log sync");
+                    }
+                }
+                if (failure != null) {
+                    throw new IOException("Write-ahead log is broken", failure);
+                }
+                if (durableCount >= number) {
+                    return;
+                }
+                syncing = true;
+                batch = pending.toByteArray();
+                batchCount = appendedCount;
+                pending.reset();
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (lock) {
+                syncing = false;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableCount = batchCount;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Очищает журнал. Вызывать, когда всё, что в нём было, уже сохранено в основных файлах хранилища,
+     * и так, чтобы параллельно никто не добавлял записи.
+     */
+    public void reset() throws IOException {
+        sync();
+        synchronized (lock) {
+            checkState();
+            while (syncing) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for log sync");
+                }
+            }
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            if (syncExecutor != null) {
+                syncExecutor.shutdown();
+                // Уже начавшийся фоновый сброс должен закончиться до закрытия канала
+                try {
+                    syncExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for background sync");
+                }
+            }
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void replay(Consumer<byte[]> replayHandler) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || length > size - position - HEADER_SIZE) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(record, position + HEADER_SIZE);
+            crc.reset();
+            crc.update(record.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            if (replayHandler != null) {
+                replayHandler.accept(record.array());
+            }
+            position += HEADER_SIZE + length;
+        }
+        if (position < size) {
+            channel.truncate(position);
+            channel.force(false);
+        }
+        channel.position(position);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of write-ahead log");
+            }
+        }
+    }
+
+    private void backgroundSync() {
+        try {
+            sync();
+        } catch (IOException e) {
+            // Ошибка уже сохранена в failure и вылетит из следующего append или sync
+        }
+    }
+
+    private void writeInt(int value) {
+        pending.write(value >>> 24);
+        pending.write(value >>> 16);
+        pending.write(value >>> 8);
+        pending.write(value);
+    }
+
+    private void checkState() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Write-ahead log is closed");
+        }
+        if (failure != null) {
+            throw new IOException("Write-ahead log is broken", failure);
+        }
+    }
+}
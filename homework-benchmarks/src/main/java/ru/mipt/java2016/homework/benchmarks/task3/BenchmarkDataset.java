@@ -0,0 +1,56 @@
+package ru.mipt.java2016.homework.benchmarks.task3;
+
+import static ru.mipt.java2016.homework.tests.task3.PerformanceTestUtils.randomKey;
+import static ru.mipt.java2016.homework.tests.task3.PerformanceTestUtils.randomValue;
+
+import java.util.Random;
+
+/**
+ * Заранее сгенерированные ключи и значения, чтобы генерация данных не попадала в измерения.
+ * <p>
+ * Ключи все различны. Значения берутся по кругу из небольшого пула: 64K значений по 8 КБ не поместятся в память
+ * рядом с хранилищем, а для хранилища важен только их размер.
+ */
+public class BenchmarkDataset {
+    public static final int VALUE_POOL_SIZE = 64;
+    public static final long SEED = 42;
+
+    private final String[] keys;
+    private final String[] values;
+    private final int[] randomIndices;
+
+    public BenchmarkDataset(int size) {
+        Random random = new Random(SEED);
+        keys = new String[size];
+        for (int i = 0; i < size; ++i) {
+            keys[i] = randomKey(random);
+        }
+        values = new String[VALUE_POOL_SIZE];
+        for (int i = 0; i < VALUE_POOL_SIZE; ++i) {
+            values[i] = randomValue(random);
+        }
+        randomIndices = new int[size];
+        for (int i = 0; i < size; ++i) {
+            randomIndices[i] = random.nextInt(size);
+        }
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public String key(int index) {
+        return keys[index];
+    }
+
+    public String value(int index) {
+        return values[Math.floorMod(index, VALUE_POOL_SIZE)];
+    }
+
+    /**
+     * Детерминированная псевдослучайная последовательность индексов из [0, size).
+     */
+    public int randomIndex(int step) {
+        return randomIndices[(step & Integer.MAX_VALUE) % randomIndices.length];
+    }
+}
@@ -0,0 +1,42 @@
+package ru.mipt.java2016.homework.benchmarks.task3;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Запуск всех бенчмарков хранилища для одной реализации {@code KeyValueStorageFactories}.
+ * <p>
+ * Пропускная способность (ops/s) и перцентили задержки (p50/p99) считаются режимами Throughput и SampleTime,
+ * аллокации на операцию - профайлером GC (метрика gc.alloc.rate.norm).
+ * <pre>
+ * mvn -pl homework-benchmarks -am package
+ * java -cp homework-benchmarks/target/benchmarks.jar:homework-g594-sharuev/target/classes:\
+ *     homework-g594-sharuev/target/test-classes \
+ *     ru.mipt.java2016.homework.benchmarks.task3.BenchmarkRunner \
+ *     ru.mipt.java2016.homework.g594.sharuev.task3.OptimizedKvsPerformanceTest [regexp]
+ * </pre>
+ */
+public class BenchmarkRunner {
+    private BenchmarkRunner() {
+        // Cannot instantiate
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        if (args.length < 1) {
+            System.err.println("Usage: BenchmarkRunner <factories class> [benchmark regexp]");
+            System.exit(1);
+        }
+        String include = args.length > 1 ? args[1] : BenchmarkRunner.class.getPackage().getName() + ".*Benchmark";
+        Options options = new OptionsBuilder()
+                .include(include)
+                .param(StorageBenchmarkSupport.FACTORIES_PARAM, args[0])
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.CSV)
+                .build();
+        new Runner(options).run();
+    }
+}
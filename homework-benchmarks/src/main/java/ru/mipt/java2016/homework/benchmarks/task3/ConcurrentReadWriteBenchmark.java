@@ -0,0 +1,87 @@
+package ru.mipt.java2016.homework.benchmarks.task3;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
+
+/**
+ * Несколько потоков работают с одним хранилищем, в котором заранее записано {@code DATASET_SIZE} пар:
+ * {@code writePercent} процентов операций перезаписывают случайный ключ, остальные его читают.
+ * <p>
+ * Число потоков задаётся опцией JMH {@code -t}; {@link ConcurrentScalingRunner} прогоняет бенчмарк
+ * на 1, 2, 4, ... потоках и печатает ускорение относительно одного потока.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx64M")
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConcurrentReadWriteBenchmark {
+    public static final int DATASET_SIZE = 4096;
+
+    @State(Scope.Benchmark)
+    public static class SharedStorage {
+        @Param("")
+        private String factories;
+
+        @Param({"0", "10", "50"})
+        private int writePercent;
+
+        private BenchmarkDataset dataset;
+        private Path path;
+        private KeyValueStorage<String, String> storage;
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void fill() throws IOException {
+            StorageFactoryAdapter adapter = StorageBenchmarkSupport.adapter(factories);
+            dataset = new BenchmarkDataset(DATASET_SIZE);
+            path = StorageBenchmarkSupport.createTempDirectory();
+            storage = adapter.buildStringsStorage(path.toString());
+            StorageBenchmarkSupport.fill(storage, dataset, DATASET_SIZE);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            StorageBenchmarkSupport.closeIfOpened(storage);
+            StorageBenchmarkSupport.deleteDirectory(path);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int step;
+
+        @Setup(Level.Trial)
+        public void spread(SharedStorage shared) {
+            // Потоки идут по одной последовательности с разных мест, чтобы не читать одни и те же ключи
+            step = shared.threadCount.getAndIncrement() * (DATASET_SIZE / 16);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    public String readOrWrite(SharedStorage shared, Cursor cursor) {
+        int step = cursor.step++;
+        int index = shared.dataset.randomIndex(step);
+        if ((step & Integer.MAX_VALUE) % 100 < shared.writePercent) {
+            shared.storage.write(shared.dataset.key(index), shared.dataset.value(step));
+            return null;
+        }
+        return shared.storage.read(shared.dataset.key(index));
+    }
+}
@@ -0,0 +1,70 @@
+package ru.mipt.java2016.homework.benchmarks.task3;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Прогоняет {@link ConcurrentReadWriteBenchmark} на 1, 2, 4, ... потоках (до числа ядер или заданного максимума)
+ * и печатает пропускную способность и ускорение относительно одного потока для каждой доли записей.
+ * <pre>
+ * java -cp homework-benchmarks/target/benchmarks.jar:homework-g595-topilskiy/target/classes:\
+ *     homework-g595-topilskiy/target/test-classes \
+ *     ru.mipt.java2016.homework.benchmarks.task3.ConcurrentScalingRunner \
+ *     ru.mipt.java2016.homework.g595.topilskiy.task3.OptimisedByteKeyValueStoragePerformanceTest [max threads]
+ * </pre>
+ */
+public class ConcurrentScalingRunner {
+    private ConcurrentScalingRunner() {
+        // Cannot instantiate
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        if (args.length < 1) {
+            System.err.println("Usage: ConcurrentScalingRunner <factories class> [max threads]");
+            System.exit(1);
+        }
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(maxThreads);
+
+        // writePercent -> (threads -> ops/us)
+        Map<String, Map<Integer, Double>> scores = new LinkedHashMap<>();
+        for (int threads : threadCounts) {
+            Options options = new OptionsBuilder()
+                    .include(ConcurrentReadWriteBenchmark.class.getName())
+                    .param(StorageBenchmarkSupport.FACTORIES_PARAM, args[0])
+                    .mode(Mode.Throughput)
+                    .threads(threads)
+                    .build();
+            Collection<RunResult> results = new Runner(options).run();
+            for (RunResult result : results) {
+                String writePercent = result.getParams().getParam("writePercent");
+                scores.computeIfAbsent(writePercent, key -> new LinkedHashMap<>())
+                        .put(threads, result.getPrimaryResult().getScore());
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-8s %-8s %14s %8s%n", "write%", "threads", "ops/us", "speedup");
+        for (Map.Entry<String, Map<Integer, Double>> entry : scores.entrySet()) {
+            double single = entry.getValue().getOrDefault(1, Double.NaN);
+            for (Map.Entry<Integer, Double> score : entry.getValue().entrySet()) {
+                System.out.printf("%-8s %-8d %14.3f %7.2fx%n", entry.getKey(), score.getKey(),
+                        score.getValue(), score.getValue() / single);
+            }
+        }
+    }
+}
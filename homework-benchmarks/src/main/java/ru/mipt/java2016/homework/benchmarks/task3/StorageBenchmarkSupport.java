@@ -0,0 +1,49 @@
+package ru.mipt.java2016.homework.benchmarks.task3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.apache.commons.io.FileUtils;
+import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
+
+/**
+ * Хранилище во временной директории, которая удаляется вместе с ним.
+ */
+public class StorageBenchmarkSupport {
+    public static final String FACTORIES_PARAM = "factories";
+
+    private StorageBenchmarkSupport() {
+        // Cannot instantiate
+    }
+
+    public static StorageFactoryAdapter adapter(String factoriesClassName) {
+        if (factoriesClassName == null || factoriesClassName.isEmpty()) {
+            throw new IllegalArgumentException("Specify KeyValueStorageFactories implementation with -p "
+                    + FACTORIES_PARAM + "=<class name>");
+        }
+        return new StorageFactoryAdapter(factoriesClassName);
+    }
+
+    public static Path createTempDirectory() throws IOException {
+        return Files.createTempDirectory(new File(".").toPath(), "benchmark_task_3");
+    }
+
+    public static void deleteDirectory(Path path) throws IOException {
+        if (path != null) {
+            FileUtils.deleteDirectory(path.toFile());
+        }
+    }
+
+    public static void fill(KeyValueStorage<String, String> storage, BenchmarkDataset dataset, int count) {
+        for (int i = 0; i < count; ++i) {
+            storage.write(dataset.key(i), dataset.value(i));
+        }
+    }
+
+    public static void closeIfOpened(KeyValueStorage<?, ?> storage) throws IOException {
+        if (storage != null) {
+            storage.close();
+        }
+    }
+}
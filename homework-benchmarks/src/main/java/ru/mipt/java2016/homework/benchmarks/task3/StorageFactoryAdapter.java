@@ -0,0 +1,56 @@
+package ru.mipt.java2016.homework.benchmarks.task3;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
+import ru.mipt.java2016.homework.tests.task3.KeyValueStorageFactories;
+
+/**
+ * Позволяет строить хранилища через любую реализацию {@link KeyValueStorageFactories}, заданную именем класса.
+ * Фабричные методы у {@link KeyValueStorageFactories} защищенные, поэтому вызываются через reflection.
+ */
+public class StorageFactoryAdapter {
+    private final KeyValueStorageFactories factories;
+    private final Method buildStringsStorage;
+
+    public StorageFactoryAdapter(String factoriesClassName) {
+        try {
+            Class<?> clazz = Class.forName(factoriesClassName);
+            if (!KeyValueStorageFactories.class.isAssignableFrom(clazz)) {
+                throw new IllegalArgumentException(
+                        factoriesClassName + " is not a subclass of " + KeyValueStorageFactories.class.getName());
+            }
+            factories = (KeyValueStorageFactories) clazz.newInstance();
+            buildStringsStorage = findMethod(clazz, "buildStringsStorage");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot instantiate factories " + factoriesClassName, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public KeyValueStorage<String, String> buildStringsStorage(String path) {
+        try {
+            return (KeyValueStorage<String, String>) buildStringsStorage.invoke(factories, path);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot build storage", e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Cannot build storage", e.getCause());
+        }
+    }
+
+    private static Method findMethod(Class<?> clazz, String name) throws NoSuchMethodException {
+        for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+            try {
+                Method method = current.getDeclaredMethod(name, String.class);
+                method.setAccessible(true);
+                return method;
+            } catch (NoSuchMethodException ignored) {
+                // Ищем выше по иерархии
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+}
@@ -0,0 +1,75 @@
+package ru.mipt.java2016.homework.benchmarks.task3;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
+
+/**
+ * Аналог {@code KeyValueStoragePerformanceTest.innerMeasureWriteAndReadBack}: в открытое хранилище записано
+ * {@code writeSize} пар, после чего по кругу читаются первые {@code readSize} ключей.
+ * Проверяет, насколько хорошо хранилище обслуживает повторные чтения.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx64M")
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WriteAndReadBackBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ReadBackState {
+        @Param("")
+        private String factories;
+
+        @Param({"1024", "4096", "16384", "65536"})
+        private int writeSize;
+
+        @Param({"32", "256"})
+        private int readSize;
+
+        private BenchmarkDataset dataset;
+        private Path path;
+        private KeyValueStorage<String, String> storage;
+
+        @Setup(Level.Trial)
+        public void fill() throws IOException {
+            StorageFactoryAdapter adapter = StorageBenchmarkSupport.adapter(factories);
+            dataset = new BenchmarkDataset(writeSize);
+            path = StorageBenchmarkSupport.createTempDirectory();
+            storage = adapter.buildStringsStorage(path.toString());
+            StorageBenchmarkSupport.fill(storage, dataset, writeSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            StorageBenchmarkSupport.closeIfOpened(storage);
+            StorageBenchmarkSupport.deleteDirectory(path);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position;
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    public String readBack(ReadBackState state, Cursor cursor) {
+        int index = cursor.position;
+        cursor.position = index + 1 == state.readSize ? 0 : index + 1;
+        return state.storage.read(state.dataset.key(index));
+    }
+}
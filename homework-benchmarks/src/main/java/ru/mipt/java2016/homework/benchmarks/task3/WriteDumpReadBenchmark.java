@@ -0,0 +1,138 @@
+package ru.mipt.java2016.homework.benchmarks.task3;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
+
+/**
+ * Аналог {@code KeyValueStoragePerformanceTest.innerMeasureWriteDumpRead}: запись {@code size} пар,
+ * сброс на диск при закрытии и чтение после повторного открытия. Каждая фаза меряется отдельно.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx64M")
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WriteDumpReadBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Dataset {
+        @Param("")
+        private String factories;
+
+        @Param({"1024", "4096", "16384", "65536"})
+        private int size;
+
+        private StorageFactoryAdapter adapter;
+        private BenchmarkDataset dataset;
+
+        @Setup(Level.Trial)
+        public void generate() {
+            adapter = StorageBenchmarkSupport.adapter(factories);
+            dataset = new BenchmarkDataset(size);
+        }
+    }
+
+    /**
+     * Пустое хранилище на каждую итерацию; ключи перезаписываются по кругу, если итерация длиннее датасета.
+     */
+    @State(Scope.Thread)
+    public static class WriteState {
+        private Path path;
+        private KeyValueStorage<String, String> storage;
+        private int cursor;
+
+        @Setup(Level.Iteration)
+        public void open(Dataset dataset) throws IOException {
+            path = StorageBenchmarkSupport.createTempDirectory();
+            storage = dataset.adapter.buildStringsStorage(path.toString());
+            cursor = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() throws IOException {
+            StorageBenchmarkSupport.closeIfOpened(storage);
+            StorageBenchmarkSupport.deleteDirectory(path);
+        }
+    }
+
+    /**
+     * Заполненное, но еще не закрытое хранилище; подготовка не входит в измерение.
+     */
+    @State(Scope.Thread)
+    public static class DumpState {
+        private Path path;
+        private KeyValueStorage<String, String> storage;
+
+        @Setup(Level.Invocation)
+        public void fill(Dataset dataset) throws IOException {
+            path = StorageBenchmarkSupport.createTempDirectory();
+            storage = dataset.adapter.buildStringsStorage(path.toString());
+            StorageBenchmarkSupport.fill(storage, dataset.dataset, dataset.size);
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete() throws IOException {
+            StorageBenchmarkSupport.deleteDirectory(path);
+        }
+    }
+
+    /**
+     * Хранилище, которое заполнили, закрыли и открыли заново.
+     */
+    @State(Scope.Thread)
+    public static class ReadState {
+        private Path path;
+        private KeyValueStorage<String, String> storage;
+        private int step;
+
+        @Setup(Level.Trial)
+        public void fillAndReopen(Dataset dataset) throws IOException {
+            path = StorageBenchmarkSupport.createTempDirectory();
+            try (KeyValueStorage<String, String> writer = dataset.adapter.buildStringsStorage(path.toString())) {
+                StorageBenchmarkSupport.fill(writer, dataset.dataset, dataset.size);
+            }
+            storage = dataset.adapter.buildStringsStorage(path.toString());
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            StorageBenchmarkSupport.closeIfOpened(storage);
+            StorageBenchmarkSupport.deleteDirectory(path);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    public void write(Dataset dataset, WriteState state) {
+        int index = state.cursor;
+        state.storage.write(dataset.dataset.key(index), dataset.dataset.value(index));
+        state.cursor = index + 1 == dataset.size ? 0 : index + 1;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void dump(DumpState state) throws IOException {
+        state.storage.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    public String read(Dataset dataset, ReadState state) {
+        return state.storage.read(dataset.dataset.key(dataset.dataset.randomIndex(state.step++)));
+    }
+}
@@ -0,0 +1,89 @@
+package ru.mipt.java2016.homework.benchmarks.task3;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
+
+/**
+ * Аналог {@code KeyValueStoragePerformanceTest.innerMeasureWriteReadChain}: чередование записи пачки из
+ * {@code batchSize} новых ключей и чтения {@code 2 * batchSize} уже записанных.
+ * <p>
+ * Одна операция бенчмарка - одно такое поколение.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx64M")
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WriteReadChainBenchmark {
+    public static final int DATASET_SIZE = 32768;
+
+    @State(Scope.Benchmark)
+    public static class Dataset {
+        @Param("")
+        private String factories;
+
+        private StorageFactoryAdapter adapter;
+        private BenchmarkDataset dataset;
+
+        @Setup(Level.Trial)
+        public void generate() {
+            adapter = StorageBenchmarkSupport.adapter(factories);
+            dataset = new BenchmarkDataset(DATASET_SIZE);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ChainState {
+        @Param({"2", "4", "8", "16"})
+        private int batchSize;
+
+        private Path path;
+        private KeyValueStorage<String, String> storage;
+        private int written;
+        private int step;
+
+        @Setup(Level.Iteration)
+        public void open(Dataset dataset) throws IOException {
+            path = StorageBenchmarkSupport.createTempDirectory();
+            storage = dataset.adapter.buildStringsStorage(path.toString());
+            StorageBenchmarkSupport.fill(storage, dataset.dataset, batchSize);
+            written = batchSize;
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() throws IOException {
+            StorageBenchmarkSupport.closeIfOpened(storage);
+            StorageBenchmarkSupport.deleteDirectory(path);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    public void generation(Dataset dataset, ChainState state, Blackhole blackhole) {
+        BenchmarkDataset data = dataset.dataset;
+        for (int i = 0; i < state.batchSize; ++i) {
+            int index = state.written % DATASET_SIZE;
+            state.storage.write(data.key(index), data.value(index));
+            ++state.written;
+        }
+        int bound = Math.min(state.written, DATASET_SIZE);
+        for (int i = 0; i < 2 * state.batchSize; ++i) {
+            blackhole.consume(state.storage.read(data.key(data.randomIndex(state.step++) % bound)));
+        }
+    }
+}
@@ -1,130 +1,184 @@
 package ru.mipt.java2016.homework.g594.sharuev.task3;
 
-import java.io.*;
-import java.nio.file.Paths;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.PriorityQueue;
-
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Part'ы разбиты на уровни по размеру: на уровне L лежат part'ы не больше
+ * (DUMP_THRESHOLD + 1) * COMPACTION_FANOUT^L записей. Как только на одном уровне
+ * набирается COMPACTION_FANOUT подряд идущих part'ов, они k-way сливаются в фоне
+ * в один part следующего уровня. Пока идёт слияние, чтение работает со старыми part'ами,
+ * подмена происходит под монитором хранилища.
+ */
 public class KWayOptimizedKvs<K, V> extends OptimizedKvs<K, V> {
 
-    static final int MERGE_BUFFER_SIZE = Consts.MAX_VALUE_SIZE * Consts.DUMP_THRESHOLD / Consts.MERGE_THRESHOLD;
+    private static final int COMPACTION_FANOUT = 4;
+    private static final int MAX_CONCURRENT_COMPACTIONS = 2;
+
+    private final ThreadPoolExecutor compactionExecutor;
+    // Part'ы, которые сейчас сливаются в фоне
+    private final Set<Part> compacting = Sets.newIdentityHashSet();
+    private int runningCompactions;
+    private Throwable compactionFailure;
+    private boolean closing;
 
     public KWayOptimizedKvs(String path, SerializationStrategy<K> keySerializationStrategy,
                             SerializationStrategy<V> valueSerializationStrategy,
                             Comparator<K> comparator) throws KVSException {
         super(path, keySerializationStrategy, valueSerializationStrategy, comparator);
-    }
-
-    private class MergePart implements Comparable {
-        private K key;
-        private int index;
-
-        MergePart(K key, int index) {
-            this.key = key;
-            this.index = index;
-        }
-
-        @Override
-        public int compareTo(Object o) {
-            int cmp = comparator.compare(key, ((MergePart) o).key);
-            if (cmp != 0) {
-                return cmp;
-            }
-            return this.index < ((MergePart) o).index ? -1 : (this.index == ((MergePart) o).index ? 0 : 1);
-        }
+        compactionExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_COMPACTIONS, MAX_CONCURRENT_COMPACTIONS,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("kvs-compaction-%d").build());
+        compactionExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
-     * Сложность O(Nlog(N))
+     * Сливает все части разом k-way слиянием через очередь с приоритетом.
+     * Сложность O(Nlog(k))
      *
      * @throws IOException
      */
     protected void mergeFiles() throws IOException {
         assert parts.size() >= 2;
+        assert runningCompactions == 0;
 
-        PriorityQueue<MergePart> priorityQueue = new PriorityQueue<MergePart>();
-        File bigFile = parts.getFirst().file;
-
-        File tempFile = Paths.get(path,
-                dbName + "Temp" + OptimizedKvs.Consts.STORAGE_PART_SUFF).toFile();
-        if (!tempFile.createNewFile()) {
-            throw new KVSException("Temp file already exists");
-        }
-        OptimizedKvs.Part newPart = new OptimizedKvs.Part(new RandomAccessFile(tempFile, "rw"),
-                tempFile);
-        DataOutputStream out = bdosFromRaf(newPart.raf, OptimizedKvs.Consts.BUFFER_SIZE);
+        Part merged = mergeParts(new ArrayList<>(parts), true);
+        parts.clear();
+        parts.addFirst(merged);
+    }
 
-        ArrayList<DataInputStream> diss = new ArrayList<>();
-        ArrayList<Iterator<K>> iters = new ArrayList<>();
-        int i = 0;
-        for (OptimizedKvs.Part part : parts) {
-            part.raf.seek(0);
-            diss.add(bdisFromRaf(part.raf, MERGE_BUFFER_SIZE));
-            Iterator<K> iter = part.keys.iterator();
-            K firstKey = iter.hasNext() ? iter.next() : null;
-            iters.add(iter);
-            if (firstKey != null) {
-                priorityQueue.add(new MergePart(firstKey, i));
+    /**
+     * Запускает фоновые слияния. Если part'ов всё равно слишком много, ждёт,
+     * пока фоновые слияния их разгребут, чтобы не копить файлы бесконечно.
+     */
+    @Override
+    protected void onPartDumped() throws IOException {
+        checkCompactionFailure();
+        scheduleCompactions();
+        while (parts.size() > Consts.MERGE_THRESHOLD && runningCompactions > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KVSException("Interrupted while waiting for compaction", e);
             }
-            ++i;
+            checkCompactionFailure();
+        }
+        if (parts.size() > Consts.MERGE_THRESHOLD) {
+            mergeFiles();
         }
+    }
 
+    @Override
+    public synchronized void close() throws IOException {
+        closing = true;
         try {
-            while (!priorityQueue.isEmpty()) {
-                MergePart top = priorityQueue.peek();
-                priorityQueue.poll();
+            while (runningCompactions > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVSException("Interrupted while waiting for compaction", e);
+        } finally {
+            compactionExecutor.shutdown();
+        }
+        super.close();
+        checkCompactionFailure();
+    }
 
-                if (indexTable.containsKey(top.key)) {
-                    newPart.keys.add(top.key);
-                    newPart.offsets.add(out.size());
-                    valueSerializationStrategy.serializeToStream(
-                            valueSerializationStrategy.deserializeFromStream(diss.get(top.index)),
-                            out);
-                    if (iters.get(top.index).hasNext()) {
-                        K nextKey = iters.get(top.index).next();
-                        priorityQueue.add(new MergePart(nextKey, top.index));
-                    }
-                } else {
-                    valueSerializationStrategy.deserializeFromStream(diss.get(top.index));
-                    if (iters.get(top.index).hasNext()) {
-                        K nextKey = iters.get(top.index).next();
-                        priorityQueue.add(new MergePart(nextKey, top.index));
-                    }
-                }
+    private void scheduleCompactions() {
+        while (!closing && runningCompactions < MAX_CONCURRENT_COMPACTIONS) {
+            List<Part> run = pickRun();
+            if (run == null) {
+                return;
             }
-        } catch (SerializationException e) {
-            throw new KVSException("Failed to dump SSTable to file", e);
+            // Tombstone'ы можно выкинуть, только если старше этих part'ов ничего нет
+            boolean dropTombstones = run.get(0) == parts.getFirst();
+            compacting.addAll(run);
+            ++runningCompactions;
+            compactionExecutor.execute(() -> compact(run, dropTombstones));
         }
+    }
 
-        out.flush();
-        out.close();
+    /**
+     * @return самую новую группу из COMPACTION_FANOUT подряд идущих part'ов одного уровня,
+     * ни один из которых сейчас не сливается, или null.
+     */
+    private List<Part> pickRun() {
+        List<Part> ordered = new ArrayList<>(parts);
+        int runLength = 0;
+        int runLevel = -1;
+        for (int i = ordered.size() - 1; i >= 0; --i) {
+            Part part = ordered.get(i);
+            int level = levelOf(part);
+            if (compacting.contains(part)) {
+                runLength = 0;
+                runLevel = -1;
+                continue;
+            }
+            if (level == runLevel) {
+                ++runLength;
+            } else {
+                runLength = 1;
+                runLevel = level;
+            }
+            if (runLength == COMPACTION_FANOUT) {
+                return new ArrayList<>(ordered.subList(i, i + COMPACTION_FANOUT));
+            }
+        }
+        return null;
+    }
 
-        newPart.raf.close();
-        OptimizedKvs.Part bigPart = parts.getFirst();
-        parts.pollFirst();
-        if (!newPart.file.renameTo(bigPart.file.getAbsoluteFile())) {
-            throw new KVSException(
-                    String.format("Can't rename temp file %s", newPart.file.getName()));
+    private int levelOf(Part part) {
+        int level = 0;
+        long capacity = Consts.DUMP_THRESHOLD + 1;
+        while (part.entryCount > capacity) {
+            capacity *= COMPACTION_FANOUT;
+            ++level;
         }
+        return level;
+    }
 
-        for (OptimizedKvs.Part part : parts) {
-            if (!part.file.delete()) {
-                throw new KVSException(
-                        String.format("Can't delete file %s", part.file.getName()));
+    private void compact(List<Part> run, boolean dropTombstones) {
+        Part merged = null;
+        Throwable failure = null;
+        try {
+            merged = writeMergedPart(run, dropTombstones);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+        synchronized (this) {
+            try {
+                if (merged != null) {
+                    replaceParts(run, merged);
+                }
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+            if (failure != null && compactionFailure == null) {
+                compactionFailure = failure;
             }
+            compacting.removeAll(run);
+            --runningCompactions;
+            if (compactionFailure == null) {
+                scheduleCompactions();
+            }
+            notifyAll();
         }
-        newPart.file = bigFile;
-        newPart.raf = new RandomAccessFile(newPart.file, "rw");
+    }
 
-        indexTable.clear();
-        for (int j = 0; j < newPart.keys.size(); ++j) {
-            indexTable.put((K) newPart.keys.get(j),
-                    new OptimizedKvs.Address(newPart, (int) newPart.offsets.get(j)));
+    private void checkCompactionFailure() throws IOException {
+        if (compactionFailure != null) {
+            throw new IOException("Background compaction failed", compactionFailure);
         }
-
-        parts.clear();
-        parts.addFirst(newPart);
     }
 }
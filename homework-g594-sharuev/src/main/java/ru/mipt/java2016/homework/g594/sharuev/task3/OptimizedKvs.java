@@ -1,97 +1,574 @@
 package ru.mipt.java2016.homework.g594.sharuev.task3;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Iterators;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.PrimitiveSink;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.primitives.Longs;
 
 import java.io.*;
-import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.zip.Adler32;
 import java.util.zip.CheckedInputStream;
 
 /**
  * Организация этой штуковины:
- * cache хранит последние обработанные пары. Поиск сначала осуществляется по нему.
+ * cache хранит последние прочитанные пары. Поиск сначала осуществляется по нему.
  * Он поддерживается актуальным в процессе всех операций с хранилищем.
- * Последние записи при превышении некоторого порога удаляются.
- * В памяти хранится MemTable. Изменение и запись осуществляются в неё.
- * Поиск сначала по ней. Если не нашли, идём в последний из indexMaps, и так далее до первого.
- * Первый и есть вся база данных. Если все эти файлы слить с первым,
- * то получится нужная копия для персистентного хранения (ещё ключи добавить).
+ * В памяти хранится MemTable. Изменение и запись осуществляются в неё, удаление - тоже, как запись надгробия
+ * (пустого значения). Переполненная MemTable сбрасывается на диск в следующий part.
+ * Part - отсортированный по ключу файл записей и файл индекса к нему. В индексе лежат фильтр Блума по ключам
+ * и разреженный индекс: каждый {@link Consts#SPARSE_INDEX_STEP}-й ключ со сдвигом его записи.
+ * В памяти держатся только фильтры и разреженные индексы, полного списка ключей нет.
+ * Поиск сначала по MemTable, потом по part'ам от последнего к первому. Part, чей фильтр не содержит ключ,
+ * пропускается; иначе читается не больше SPARSE_INDEX_STEP записей, начиная с ближайшего ключа индекса.
+ * Первый part и есть вся база данных. Если все part'ы слить в один, то получится нужная копия
+ * для персистентного хранения.
+ * Так как и MemTable, и part'ы упорядочены, диапазон ключей (scan, scanEntries) - это то же слияние,
+ * начатое с ближайшего ключа разреженного индекса в каждом part'е.
+ * flush() не сливает part'ы: MemTable сбрасывается в новый part, а список живых part'ов пишется в маленький
+ * манифест. Если манифест есть, при открытии база собирается по нему. Файлы слитых part'ов, которые ещё
+ * перечислены в манифесте, удаляются только после записи следующего манифеста. close() по-прежнему сливает
+ * всё в основной файл базы и удаляет манифест.
  *
  * @param <K>
  * @param <V>
  */
 abstract class OptimizedKvs<K, V> implements
-        ru.mipt.java2016.homework.base.task2.KeyValueStorage {
+        ru.mipt.java2016.homework.base.task2.SortedKeyValueStorage {
 
     class Part {
 
-        protected RandomAccessFile raf;
         protected File file;
-        protected DataInputStream dis;
-        protected long curPos;
-        protected ArrayList<K> keys;
-        protected ArrayList<Integer> offsets;
+        protected File indexFile;
+        protected FileChannel channel;
+        protected long dataLength;
+        protected long entryCount;
+        protected ArrayList<K> sparseKeys = new ArrayList<>();
+        protected ArrayList<Long> sparseOffsets = new ArrayList<>();
+        protected BloomFilter<K> bloomFilter;
 
-        Part(RandomAccessFile rafVal, File fileVal) throws IOException {
-            raf = rafVal;
+        Part(File fileVal, File indexFileVal) {
             file = fileVal;
-            raf.seek(0);
-            curPos = 0;
-            dis = bdisFromRaf(raf, Consts.SMALL_BUFFER_SIZE);
-            dis.mark(Consts.SMALL_BUFFER_SIZE);
-            keys = new ArrayList<>();
-            offsets = new ArrayList<>();
+            indexFile = indexFileVal;
         }
 
-        private V read(long offset) {
-            try {
-                if (offset - curPos >= 0 && offset - curPos < Consts.SMALL_BUFFER_SIZE - Consts.MAX_VALUE_SIZE - 2) {
-                    dis.reset();
-                    dis.skip(offset - curPos);
-                } else {
-                    raf.seek(offset);
-                    curPos = raf.getFilePointer();
-                    dis = bdisFromRaf(raf, Consts.SMALL_BUFFER_SIZE);
-                    dis.mark(Consts.SMALL_BUFFER_SIZE);
+        void open() throws IOException {
+            channel = new RandomAccessFile(file, "r").getChannel();
+        }
+
+        void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+
+        void delete() throws IOException {
+            close();
+            if (!file.delete() || !indexFile.delete()) {
+                throw new KVSException(String.format("Can't delete file %s", file.getName()));
+            }
+        }
+
+        /**
+         * Сложность O(log(N / SPARSE_INDEX_STEP) + SPARSE_INDEX_STEP).
+         *
+         * @return null, если ключа в part'е нет, пустое значение, если он удалён.
+         */
+        Optional<V> find(K key) throws IOException {
+            PartCursor cursor = cursorAt(key);
+            if (cursor == null) {
+                return null;
+            }
+            return cursor.deleted ? Optional.empty() : Optional.of(cursor.readValue());
+        }
+
+        /**
+         * То же, что find, но значение не читается.
+         */
+        Boolean contains(K key) throws IOException {
+            PartCursor cursor = cursorAt(key);
+            if (cursor == null) {
+                return null;
+            }
+            return !cursor.deleted;
+        }
+
+        /**
+         * Курсор, который не дальше SPARSE_INDEX_STEP записей от первого ключа больше from.
+         */
+        PartCursor cursorNear(K from, int age) {
+            int index = from == null ? 0 : Collections.binarySearch(sparseKeys, from, comparator);
+            if (index < 0) {
+                index = Math.max(-index - 2, 0);
+            }
+            long offset = sparseOffsets.isEmpty() ? 0 : sparseOffsets.get(index);
+            return new PartCursor(this, offset, age, Consts.SMALL_BUFFER_SIZE);
+        }
+
+        private PartCursor cursorAt(K key) throws IOException {
+            if (!bloomFilter.mightContain(key)) {
+                return null;
+            }
+            int index = Collections.binarySearch(sparseKeys, key, comparator);
+            if (index < 0) {
+                index = -index - 2;
+                if (index < 0) {
+                    return null;
                 }
-                /*valueStorageRaf.seek(offset);
-                dis = BDISfromRAF(valueStorageRaf);*/
-                return valueSerializationStrategy.deserializeFromStream(dis);
-            } catch (Exception e) {
-                throw new KVSException("Failed to read from disk", e);
             }
+            PartCursor cursor = new PartCursor(this, sparseOffsets.get(index), 0, Consts.SMALL_BUFFER_SIZE);
+            for (int i = 0; i < Consts.SPARSE_INDEX_STEP && cursor.advance(); ++i) {
+                int cmp = comparator.compare(cursor.key, key);
+                if (cmp == 0) {
+                    return cursor;
+                }
+                if (cmp > 0) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        void loadIndex() throws IOException {
+            try (DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile), Consts.BUFFER_SIZE))) {
+                if (input.readInt() != Consts.INDEX_MAGIC) {
+                    throw new KVSException(String.format("%s is not an index of this storage", indexFile.getName()));
+                }
+                int version = input.readInt();
+                if (version != Consts.FORMAT_VERSION) {
+                    throw new KVSException(String.format("%s has unsupported format version %d, expected %d",
+                            indexFile.getName(), version, Consts.FORMAT_VERSION));
+                }
+                dataLength = input.readLong();
+                entryCount = input.readLong();
+                int sparseSize = input.readInt();
+                for (int i = 0; i < sparseSize; ++i) {
+                    sparseKeys.add(keySerializationStrategy.deserializeFromStream(input));
+                    sparseOffsets.add(input.readLong());
+                }
+                bloomFilter = BloomFilter.readFrom(input, keyFunnel);
+            } catch (SerializationException e) {
+                throw new IOException("Serialization error", e);
+            }
+        }
+
+        void writeIndex() throws IOException {
+            try (DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(indexFile), Consts.BUFFER_SIZE))) {
+                output.writeInt(Consts.INDEX_MAGIC);
+                output.writeInt(Consts.FORMAT_VERSION);
+                output.writeLong(dataLength);
+                output.writeLong(entryCount);
+                output.writeInt(sparseKeys.size());
+                for (int i = 0; i < sparseKeys.size(); ++i) {
+                    keySerializationStrategy.serializeToStream(sparseKeys.get(i), output);
+                    output.writeLong(sparseOffsets.get(i));
+                }
+                bloomFilter.writeTo(output);
+            } catch (SerializationException e) {
+                throw new IOException("Serialization error", e);
+            }
+        }
+    }
+
+    /**
+     * Упорядоченный по ключу источник записей для слияния.
+     * age - возраст источника: из записей с одинаковым ключом актуальна та, у которой age больше.
+     */
+    abstract class Source {
+        protected K key;
+        protected boolean deleted;
+        protected final int age;
+
+        Source(int age) {
+            this.age = age;
         }
+
+        /**
+         * Переходит к следующей записи. Возвращает false, если записей больше нет.
+         */
+        abstract boolean advance() throws IOException;
+
+        /**
+         * Значение текущей записи, если она не надгробие. Вызывать до следующего advance.
+         */
+        abstract V readValue() throws IOException;
     }
 
-    class Address {
-        Address(Part part, long offset) {
+    /**
+     * Последовательное чтение записей part'а с заданного сдвига.
+     * Читает через позиционный ввод канала, так что курсоров на один part может быть сколько угодно.
+     */
+    class PartCursor extends Source {
+        private final Part part;
+        private final long start;
+        private final CountingInputStream counter;
+        private final DataInputStream input;
+        private int valueLength;
+        private boolean valuePending;
+
+        PartCursor(Part part, long start, int age, int bufferSize) {
+            super(age);
             this.part = part;
-            this.offset = offset;
+            this.start = start;
+            counter = new CountingInputStream(new BufferedInputStream(
+                    new ChannelInputStream(part.channel, start), bufferSize));
+            input = new DataInputStream(counter);
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            skipValue();
+            if (start + counter.getCount() >= part.dataLength) {
+                key = null;
+                return false;
+            }
+            try {
+                deleted = input.readBoolean();
+                key = keySerializationStrategy.deserializeFromStream(input);
+            } catch (SerializationException e) {
+                throw new IOException("Serialization error", e);
+            }
+            valueLength = deleted ? 0 : input.readInt();
+            valuePending = !deleted;
+            return true;
+        }
+
+        @Override
+        V readValue() throws IOException {
+            valuePending = false;
+            try {
+                return valueSerializationStrategy.deserializeFromStream(input);
+            } catch (SerializationException e) {
+                throw new IOException("Serialization error", e);
+            }
+        }
+
+        /**
+         * Копирует значение как есть, без десериализации.
+         */
+        void copyValueTo(DataOutputStream output) throws IOException {
+            valuePending = false;
+            output.writeInt(valueLength);
+            ByteStreams.copy(ByteStreams.limit(input, valueLength), output);
+        }
+
+        private void skipValue() throws IOException {
+            if (valuePending) {
+                valuePending = false;
+                ByteStreams.skipFully(input, valueLength);
+            }
+        }
+    }
+
+    private class MemTableSource extends Source {
+        private final Iterator<Map.Entry<K, Optional<V>>> iterator;
+        private Optional<V> value;
+
+        MemTableSource(Map<K, Optional<V>> entries, int age) {
+            super(age);
+            iterator = entries.entrySet().iterator();
         }
 
-        protected long offset;
-        protected Part part;
+        @Override
+        boolean advance() {
+            if (!iterator.hasNext()) {
+                key = null;
+                return false;
+            }
+            Map.Entry<K, Optional<V>> entry = iterator.next();
+            key = entry.getKey();
+            value = entry.getValue();
+            deleted = !value.isPresent();
+            return true;
+        }
+
+        @Override
+        V readValue() {
+            return value.get();
+        }
     }
 
-    private Map<K, V> memTable;
-    private LoadingCache<K, V> cache;
-    protected Map<K, Address> indexTable;
-    private RandomAccessFile keyStorageRaf;
+    /**
+     * Слияние упорядоченных источников.
+     * Сложность извлечения O(log k), где k - число источников.
+     */
+    class MergeQueue<S extends Source> {
+        private final PriorityQueue<S> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = comparator.compare(a.key, b.key);
+            return cmp != 0 ? cmp : Integer.compare(b.age, a.age);
+        });
+
+        MergeQueue(Collection<S> sources) throws IOException {
+            for (S source : sources) {
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            }
+        }
+
+        /**
+         * Возвращает самый новый источник с наименьшим ключом, более старые версии ключа пропускаются.
+         * После обработки записи источник нужно вернуть через {@link #release}.
+         */
+        S poll() throws IOException {
+            S top = queue.poll();
+            while (top != null && !queue.isEmpty() && comparator.compare(queue.peek().key, top.key) == 0) {
+                release(queue.poll());
+            }
+            return top;
+        }
+
+        void release(S source) throws IOException {
+            if (source.advance()) {
+                queue.add(source);
+            }
+        }
+    }
+
+    /**
+     * Запись нового part'а. Записи должны идти в порядке возрастания ключей.
+     */
+    class PartWriter {
+        private final Part part;
+        private final CountingOutputStream counter;
+        private final DataOutputStream output;
+        private final ByteArrayOutputStream valueBuffer = new ByteArrayOutputStream();
+        private final DataOutputStream valueOutput = new DataOutputStream(valueBuffer);
+
+        PartWriter(long expectedEntries) throws IOException {
+            int index = takeNextFileIndex();
+            part = new Part(Paths.get(path, dbName + index + Consts.STORAGE_PART_SUFF).toFile(),
+                    Paths.get(path, dbName + index + Consts.STORAGE_PART_INDEX_SUFF).toFile());
+            part.bloomFilter = BloomFilter.create(keyFunnel,
+                    (int) Math.min(expectedEntries, Integer.MAX_VALUE), Consts.BLOOM_FILTER_FPP);
+            counter = new CountingOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(part.file), Consts.BUFFER_SIZE));
+            output = new DataOutputStream(counter);
+        }
+
+        void write(K key, Optional<V> value) throws IOException {
+            writeHeader(key, !value.isPresent());
+            if (value.isPresent()) {
+                valueBuffer.reset();
+                try {
+                    valueSerializationStrategy.serializeToStream(value.get(), valueOutput);
+                } catch (SerializationException e) {
+                    throw new IOException("Serialization error", e);
+                }
+                output.writeInt(valueBuffer.size());
+                valueBuffer.writeTo(output);
+            }
+        }
+
+        void copy(PartCursor cursor) throws IOException {
+            writeHeader(cursor.key, cursor.deleted);
+            if (!cursor.deleted) {
+                cursor.copyValueTo(output);
+            }
+        }
+
+        Part finish() throws IOException {
+            output.close();
+            part.dataLength = counter.getCount();
+            part.writeIndex();
+            part.open();
+            return part;
+        }
+
+        private void writeHeader(K key, boolean deleted) throws IOException {
+            if (part.entryCount % Consts.SPARSE_INDEX_STEP == 0) {
+                part.sparseKeys.add(key);
+                part.sparseOffsets.add(counter.getCount());
+            }
+            ++part.entryCount;
+            part.bloomFilter.put(key);
+            output.writeBoolean(deleted);
+            try {
+                keySerializationStrategy.serializeToStream(key, output);
+            } catch (SerializationException e) {
+                throw new IOException("Serialization error", e);
+            }
+        }
+    }
+
+    private class KeyFunnel implements Funnel<K> {
+        @Override
+        public void funnel(K key, PrimitiveSink into) {
+            try {
+                keySerializationStrategy.serializeToStream(key,
+                        new DataOutputStream(Funnels.asOutputStream(into)));
+            } catch (SerializationException e) {
+                throw new KVSException("Failed to hash key", e);
+            }
+        }
+    }
+
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int count = channel.read(ByteBuffer.wrap(bytes, offset, length), position);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Итератор по диапазону [from, to) сливает MemTable и part'ы. Если после сброса MemTable или слияния
+     * набор part'ов сменился, а набор ключей - нет, итератор переоткрывается с последнего выданного ключа.
+     * Если нужны значения, значение выдаваемой записи читается из её источника сразу за ключом,
+     * то есть part'ы читаются последовательно.
+     */
+    private class ScanIterator implements Iterator<Map.Entry<K, V>> {
+        private final int expectedModificationCount = modificationCount;
+        private final K from;
+        private final K to;
+        private final boolean withValues;
+        private int expectedPartsVersion;
+        private MergeQueue<Source> queue;
+        private K last;
+        private Map.Entry<K, V> next;
+
+        ScanIterator(K from, K to, boolean withValues) throws IOException {
+            this.from = from;
+            this.to = to;
+            this.withValues = withValues;
+            reopen();
+        }
+
+        @Override
+        public boolean hasNext() {
+            synchronized (OptimizedKvs.this) {
+                prepare();
+                return next != null;
+            }
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            synchronized (OptimizedKvs.this) {
+                prepare();
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<K, V> result = next;
+                last = result.getKey();
+                try {
+                    findNext();
+                } catch (IOException e) {
+                    throw new KVSException("Failed to read keys", e);
+                }
+                return result;
+            }
+        }
+
+        private void prepare() {
+            if (modificationCount != expectedModificationCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next != null && partsVersion != expectedPartsVersion) {
+                try {
+                    reopen();
+                } catch (IOException e) {
+                    throw new KVSException("Failed to read keys", e);
+                }
+            }
+        }
+
+        private void reopen() throws IOException {
+            K start = last == null ? from : last;
+            List<Source> sources = new ArrayList<>();
+            for (Part part : parts) {
+                sources.add(part.cursorNear(start, sources.size()));
+            }
+            NavigableMap<K, Optional<V>> memTableRange = memTable;
+            if (start != null) {
+                memTableRange = memTableRange.tailMap(start, last == null);
+            }
+            if (to != null) {
+                // Пустой диапазон: headMap не даст взять границу левее tailMap
+                boolean empty = start != null && comparator.compare(start, to) >= 0;
+                memTableRange = empty ? Collections.emptyNavigableMap() : memTableRange.headMap(to, false);
+            }
+            sources.add(new MemTableSource(new TreeMap<>(memTableRange), sources.size()));
+            queue = new MergeQueue<>(sources);
+            expectedPartsVersion = partsVersion;
+            findNext();
+        }
+
+        private void findNext() throws IOException {
+            next = null;
+            for (Source top = queue.poll(); top != null; top = queue.poll()) {
+                K key = top.key;
+                if (to != null && comparator.compare(key, to) >= 0) {
+                    return;
+                }
+                boolean inRange = last != null ? comparator.compare(key, last) > 0
+                        : from == null || comparator.compare(key, from) >= 0;
+                if (!top.deleted && inRange) {
+                    next = new AbstractMap.SimpleImmutableEntry<>(key, withValues ? top.readValue() : null);
+                    queue.release(top);
+                    return;
+                }
+                queue.release(top);
+            }
+        }
+    }
+
+    private TreeMap<K, Optional<V>> memTable;
+    private Cache<K, V> cache;
     protected SerializationStrategy<K> keySerializationStrategy;
     protected SerializationStrategy<V> valueSerializationStrategy;
+    private final Funnel<K> keyFunnel = new KeyFunnel();
     private boolean isOpen;
     protected final String dbName;
-    protected static String path;
+    protected final String path;
     protected Deque<Part> parts;
     protected Comparator<K> comparator;
     private File lockFile;
     private int nextFileIndex = 0;
+    private File manifestFile;
+    // Part'ы из последнего записанного манифеста, их файлы нельзя удалять до следующего манифеста
+    private Set<Part> manifestParts = new HashSet<>();
+    // Уже слитые part'ы из манифеста, ждущие удаления
+    private final List<Part> retiredParts = new ArrayList<>();
     private Validator validator;
+    // Число пар или UNKNOWN_SIZE, если после слепой записи его надо пересчитать
+    private int size;
+    // Меняется, когда меняется набор ключей
+    private int modificationCount;
+    // Меняется, когда меняется набор part'ов
+    private int partsVersion;
 
     OptimizedKvs(String path, SerializationStrategy<K> keySerializationStrategy,
                  SerializationStrategy<V> valueSerializationStrategy,
@@ -99,7 +576,6 @@ abstract class OptimizedKvs<K, V> implements
         memTable = new TreeMap<>(comparator);
         this.keySerializationStrategy = keySerializationStrategy;
         this.valueSerializationStrategy = valueSerializationStrategy;
-        indexTable = new TreeMap<K, Address>(comparator);
         dbName = keySerializationStrategy.getSerializingClass().getSimpleName() +
                 valueSerializationStrategy.getSerializingClass().getSimpleName();
         parts = new ArrayDeque<>();
@@ -108,22 +584,7 @@ abstract class OptimizedKvs<K, V> implements
         validator = new Validator();
         cache = CacheBuilder.newBuilder()
                 .maximumSize(Consts.CACHE_SIZE)
-                .build(
-                        new CacheLoader<K, V>() {
-                            public V load(K key) { // no checked exception
-                                V val = memTable.get(key);
-                                if (val != null) {
-                                    return val;
-                                }
-                                Address address = indexTable.get(key);
-                                val = address.part.read(address.offset);
-                                if (val != null) {
-                                    return val;
-                                } else {
-                                    throw new NotFoundException();
-                                }
-                            }
-                        });
+                .build();
 
         // Создать lock-файл
         lockFile = Paths.get(path, dbName + Consts.STORAGE_LOCK_SUFF).toFile();
@@ -135,6 +596,21 @@ abstract class OptimizedKvs<K, V> implements
             throw new KVSException("Failed to lockFile database");
         }
 
+        manifestFile = Paths.get(path, dbName + Consts.MANIFEST_SUFF).toFile();
+        if (manifestFile.exists()) {
+            try {
+                loadManifest();
+            } catch (IOException e) {
+                throw new KVSException("Failed to read manifest", e);
+            }
+        } else {
+            openBaseFiles();
+        }
+
+        isOpen = true;
+    }
+
+    private void openBaseFiles() throws KVSException {
         // Проверить хэш/создать новый файл
         boolean isNew = false;
         File keyStorageFile = Paths.get(path, dbName + Consts.KEY_STORAGE_NAME_SUFF).toFile();
@@ -156,115 +632,326 @@ abstract class OptimizedKvs<K, V> implements
             throw new KVSException("Failed to create file", e);
         }
 
-        // Открыть файл
+        // Подгрузить индекс с диска
         try {
-            keyStorageRaf = new RandomAccessFile(keyStorageFile, "rw");
-            parts.addLast(new Part(new RandomAccessFile(valueStorageFile, "rw"),
-                    valueStorageFile));
-        } catch (FileNotFoundException e) {
-            throw new KVSException("File of database was deleted", e);
+            if (!isNew) {
+                Part basePart;
+                if (readFormatTag(keyStorageFile) == Consts.LEGACY_FORMAT_TAG) {
+                    basePart = migrateLegacyBase(keyStorageFile, valueStorageFile);
+                } else {
+                    basePart = new Part(valueStorageFile, keyStorageFile);
+                    basePart.loadIndex();
+                    if (basePart.dataLength != valueStorageFile.length()) {
+                        throw new KVSException("Values file doesn't match its index");
+                    }
+                    basePart.open();
+                }
+                parts.addLast(basePart);
+                size = (int) basePart.entryCount;
+            }
         } catch (IOException e) {
-            throw new KVSException("IO error at db file", e);
+            throw new KVSException("Failed to read database", e);
         }
+    }
 
-        // Подгрузить данные с диска
-        try {
-            if (!isNew) {
-                initDatabaseFromDisk();
+    /**
+     * Первые 4 байта файла ключей: INDEX_MAGIC у текущего формата, 0 у старого,
+     * где файл начинается с long числа пар.
+     */
+    private static int readFormatTag(File keyStorageFile) throws IOException {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(keyStorageFile))) {
+            return input.readInt();
+        }
+    }
+
+    /**
+     * Переводит базу старого формата (long число пар, K ключ, long сдвиг значения в файле значений, ...)
+     * в part текущего формата и кладёт его на место файлов базы. Старый формат держал все ключи в памяти,
+     * поэтому и здесь они читаются целиком.
+     */
+    private Part migrateLegacyBase(File keyStorageFile, File valueStorageFile) throws IOException {
+        TreeMap<K, Long> offsets = new TreeMap<>(comparator);
+        Part part;
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(keyStorageFile), Consts.BUFFER_SIZE));
+             FileChannel values = new RandomAccessFile(valueStorageFile, "r").getChannel()) {
+            long numberOfEntries = input.readLong();
+            for (long i = 0; i < numberOfEntries; ++i) {
+                K key = keySerializationStrategy.deserializeFromStream(input);
+                offsets.put(key, input.readLong());
             }
+
+            PartWriter writer = new PartWriter(offsets.size());
+            for (Map.Entry<K, Long> entry : offsets.entrySet()) {
+                DataInputStream valueInput = new DataInputStream(new BufferedInputStream(
+                        new ChannelInputStream(values, entry.getValue()), Consts.SMALL_BUFFER_SIZE));
+                writer.write(entry.getKey(), Optional.of(valueSerializationStrategy.deserializeFromStream(valueInput)));
+            }
+            part = writer.finish();
         } catch (SerializationException e) {
-            throw new KVSException("Failed to read database", e);
+            throw new IOException("Failed to migrate database of the old format", e);
         }
 
-        isOpen = true;
+        part.close();
+        Files.move(part.file.toPath(), valueStorageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(part.indexFile.toPath(), keyStorageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        part.file = valueStorageFile;
+        part.indexFile = keyStorageFile;
+        part.open();
+        validator.writeHash();
+        return part;
+    }
+
+    /**
+     * Собирает базу из part'ов, перечисленных в манифесте, и проверяет, что их файлы целы.
+     */
+    private void loadManifest() throws IOException {
+        byte[] bytes = Files.readAllBytes(manifestFile.toPath());
+        if (bytes.length < Longs.BYTES) {
+            throw new KVSException("Manifest is truncated");
+        }
+        Adler32 checksum = new Adler32();
+        checksum.update(bytes, 0, bytes.length - Longs.BYTES);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        input.skipBytes(bytes.length - Longs.BYTES);
+        if (input.readLong() != checksum.getValue()) {
+            throw new KVSException("Manifest checksum mismatch");
+        }
+
+        input = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - Longs.BYTES));
+        nextFileIndex = input.readInt();
+        size = input.readInt();
+        int partCount = input.readInt();
+        for (int i = 0; i < partCount; ++i) {
+            File file = Paths.get(path, input.readUTF()).toFile();
+            File indexFile = Paths.get(path, input.readUTF()).toFile();
+            if (partCount == 1) {
+                // Падение посреди переименования итогового part'а в файлы базы в dumpDatabaseToFile:
+                // часть его файлов уже лежит под именами базы
+                file = existingOr(file, Paths.get(path, dbName + Consts.VALUE_STORAGE_NAME_SUFF).toFile());
+                indexFile = existingOr(indexFile, Paths.get(path, dbName + Consts.KEY_STORAGE_NAME_SUFF).toFile());
+            }
+            Part part = new Part(file, indexFile);
+            long dataLength = input.readLong();
+            if (part.file.length() != dataLength || !part.indexFile.exists()) {
+                throw new KVSException(String.format("Part %s is missing or damaged", part.file.getName()));
+            }
+            part.loadIndex();
+            if (part.dataLength != dataLength) {
+                throw new KVSException(String.format("Index of part %s is damaged", part.file.getName()));
+            }
+            part.open();
+            parts.addLast(part);
+        }
+        manifestParts = new HashSet<>(parts);
+    }
+
+    private static File existingOr(File file, File fallback) {
+        return file.exists() ? file : fallback;
+    }
+
+    /**
+     * Атомарно заменяет манифест списком текущих part'ов, после чего удаляет файлы слитых part'ов,
+     * которые держал прежний манифест.
+     */
+    private void writeManifest() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(nextFileIndex);
+        output.writeInt(size);
+        output.writeInt(parts.size());
+        for (Part part : parts) {
+            output.writeUTF(part.file.getName());
+            output.writeUTF(part.indexFile.getName());
+            output.writeLong(part.dataLength);
+        }
+        Adler32 checksum = new Adler32();
+        checksum.update(bytes.toByteArray());
+        output.writeLong(checksum.getValue());
+
+        File temporary = Paths.get(path, dbName + Consts.MANIFEST_SUFF + ".tmp").toFile();
+        try (OutputStream os = new FileOutputStream(temporary)) {
+            bytes.writeTo(os);
+        }
+        Files.move(temporary.toPath(), manifestFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        manifestParts = new HashSet<>(parts);
+        for (Part part : retiredParts) {
+            part.delete();
+        }
+        retiredParts.clear();
+    }
+
+    /**
+     * Убирает слитый part: его файлы удаляются сразу, если их не держит манифест.
+     */
+    private void retirePart(Part part) throws IOException {
+        if (manifestParts.remove(part)) {
+            part.close();
+            retiredParts.add(part);
+        } else {
+            part.delete();
+        }
     }
 
     /**
      * Возвращает значение, соответствующее ключу.
-     * Сложность O().
+     * Сложность O(P * SPARSE_INDEX_STEP + log(N)), где P - число part'ов, ключ которых может содержать
+     * по мнению фильтра Блума. Обычно это один part.
      *
      * @param key - ключ, который нужно найти
      * @return Значение или null, если ключ не найден.
      */
-    public Object read(Object key) {
+    public synchronized Object read(Object key) {
         checkOpen();
-        // Можно убрать, если редко будут неплодотворные обращения
-        if (!indexTable.containsKey(key)) {
-            return null;
+        V value = cache.getIfPresent(key);
+        if (value != null) {
+            return value;
         }
-        try {
-            return cache.getUnchecked((K) key);
-        } catch (NotFoundException e) {
+        Optional<V> found = lookup((K) key);
+        if (!found.isPresent()) {
             return null;
         }
+        cache.put((K) key, found.get());
+        return found.get();
     }
 
     /**
      * Поиск ключа.
-     * Сложность O(NlogN).
+     * Сложность как у read, но значение не читается.
      *
      * @param key - ключ, который нужно найти.
      * @return true, если найден, false, если нет.
      */
-    public boolean exists(Object key) {
+    public synchronized boolean exists(Object key) {
         checkOpen();
-        return indexTable.containsKey(key);
+        return containsKey((K) key);
     }
 
     /**
-     * Вставка пары ключ-значение.
-     * Сложность O(log(N))
+     * Вставка пары ключ-значение. Запись слепая: part'ы не читаются, смотрятся только MemTable
+     * и фильтры Блума. Если фильтр допускает, что ключ уже есть на диске, размер становится неизвестным
+     * и пересчитывается в size(), а итераторы считают запись изменением набора ключей.
+     * Сложность O(log(N) + P) плюс амортизированные O(log(N)) на сброс MemTable и слияние part'ов.
      *
      * @param key
      * @param value
      */
-    public void write(Object key, Object value) {
+    public synchronized void write(Object key, Object value) {
         checkOpen();
-        memTable.put((K) key, (V) value);
-        indexTable.put((K) key, null);
-        if (memTable.size() > Consts.DUMP_THRESHOLD) {
-            dumpMemTableToFile();
-            if (parts.size() > Consts.MERGE_THRESHOLD) {
-                try {
-                    while (parts.size() > 1) {
-                        mergeFiles();
-                    }
-                } catch (IOException e) {
-                    throw new KVSException("Lol");
-                }
+        Optional<V> previous = memTable.put((K) key, Optional.of((V) value));
+        if (previous != null) {
+            if (!previous.isPresent()) {
+                keySetChanged(1);
             }
+        } else if (mightBeOnDisk((K) key)) {
+            // Новый ключ или перезапись - не знаем, поэтому открытые итераторы падают, как при новом ключе
+            size = Consts.UNKNOWN_SIZE;
+            ++modificationCount;
+        } else {
+            keySetChanged(1);
         }
+        cache.put((K) key, (V) value);
+        dumpIfNeeded();
     }
 
     /**
-     * Удаление ключа key.
-     * Сложность: O(NlogN).
+     * Удаление ключа key: запись надгробия в MemTable. Как и write, на диск не ходит.
+     * Сложность как у write.
      */
-    public void delete(Object key) {
+    public synchronized void delete(Object key) {
         checkOpen();
-        if (indexTable.containsKey(key)) {
-            indexTable.remove(key);
+        Optional<V> previous = memTable.get(key);
+        if (previous != null) {
+            if (previous.isPresent()) {
+                memTable.put((K) key, Optional.empty());
+                cache.invalidate(key);
+                keySetChanged(-1);
+                dumpIfNeeded();
+            }
+        } else if (mightBeOnDisk((K) key)) {
+            memTable.put((K) key, Optional.empty());
+            cache.invalidate(key);
+            size = Consts.UNKNOWN_SIZE;
+            ++modificationCount;
+            dumpIfNeeded();
+        }
+    }
+
+    private void keySetChanged(int delta) {
+        if (size != Consts.UNKNOWN_SIZE) {
+            size += delta;
         }
+        ++modificationCount;
     }
 
     /**
-     * Сложность: как у итератора по ключам TreeMap.
+     * Может ли ключ лежать в каком-нибудь part'е. Смотрит только фильтры Блума в памяти.
+     */
+    private boolean mightBeOnDisk(K key) {
+        for (Part part : parts) {
+            if (part.bloomFilter.mightContain(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ключи отдаются в порядке comparator'а слиянием MemTable и всех part'ов.
+     * Сложность: O(log(P)) на ключ, значения при этом пропускаются.
      *
      * @return итератор по ключам.
      */
-    public Iterator readKeys() {
+    public synchronized Iterator readKeys() {
+        return scan(null, null);
+    }
+
+    public Comparator comparator() {
+        return comparator;
+    }
+
+    /**
+     * Ключи из [from, to) в порядке comparator'а.
+     * Сложность: O(log(N / SPARSE_INDEX_STEP) + SPARSE_INDEX_STEP) на part, чтобы встать на from,
+     * дальше O(log(P)) на ключ.
+     */
+    public synchronized Iterator scan(Object from, Object to) {
+        return Iterators.transform(openScan((K) from, (K) to, false), Map.Entry::getKey);
+    }
+
+    /**
+     * Как scan, но с значениями. Значения читаются последовательно вместе с ключами.
+     */
+    public synchronized Iterator scanEntries(Object from, Object to) {
+        return openScan((K) from, (K) to, true);
+    }
+
+    private Iterator<Map.Entry<K, V>> openScan(K from, K to, boolean withValues) {
         checkOpen();
-        return indexTable.keySet().iterator();
+        try {
+            return new ScanIterator(from, to, withValues);
+        } catch (IOException e) {
+            throw new KVSException("Failed to read keys", e);
+        }
     }
 
     /**
-     * Сложность O(1).
+     * Сложность O(1), если размер известен. После слепых записей ключей, которые могут быть на диске,
+     * ключи один раз пересчитываются слиянием, как в readKeys: O(N log(P)).
      *
      * @return количество хранимых пар
      */
-    public int size() {
+    public synchronized int size() {
         checkOpen();
-        return indexTable.size();
+        if (size == Consts.UNKNOWN_SIZE) {
+            int count = 0;
+            for (Iterator<Map.Entry<K, V>> it = openScan(null, null, false); it.hasNext(); it.next()) {
+                ++count;
+            }
+            size = count;
+        }
+        return size;
     }
 
     /**
@@ -272,126 +959,232 @@ abstract class OptimizedKvs<K, V> implements
      *
      * @throws IOException
      */
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         checkOpen();
         dumpDatabaseToFile();
         validator.writeHash();
+        // База целиком в основном файле, манифест больше не нужен
+        Files.deleteIfExists(manifestFile.toPath());
+        manifestParts.clear();
         if (!lockFile.delete()) {
             throw new IOException("Can't delete lock file");
         }
-        keyStorageRaf.close();
         isOpen = false;
     }
 
     /**
-     * Считывание файла ключей в indexMap. Буферизуется.
-     *
-     * @throws SerializationException
+     * Инкрементальная контрольная точка: MemTable сбрасывается в новый part, и пишется манифест со списком
+     * part'ов. Уже записанные part'ы не переписываются, поэтому flush стоит O(изменений с прошлого flush),
+     * а не O(размера базы). Слияние part'ов остаётся компакции, сборка в один файл - закрытию.
      */
-    private void initDatabaseFromDisk() throws SerializationException {
+    @Override
+    public synchronized void flush() {
+        checkOpen();
         try {
-            keyStorageRaf.seek(0);
-            //DataInputStream dataInputStream = bdisFromRaf(keyStorageRaf, Consts.BUFFER_SIZE);
-            File keyStorageFile = Paths.get(path, dbName + Consts.KEY_STORAGE_NAME_SUFF).toFile();
-            DataInputStream dataInputStream = new DataInputStream(
-                    new BufferedInputStream(new FileInputStream(keyStorageFile),
-                            Consts.BUFFER_SIZE));
-            long numberOfEntries = dataInputStream.readLong();
-
-            // Считываем ключи и оффсеты соответствующих значений
-            for (long i = 0; i < numberOfEntries; ++i) {
-                K key = keySerializationStrategy.deserializeFromStream(dataInputStream);
-                long offset = dataInputStream.readLong();
-                indexTable.put(key, new Address(parts.getLast(), offset));
-                parts.getLast().keys.add(key);
+            if (!memTable.isEmpty()) {
+                dumpMemTableToFile();
+                onPartDumped();
+            }
+            writeManifest();
+        } catch (IOException e) {
+            throw new KVSException("Failed to flush", e);
+        }
+    }
+
+    private Optional<V> lookup(K key) {
+        Optional<V> value = memTable.get(key);
+        if (value != null) {
+            return value;
+        }
+        try {
+            for (Iterator<Part> it = parts.descendingIterator(); it.hasNext();) {
+                value = it.next().find(key);
+                if (value != null) {
+                    return value;
+                }
             }
+        } catch (IOException e) {
+            throw new KVSException("Failed to read from disk", e);
+        }
+        return Optional.empty();
+    }
 
-            keyStorageRaf.setLength(0);
+    private boolean containsKey(K key) {
+        Optional<V> value = memTable.get(key);
+        if (value != null) {
+            return value.isPresent();
+        }
+        try {
+            for (Iterator<Part> it = parts.descendingIterator(); it.hasNext();) {
+                Boolean contains = it.next().contains(key);
+                if (contains != null) {
+                    return contains;
+                }
+            }
         } catch (IOException e) {
-            throw new SerializationException("Read failed", e);
+            throw new KVSException("Failed to read from disk", e);
+        }
+        return false;
+    }
+
+    private void dumpIfNeeded() {
+        if (memTable.size() > Consts.DUMP_THRESHOLD) {
+            dumpMemTableToFile();
+            try {
+                onPartDumped();
+            } catch (IOException e) {
+                throw new KVSException("Failed to merge parts", e);
+            }
         }
     }
 
+    /**
+     * Вызывается под монитором хранилища после сброса MemTable в новый part.
+     * По умолчанию, если part'ов стало слишком много, синхронно сливает их в один.
+     */
+    protected void onPartDumped() throws IOException {
+        if (parts.size() > Consts.MERGE_THRESHOLD) {
+            while (parts.size() > 1) {
+                mergeFiles();
+            }
+        }
+    }
+
+    private synchronized int takeNextFileIndex() {
+        return nextFileIndex++;
+    }
+
     /**
      * Складывает текущую MemTable в следующий по счёту part.
      * Буферизуется.
      */
     private void dumpMemTableToFile() {
+        if (memTable.isEmpty()) {
+            return;
+        }
         try {
-            File nextFile = Paths.get(path,
-                    dbName + nextFileIndex + Consts.STORAGE_PART_SUFF).toFile();
-            ++nextFileIndex;
-            Part nextPart = new Part(
-                    new RandomAccessFile(nextFile, "rw"),
-                    nextFile);
-            //DataOutputStream dataOutputStream = bdosFromRaf(nextPart.valueStorageRaf, Consts.BUFFER_SIZE);
-            DataOutputStream dataOutputStream = new DataOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(nextPart.file),
-                            Consts.BUFFER_SIZE));
-
-            for (Map.Entry<K, V> entry : memTable.entrySet()) {
-                try {
-                    indexTable.put(entry.getKey(), new Address(nextPart, dataOutputStream.size()));
-                    nextPart.keys.add(entry.getKey());
-                    nextPart.offsets.add(dataOutputStream.size());
-                    valueSerializationStrategy.serializeToStream(entry.getValue(),
-                            dataOutputStream);
-                } catch (SerializationException e) {
-                    throw new IOException("Serialization error");
+            PartWriter writer = new PartWriter(memTable.size());
+            for (Map.Entry<K, Optional<V>> entry : memTable.entrySet()) {
+                // Надгробия нужны, только если есть более старые part'ы
+                if (entry.getValue().isPresent() || !parts.isEmpty()) {
+                    writer.write(entry.getKey(), entry.getValue());
                 }
             }
-            parts.addLast(nextPart);
+            parts.addLast(writer.finish());
             memTable.clear();
-            dataOutputStream.flush();
+            ++partsVersion;
         } catch (IOException e) {
             throw new KVSException("Failed to dump memtable to file", e);
         }
     }
 
     /**
-     * Пишет всю базу на диск, считает хэши и удаляет lock-файлы.
+     * Пишет всю базу на диск: сливает все part'ы в один и делает его основным файлом базы.
+     * Если есть манифест, после переименования он называет файлы базы, так что база откроется,
+     * даже если close не успеет его удалить.
      *
      * @throws IOException
      */
-    private void dumpDatabaseToFile() throws IOException {
+    void dumpDatabaseToFile() throws IOException {
 
         // Записываем на диск последнюю MemTable
         dumpMemTableToFile();
 
-        // Смержить всё один файл. После в единственном элементе indexMaps лежит
-        // дерево из всех ключей с правильными оффсетами, а в partRAF - все соответствующие значения.
+        // Смержить всё в один part. Надгробий в нём уже не останется.
         while (parts.size() > 1) {
             mergeFiles();
         }
+        if (parts.isEmpty()) {
+            parts.addLast(new PartWriter(0).finish());
+        }
+        // Единственный part без надгробий - точный размер, даже если слепые записи его потеряли
+        size = (int) parts.getFirst().entryCount;
+        // Манифест переключается на итоговый part, и удаляются файлы, которые он держал,
+        // в том числе прежние файлы базы, на место которых сейчас встанет итоговый part
+        if (manifestFile.exists()) {
+            writeManifest();
+        }
 
-        // Пишем ключи и сдвиги.
-        keyStorageRaf.setLength(0);
-        keyStorageRaf.seek(0);
-        DataOutputStream keyDos = bdosFromRaf(keyStorageRaf, Consts.BUFFER_SIZE);
-        keyDos.writeLong(size());
-        for (Map.Entry<K, Address> entry : indexTable.entrySet()) {
-            try {
-                keySerializationStrategy.serializeToStream(entry.getKey(), keyDos);
-                keyDos.writeLong(entry.getValue().offset);
-            } catch (SerializationException e) {
-                throw new IOException("Serialization error", e);
+        Part basePart = parts.getFirst();
+        basePart.close();
+        File keyStorageFile = Paths.get(path, dbName + Consts.KEY_STORAGE_NAME_SUFF).toFile();
+        File valueStorageFile = Paths.get(path, dbName + Consts.VALUE_STORAGE_NAME_SUFF).toFile();
+        if (!basePart.file.equals(valueStorageFile)) {
+            Files.move(basePart.file.toPath(), valueStorageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(basePart.indexFile.toPath(), keyStorageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            basePart.file = valueStorageFile;
+            basePart.indexFile = keyStorageFile;
+            if (manifestFile.exists()) {
+                writeManifest();
             }
         }
-        keyDos.flush();
     }
 
-    protected abstract void mergeFiles() throws IOException;
+    /**
+     * Сливает part'ы в один новый, исходные файлы удаляются.
+     * Part'ы передаются от старых к новым, из записей с одинаковым ключом остаётся самая новая.
+     * Надгробия можно выкинуть, если среди сливаемых есть самый старый part: удалять больше не из чего.
+     * Значения копируются как есть, без десериализации.
+     * Сложность O(N log(k)), где N - суммарное число записей, k - число part'ов.
+     */
+    protected Part mergeParts(List<Part> sources, boolean dropTombstones) throws IOException {
+        Part merged = writeMergedPart(sources, dropTombstones);
+        for (Part part : sources) {
+            retirePart(part);
+        }
+        ++partsVersion;
+        return merged;
+    }
+
+    /**
+     * То же, что mergeParts, но исходные part'ы не трогаются. Монитор хранилища не нужен,
+     * если исходные part'ы никто не удалит до конца слияния.
+     */
+    protected Part writeMergedPart(List<Part> sources, boolean dropTombstones) throws IOException {
+        List<PartCursor> cursors = new ArrayList<>();
+        long expectedEntries = 0;
+        for (Part part : sources) {
+            cursors.add(new PartCursor(part, 0, cursors.size(), Consts.MERGE_BUFFER_SIZE));
+            expectedEntries += part.entryCount;
+        }
 
-    protected DataOutputStream bdosFromRaf(RandomAccessFile raf, int bufferSize) {
-        return new DataOutputStream(new BufferedOutputStream(
-                Channels.newOutputStream(raf.getChannel()), bufferSize));
+        PartWriter writer = new PartWriter(expectedEntries);
+        MergeQueue<PartCursor> queue = new MergeQueue<>(cursors);
+        for (PartCursor top = queue.poll(); top != null; top = queue.poll()) {
+            if (!(top.deleted && dropTombstones)) {
+                writer.copy(top);
+            }
+            queue.release(top);
+        }
+        return writer.finish();
     }
 
-    protected DataInputStream bdisFromRaf(RandomAccessFile raf, int bufferSize) {
-        return new DataInputStream(new BufferedInputStream(
-                Channels.newInputStream(raf.getChannel()), bufferSize));
+    /**
+     * Заменяет подряд идущие part'ы sources слитым из них part'ом и удаляет их файлы.
+     * Вызывается под монитором хранилища, поэтому читатели видят либо старые part'ы, либо новый.
+     */
+    protected void replaceParts(List<Part> sources, Part merged) throws IOException {
+        Deque<Part> newParts = new ArrayDeque<>();
+        for (Part part : parts) {
+            if (part == sources.get(0)) {
+                newParts.addLast(merged);
+            }
+            if (!sources.contains(part)) {
+                newParts.addLast(part);
+            }
+        }
+        parts = newParts;
+        for (Part part : sources) {
+            retirePart(part);
+        }
+        ++partsVersion;
     }
 
+    /**
+     * Сливает part'ы, пока их не останется меньше, чем было. Стратегию выбирают наследники.
+     */
+    protected abstract void mergeFiles() throws IOException;
+
     private void checkOpen() {
         if (!isOpen) {
             throw new RuntimeException("Can't access closed storage");
@@ -477,13 +1270,26 @@ abstract class OptimizedKvs<K, V> implements
     }
 
     static final class Consts {
-        // Формат файла: V значение, ...
+        // Формат файла part'а: boolean удалён, K ключ, [int длина значения, V значение], ...
+        // Своего заголовка нет, файл описывается индексом, в котором записана и его длина.
         static final String VALUE_STORAGE_NAME_SUFF = "ValueStorage.db";
-        // Формат файла: long количество ключей, K ключ, long сдвиг, ...
+        // Формат индекса part'а: int INDEX_MAGIC, int FORMAT_VERSION, long длина файла part'а,
+        // long количество записей, int размер разреженного индекса, K ключ, long сдвиг, ..., фильтр Блума.
+        // Старый формат (версия 1) без заголовка: long число пар, K ключ, long сдвиг значения, ...
+        // Он переводится в текущий при открытии.
         static final String KEY_STORAGE_NAME_SUFF = "KeyStorage.db";
+        // Старший бит установлен, так что с началом long числа пар старого формата не путается
+        static final int INDEX_MAGIC = 0xCB5E1D0F;
+        static final int FORMAT_VERSION = 2;
+        // Первые 4 байта файла ключей старого формата: старшая половина числа пар
+        static final int LEGACY_FORMAT_TAG = 0;
         static final String STORAGE_HASH_SUFF = "StorageHash.db";
         static final String STORAGE_PART_SUFF = "Part.db";
+        static final String STORAGE_PART_INDEX_SUFF = "PartIndex.db";
         static final String STORAGE_LOCK_SUFF = "Lock.db";
+        // Формат манифеста: int следующий номер part'а, int число пар (UNKNOWN_SIZE, если неизвестно),
+        // int число part'ов, UTF файл part'а, UTF файл индекса, long длина part'а, ..., long Adler32 всего предыдущего
+        static final String MANIFEST_SUFF = "Manifest.db";
         static final int CACHE_SIZE = 1;
         static final int DUMP_THRESHOLD = 1000;
         static final int MERGE_THRESHOLD = 100;
@@ -491,6 +1297,10 @@ abstract class OptimizedKvs<K, V> implements
         static final int MAX_VALUE_SIZE = 1024 * 10;
         static final int SMALL_BUFFER_SIZE = MAX_VALUE_SIZE;
         static final int BUFFER_SIZE = MAX_VALUE_SIZE * 100;
+        static final int MERGE_BUFFER_SIZE = MAX_VALUE_SIZE * DUMP_THRESHOLD / MERGE_THRESHOLD;
+        static final int SPARSE_INDEX_STEP = 16;
+        static final double BLOOM_FILTER_FPP = 0.01;
+        static final int UNKNOWN_SIZE = -1;
     }
 }
 
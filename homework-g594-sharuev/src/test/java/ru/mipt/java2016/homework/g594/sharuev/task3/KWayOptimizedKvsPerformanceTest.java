@@ -0,0 +1,248 @@
+package ru.mipt.java2016.homework.g594.sharuev.task3;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import org.junit.Test;
+import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
+import ru.mipt.java2016.homework.base.task2.MalformedDataException;
+import ru.mipt.java2016.homework.base.task2.SortedKeyValueStorage;
+import ru.mipt.java2016.homework.tests.task2.Student;
+import ru.mipt.java2016.homework.tests.task2.StudentKey;
+import ru.mipt.java2016.homework.tests.task3.KeyValueStoragePerformanceTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
+
+public class KWayOptimizedKvsPerformanceTest extends KeyValueStoragePerformanceTest {
+
+    @Test
+    public void testScan() {
+        doInTempDirectory(path -> doWithStrings(path, storage -> {
+            // Больше DUMP_THRESHOLD, чтобы ключи лежали и в part'ах, и в MemTable
+            for (int i = 0; i < 3000; ++i) {
+                storage.write(String.format("key%04d", i), "old" + i);
+            }
+            for (int i = 0; i < 3000; i += 2) {
+                storage.write(String.format("key%04d", i), "new" + i);
+            }
+            for (int i = 0; i < 3000; i += 3) {
+                storage.delete(String.format("key%04d", i));
+            }
+
+            SortedKeyValueStorage<String, String> sorted = (SortedKeyValueStorage<String, String>) storage;
+            List<String> keys = new ArrayList<>();
+            sorted.scan("key1000", "key1010").forEachRemaining(keys::add);
+            assertEquals(Arrays.asList("key1000", "key1001", "key1003", "key1004", "key1006", "key1007", "key1009"),
+                    keys);
+
+            List<String> entries = new ArrayList<>();
+            sorted.prefixScan("key200", key -> key.startsWith("key200")).forEachRemaining(
+                    entry -> entries.add(entry.getKey() + "=" + entry.getValue()));
+            assertEquals(Arrays.asList("key2000=new2000", "key2002=new2002", "key2003=old2003",
+                    "key2005=old2005", "key2006=new2006", "key2008=new2008", "key2009=old2009"), entries);
+
+            Iterator<Map.Entry<String, String>> iterator = sorted.scanEntries(null, null);
+            iterator.next();
+            storage.write("key0000", "again");
+            try {
+                iterator.next();
+                fail("Scan should notice new key");
+            } catch (ConcurrentModificationException expected) {
+                // ok
+            }
+        }));
+    }
+
+    @Test
+    public void testIncrementalFlush() {
+        doInTempDirectory(path -> {
+            KeyValueStorage<String, String> storage = buildStringsStorage(path);
+            for (int i = 0; i < 1500; ++i) {
+                storage.write("key" + i, "value" + i);
+            }
+            // Один part сброшен по порогу, второй - flush'ем; до компакции далеко
+            storage.flush();
+            String[] filesAfterFirstFlush = new File(path).list();
+
+            storage.write("key1", "changed");
+            storage.delete("key2");
+            storage.flush();
+            // Второй flush пишет только part с двумя записями и манифест
+            assertEquals(filesAfterFirstFlush.length + 2, new File(path).list().length);
+
+            storage.write("key3", "lost");
+            // Имитируем падение: хранилище не закрыто, остался только lock-файл
+            for (File lock : new File(path).listFiles((dir, name) -> name.endsWith("Lock.db"))) {
+                assertTrue(lock.delete());
+            }
+
+            storage = buildStringsStorage(path);
+            assertEquals(1499, storage.size());
+            assertEquals("changed", storage.read("key1"));
+            assertNull(storage.read("key2"));
+            assertEquals("value3", storage.read("key3"));
+            assertEquals("value1499", storage.read("key1499"));
+            storage.close();
+
+            storage = buildStringsStorage(path);
+            assertEquals(1499, storage.size());
+            assertEquals("changed", storage.read("key1"));
+            storage.close();
+        });
+    }
+
+    @Test
+    public void testManifestLeftAfterClose() {
+        doInTempDirectory(path -> {
+            KWayOptimizedKvs<String, String> storage = (KWayOptimizedKvs<String, String>) buildStringsStorage(path);
+            for (int i = 0; i < 1500; ++i) {
+                storage.write("key" + i, "value" + i);
+            }
+            storage.flush();
+            storage.write("key1", "changed");
+            storage.delete("key2");
+            // Имитируем падение в close после сборки базы в один файл, но до удаления манифеста
+            synchronized (storage) {
+                storage.dumpDatabaseToFile();
+            }
+            File[] manifests = new File(path).listFiles((dir, name) -> name.endsWith("Manifest.db"));
+            assertEquals(1, manifests.length);
+            for (File lock : new File(path).listFiles((dir, name) -> name.endsWith("Lock.db"))) {
+                assertTrue(lock.delete());
+            }
+
+            KeyValueStorage<String, String> reopened = buildStringsStorage(path);
+            assertEquals(1499, reopened.size());
+            assertEquals("changed", reopened.read("key1"));
+            assertNull(reopened.read("key2"));
+            assertEquals("value1499", reopened.read("key1499"));
+            reopened.close();
+            assertEquals(0, new File(path).listFiles((dir, name) -> name.endsWith("Manifest.db")).length);
+
+            reopened = buildStringsStorage(path);
+            assertEquals(1499, reopened.size());
+            reopened.close();
+        });
+    }
+
+    @Test
+    public void testBlindWritesKeepSize() {
+        doInTempDirectory(path -> doWithStrings(path, storage -> {
+            for (int i = 0; i < 3000; ++i) {
+                storage.write("key" + i, "value" + i);
+            }
+            // Ключи уже на диске: запись и удаление не читают part'ы, размер пересчитывается
+            for (int i = 0; i < 3000; i += 2) {
+                storage.write("key" + i, "changed" + i);
+            }
+            assertEquals(3000, storage.size());
+            for (int i = 0; i < 3000; i += 3) {
+                storage.delete("key" + i);
+            }
+            storage.delete("missing");
+            assertEquals(2000, storage.size());
+            storage.write("key0", "again");
+            assertEquals(2001, storage.size());
+        }));
+    }
+
+    @Test
+    public void testLegacyFormatIsMigrated() {
+        doInTempDirectory(path -> {
+            // Старый формат: long число пар, K ключ, long сдвиг значения; значения подряд в файле значений
+            ByteArrayOutputStream keys = new ByteArrayOutputStream();
+            ByteArrayOutputStream values = new ByteArrayOutputStream();
+            DataOutputStream keyOutput = new DataOutputStream(keys);
+            DataOutputStream valueOutput = new DataOutputStream(values);
+            keyOutput.writeLong(100);
+            for (int i = 0; i < 100; ++i) {
+                keyOutput.writeUTF("key" + i);
+                keyOutput.writeLong(valueOutput.size());
+                valueOutput.writeUTF("value" + i);
+            }
+            Files.write(Paths.get(path, "StringStringKeyStorage.db"), keys.toByteArray());
+            Files.write(Paths.get(path, "StringStringValueStorage.db"), values.toByteArray());
+            Adler32 checksum = new Adler32();
+            checksum.update(keys.toByteArray());
+            checksum.update(values.toByteArray());
+            Files.write(Paths.get(path, "StringStringStorageHash.db"), Longs.toByteArray(checksum.getValue()));
+
+            for (int attempt = 0; attempt < 2; ++attempt) {
+                KeyValueStorage<String, String> storage = buildStringsStorage(path);
+                assertEquals(100, storage.size());
+                assertEquals("value0", storage.read("key0"));
+                assertEquals("value99", storage.read("key99"));
+                assertNull(storage.read("key100"));
+                storage.close();
+            }
+        });
+    }
+
+    @Test
+    public void testUnknownFormatIsRejected() {
+        doInTempDirectory(path -> {
+            KeyValueStorage<String, String> storage = buildStringsStorage(path);
+            storage.write("key", "value");
+            storage.close();
+
+            // Версия формата из будущего
+            Path keyFile = Paths.get(path, "StringStringKeyStorage.db");
+            byte[] index = Files.readAllBytes(keyFile);
+            index[Ints.BYTES + Ints.BYTES - 1]++;
+            Files.write(keyFile, index);
+            Adler32 checksum = new Adler32();
+            checksum.update(index);
+            checksum.update(Files.readAllBytes(Paths.get(path, "StringStringValueStorage.db")));
+            Files.write(Paths.get(path, "StringStringStorageHash.db"), Longs.toByteArray(checksum.getValue()));
+
+            try {
+                buildStringsStorage(path);
+                fail("Storage of unknown format version should not open");
+            } catch (KVSException expected) {
+                assertTrue(expected.getMessage().contains("format version"));
+            }
+        });
+    }
+
+    @Override
+    protected KeyValueStorage<String, String> buildStringsStorage(
+            String path) throws MalformedDataException {
+        return new KWayOptimizedKvs<String, String>(path,
+                new StringSerializer(), new StringSerializer(), new StringComparator());
+    }
+
+    @Override
+    protected KeyValueStorage<Integer, Double> buildNumbersStorage(
+            String path) throws MalformedDataException {
+        return new KWayOptimizedKvs<Integer, Double>(path,
+                new PojoSerializer<Integer>(Integer.class),
+                new PojoSerializer<Double>(Double.class),
+                new POJOComparator<Integer>(Integer.class));
+    }
+
+    @Override
+    protected KeyValueStorage<StudentKey, Student> buildPojoStorage(
+            String path) throws MalformedDataException {
+        return new KWayOptimizedKvs<StudentKey, Student>(path,
+                new PojoSerializer<StudentKey>(StudentKey.class),
+                new PojoSerializer<Student>(Student.class),
+                new POJOComparator<StudentKey>(StudentKey.class));
+    }
+}
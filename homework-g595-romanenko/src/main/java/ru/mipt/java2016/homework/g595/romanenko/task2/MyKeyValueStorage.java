@@ -26,9 +26,19 @@ public class MyKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
     MyKeyValueStorage(String path,
                       SerializationStrategy<K> keySerializationStrategy,
                       SerializationStrategy<V> valueSerializationStrategy) throws IOException {
+        this(path, keySerializationStrategy, valueSerializationStrategy, false);
+    }
+
+    /**
+     * @param compressValues store values in compressed blocks, see SSTable
+     */
+    MyKeyValueStorage(String path,
+                      SerializationStrategy<K> keySerializationStrategy,
+                      SerializationStrategy<V> valueSerializationStrategy,
+                      boolean compressValues) throws IOException {
 
         table = new SSTable<>(path, keySerializationStrategy,
-                valueSerializationStrategy, FileDigitalSignatureRSA.getInstance());
+                valueSerializationStrategy, FileDigitalSignatureRSA.getInstance(), compressValues);
         totalAmount = table.size();
     }
 
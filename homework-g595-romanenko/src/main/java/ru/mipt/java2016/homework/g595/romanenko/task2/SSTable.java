@@ -5,8 +5,16 @@ import ru.mipt.java2016.homework.g595.romanenko.task2.serialization.Serializatio
 import ru.mipt.java2016.homework.g595.romanenko.utils.FileDigitalSignature;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Sorted strings table
@@ -18,11 +26,31 @@ import java.util.*;
 
 /*
 Number of nodes (Integer)
-Key, offset(Integer) ...
+Key, offset(Integer), value size(Integer) ...
 Values
+
+Compressed format (written when compressValues is set):
+COMPRESSED_FORMAT_MARK (Integer)
+Number of blocks (Integer)
+File offset, compressed size, uncompressed size, CRC32 of compressed block (Integer x 4) ...
+CRC32 of the block index above (Integer)
+Number of nodes (Integer)
+Pages of at most INDEX_PAGE_SIZE nodes:
+    Key, offset in uncompressed values(Integer), value size(Integer) ...
+    CRC32 of the page, first page includes number of nodes (Integer)
+Blocks of values compressed with Deflater
+
+Compressed format is protected by these checksums instead of the whole file signature:
+index is checked while it is read on open, every block is checked when it is read from disk.
 */
 public class SSTable<Key, Value> {
 
+    protected static final int COMPRESSED_FORMAT_MARK = -1;
+    protected static final int BLOCK_SIZE = 64 * 1024;
+    protected static final int MAX_CACHED_BLOCKS = 8;
+    protected static final int INDEX_PAGE_SIZE = 1024;
+    protected static final int BLOCK_INDEX_ENTRY_SIZE = 4 * Integer.BYTES;
+
     protected RandomAccessFile storage;
     protected final Map<Key, Integer> indices = new HashMap<>();
     protected final Map<Key, Integer> valueByteSize = new HashMap<>();
@@ -42,6 +70,32 @@ public class SSTable<Key, Value> {
 
     protected final FileDigitalSignature fileDigitalSignature;
 
+    /**
+     * Write values in compressed blocks on rewrite. Both formats are read regardless of it.
+     */
+    protected boolean compressValues = false;
+
+    /**
+     * Position of the number of nodes, rewriteIndices writes indices from here
+     */
+    protected int indicesPosition = 0;
+
+    /**
+     * Block index of compressed format, null for plain format
+     */
+    protected int[] blockFileOffsets = null;
+    protected int[] blockCompressedSizes = null;
+    protected int[] blockUncompressedStarts = null;
+    protected int[] blockUncompressedSizes = null;
+    protected int[] blockChecksums = null;
+
+    protected final Map<Integer, byte[]> blockCache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > MAX_CACHED_BLOCKS;
+        }
+    };
+
     public SSTable(String path,
                    SerializationStrategy<Key> keySerializationStrategy,
                    SerializationStrategy<Value> valueSerializationStrategy,
@@ -55,7 +109,7 @@ public class SSTable<Key, Value> {
         if (tryFile.exists() && tryFile.isDirectory()) {
             path += File.separator + "storage.db";
         }
-        if ((new File(path)).exists()) {
+        if ((new File(path)).exists() && !hasBlockChecksums(path)) {
             boolean validationOk = fileDigitalSignature.validateFileSignWithDefaultSignName(path);
             if (!validationOk) {
                 throw new IllegalStateException("Invalid database");
@@ -70,8 +124,32 @@ public class SSTable<Key, Value> {
     }
 
 
+    public SSTable(String path,
+                   SerializationStrategy<Key> keySerializationStrategy,
+                   SerializationStrategy<Value> valueSerializationStrategy,
+                   FileDigitalSignature fileDigitalSignature,
+                   boolean compressValues) throws IOException {
+        this(path, keySerializationStrategy, valueSerializationStrategy, fileDigitalSignature);
+        this.compressValues = compressValues;
+    }
+
+    /**
+     * Files of compressed format carry their own checksums and are not signed
+     */
+    protected static boolean hasBlockChecksums(String path) throws IOException {
+        try (DataInputStream stream = new DataInputStream(new FileInputStream(path))) {
+            return new File(path).length() >= Integer.BYTES && stream.readInt() == COMPRESSED_FORMAT_MARK;
+        }
+    }
+
     protected void readIndices() throws IOException {
         int totalAmount = storage.readInt();
+        if (totalAmount == COMPRESSED_FORMAT_MARK) {
+            readBlockIndex();
+            indicesPosition = (int) storage.getFilePointer();
+            readCheckedIndices();
+            return;
+        }
         BufferedInputStream stream = new BufferedInputStream(Channels.newInputStream(storage.getChannel()));
         IntegerSerializer serializer = IntegerSerializer.getInstance();
 
@@ -88,6 +166,92 @@ public class SSTable<Key, Value> {
         }
     }
 
+    protected void readBlockIndex() throws IOException {
+        int blocksAmount = storage.readInt();
+        if (blocksAmount < 0 || (long) blocksAmount * BLOCK_INDEX_ENTRY_SIZE > storage.length()) {
+            throw new IllegalStateException("Invalid database");
+        }
+        byte[] bytes = new byte[BLOCK_INDEX_ENTRY_SIZE * blocksAmount];
+        storage.readFully(bytes);
+        if (storage.readInt() != checksum(bytes, 0, bytes.length)) {
+            throw new IllegalStateException("Invalid database");
+        }
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        blockFileOffsets = new int[blocksAmount];
+        blockCompressedSizes = new int[blocksAmount];
+        blockUncompressedStarts = new int[blocksAmount];
+        blockUncompressedSizes = new int[blocksAmount];
+        blockChecksums = new int[blocksAmount];
+        int uncompressedStart = 0;
+        for (int i = 0; i < blocksAmount; i++) {
+            blockFileOffsets[i] = stream.readInt();
+            blockCompressedSizes[i] = stream.readInt();
+            blockUncompressedSizes[i] = stream.readInt();
+            blockChecksums[i] = stream.readInt();
+            blockUncompressedStarts[i] = uncompressedStart;
+            uncompressedStart += blockUncompressedSizes[i];
+        }
+    }
+
+    /**
+     * Reads index pages of compressed format and checks CRC32 of every page
+     */
+    protected void readCheckedIndices() throws IOException {
+        BufferedInputStream stream = new BufferedInputStream(Channels.newInputStream(storage.getChannel()));
+        CRC32 checksum = new CRC32();
+        CheckedInputStream checkedStream = new CheckedInputStream(stream, checksum);
+        IntegerSerializer serializer = IntegerSerializer.getInstance();
+
+        int totalAmount = serializer.deserializeFromStream(checkedStream);
+        for (int i = 0; i < totalAmount; i++) {
+            Key key = keySerializationStrategy.deserializeFromStream(checkedStream);
+            indices.put(key, serializer.deserializeFromStream(checkedStream));
+            valueByteSize.put(key, serializer.deserializeFromStream(checkedStream));
+            sortedKeys.add(key);
+            if ((i + 1) % INDEX_PAGE_SIZE == 0 || i + 1 == totalAmount) {
+                if (serializer.deserializeFromStream(stream) != (int) checksum.getValue()) {
+                    throw new IllegalStateException("Invalid database");
+                }
+                checksum.reset();
+            }
+        }
+        if (totalAmount == 0 && serializer.deserializeFromStream(stream) != (int) checksum.getValue()) {
+            throw new IllegalStateException("Invalid database");
+        }
+    }
+
+    /**
+     * Writes index of compressed format: number of nodes and pages of nodes, every page followed by its CRC32
+     */
+    protected void writeCheckedIndices(Collection<Key> keys, OutputStream outputStream) throws IOException {
+        IntegerSerializer integerSerializer = IntegerSerializer.getInstance();
+        CRC32 checksum = new CRC32();
+        CheckedOutputStream checkedStream = new CheckedOutputStream(outputStream, checksum);
+
+        integerSerializer.serializeToStream(keys.size(), checkedStream);
+        int i = 0;
+        for (Key key : keys) {
+            keySerializationStrategy.serializeToStream(key, checkedStream);
+            integerSerializer.serializeToStream(indices.get(key), checkedStream);
+            integerSerializer.serializeToStream(valueByteSize.get(key), checkedStream);
+            i++;
+            if (i % INDEX_PAGE_SIZE == 0 || i == keys.size()) {
+                integerSerializer.serializeToStream((int) checksum.getValue(), outputStream);
+                checksum.reset();
+            }
+        }
+        if (keys.isEmpty()) {
+            integerSerializer.serializeToStream((int) checksum.getValue(), outputStream);
+        }
+    }
+
+    protected static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes, offset, length);
+        return (int) checksum.getValue();
+    }
+
     /**
      * Write toFlip map to current storage. Remove old storage if it wasn't empty.
      * Flush data to disk and sign storage with FileDigitalSignature.
@@ -98,6 +262,17 @@ public class SSTable<Key, Value> {
         checkClosed();
 
         epochNumber++;
+        blockFileOffsets = null;
+        blockCompressedSizes = null;
+        blockUncompressedStarts = null;
+        blockUncompressedSizes = null;
+        blockChecksums = null;
+        blockCache.clear();
+        indicesPosition = 0;
+        if (compressValues) {
+            rewriteCompressed(toFlip);
+            return;
+        }
         try {
             indices.clear();
             valueByteSize.clear();
@@ -129,7 +304,8 @@ public class SSTable<Key, Value> {
                 byteSize = valueSerializationStrategy.getBytesSize(toFlip.get(key));
                 valueByteSize.put(key, byteSize);
                 integerSerializer.serializeToStream(byteSize, outputStream);
-                totalLength += byteSize;
+                // Offsets are Integer, so a table past 2 GB must fail here instead of wrapping around
+                totalLength = Math.addExact(totalLength, byteSize);
             }
 
             for (Key key : sortedKeys) {
@@ -147,6 +323,207 @@ public class SSTable<Key, Value> {
         }
     }
 
+    /**
+     * Same as rewrite, but values are grouped into blocks of about BLOCK_SIZE bytes, every block
+     * is compressed separately. A value never crosses block border, so reading it unpacks one block.
+     *
+     * @param toFlip map<Key, Value> to flip
+     */
+    protected void rewriteCompressed(Producer<Key, Value> toFlip) {
+        try {
+            indices.clear();
+            valueByteSize.clear();
+            sortedKeys.clear();
+            sortedKeys.addAll(toFlip.keySet());
+
+            List<byte[]> blocks = new ArrayList<>();
+            List<Integer> uncompressedSizes = new ArrayList<>();
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE);
+            Deflater deflater = new Deflater();
+            int uncompressedOffset = 0;
+            for (Key key : sortedKeys) {
+                byte[] value = valueSerializationStrategy.serializeToBytes(toFlip.get(key));
+                if (block.size() > 0 && block.size() + value.length > BLOCK_SIZE) {
+                    blocks.add(compressBlock(deflater, block));
+                    uncompressedSizes.add(block.size());
+                    block.reset();
+                }
+                indices.put(key, uncompressedOffset);
+                valueByteSize.put(key, value.length);
+                block.write(value);
+                uncompressedOffset = Math.addExact(uncompressedOffset, value.length);
+            }
+            if (block.size() > 0) {
+                blocks.add(compressBlock(deflater, block));
+                uncompressedSizes.add(block.size());
+            }
+            deflater.end();
+
+            IntegerSerializer integerSerializer = IntegerSerializer.getInstance();
+            int intSize = integerSerializer.getBytesSize(0);
+            int pagesAmount = Math.max(1, (sortedKeys.size() + INDEX_PAGE_SIZE - 1) / INDEX_PAGE_SIZE);
+            indicesPosition = 3 * intSize + BLOCK_INDEX_ENTRY_SIZE * blocks.size();
+            int fileOffset = indicesPosition + intSize + 2 * intSize * sortedKeys.size() + intSize * pagesAmount;
+            for (Key key : sortedKeys) {
+                fileOffset += keySerializationStrategy.getBytesSize(key);
+            }
+
+            storage.setLength(0);
+            BufferedOutputStream outputStream = new BufferedOutputStream(
+                    Channels.newOutputStream(storage.getChannel()));
+
+            integerSerializer.serializeToStream(COMPRESSED_FORMAT_MARK, outputStream);
+            integerSerializer.serializeToStream(blocks.size(), outputStream);
+            blockFileOffsets = new int[blocks.size()];
+            blockCompressedSizes = new int[blocks.size()];
+            blockUncompressedStarts = new int[blocks.size()];
+            blockUncompressedSizes = new int[blocks.size()];
+            blockChecksums = new int[blocks.size()];
+            CRC32 blockIndexChecksum = new CRC32();
+            CheckedOutputStream blockIndexStream = new CheckedOutputStream(outputStream, blockIndexChecksum);
+            int uncompressedStart = 0;
+            for (int i = 0; i < blocks.size(); i++) {
+                byte[] compressed = blocks.get(i);
+                blockFileOffsets[i] = fileOffset;
+                blockCompressedSizes[i] = compressed.length;
+                blockUncompressedStarts[i] = uncompressedStart;
+                blockUncompressedSizes[i] = uncompressedSizes.get(i);
+                blockChecksums[i] = checksum(compressed, 0, compressed.length);
+                integerSerializer.serializeToStream(fileOffset, blockIndexStream);
+                integerSerializer.serializeToStream(compressed.length, blockIndexStream);
+                integerSerializer.serializeToStream(uncompressedSizes.get(i), blockIndexStream);
+                integerSerializer.serializeToStream(blockChecksums[i], blockIndexStream);
+                fileOffset = Math.addExact(fileOffset, compressed.length);
+                uncompressedStart += uncompressedSizes.get(i);
+            }
+            integerSerializer.serializeToStream((int) blockIndexChecksum.getValue(), outputStream);
+
+            writeCheckedIndices(sortedKeys, outputStream);
+            for (byte[] compressed : blocks) {
+                outputStream.write(compressed);
+            }
+
+            outputStream.flush();
+
+            needToSign = true;
+
+            hasUncommittedChanges = false;
+
+        } catch (IOException e) {
+            throw new IllegalStateException();
+        }
+    }
+
+    private static byte[] compressBlock(Deflater deflater, ByteArrayOutputStream block) {
+        deflater.reset();
+        deflater.setInput(block.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.size() / 4 + 64);
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            compressed.write(buffer, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Unpacked block from cache or from disk
+     */
+    protected byte[] loadBlock(int blockNumber) throws IOException {
+        byte[] block = blockCache.get(blockNumber);
+        if (block != null) {
+            return block;
+        }
+        byte[] compressed = new byte[blockCompressedSizes[blockNumber]];
+        storage.seek(blockFileOffsets[blockNumber]);
+        storage.readFully(compressed);
+        if (checksum(compressed, 0, compressed.length) != blockChecksums[blockNumber]) {
+            throw new IOException("Checksum mismatch in block " + blockNumber);
+        }
+
+        block = new byte[blockUncompressedSizes[blockNumber]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < block.length) {
+                int unpacked = inflater.inflate(block, length, block.length - length);
+                if (unpacked == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Broken block " + blockNumber);
+                }
+                length += unpacked;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        blockCache.put(blockNumber, block);
+        return block;
+    }
+
+    protected Value getCompressedValue(int offset) throws IOException {
+        int blockNumber = Arrays.binarySearch(blockUncompressedStarts, offset);
+        if (blockNumber < 0) {
+            blockNumber = -blockNumber - 2;
+        }
+        byte[] block = loadBlock(blockNumber);
+        return valueSerializationStrategy.deserialize(block, offset - blockUncompressedStarts[blockNumber]);
+    }
+
+    /**
+     * Reads every block of compressed format from disk and checks its CRC32.
+     * Uses positional reads, so it may run in another thread together with getValue, but not with rewrite.
+     *
+     * @return numbers of blocks with wrong checksum, empty for plain format
+     */
+    public List<Integer> scrub() {
+        checkClosed();
+        int[] fileOffsets = blockFileOffsets;
+        int[] compressedSizes = blockCompressedSizes;
+        int[] checksums = blockChecksums;
+        List<Integer> brokenBlocks = new ArrayList<>();
+        if (checksums == null) {
+            return brokenBlocks;
+        }
+        try {
+            for (int i = 0; i < checksums.length; i++) {
+                ByteBuffer compressed = ByteBuffer.allocate(compressedSizes[i]);
+                while (compressed.hasRemaining()) {
+                    int position = fileOffsets[i] + compressed.position();
+                    if (storage.getChannel().read(compressed, position) < 0) {
+                        break;
+                    }
+                }
+                if (compressed.hasRemaining()
+                        || checksum(compressed.array(), 0, compressed.capacity()) != checksums[i]) {
+                    brokenBlocks.add(i);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return brokenBlocks;
+    }
+
+    /**
+     * Runs scrub in a background daemon thread
+     */
+    public CompletableFuture<List<Integer>> scrubInBackground() {
+        CompletableFuture<List<Integer>> result = new CompletableFuture<>();
+        Thread scrubber = new Thread(() -> {
+            try {
+                result.complete(scrub());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }, "sstable-scrubber");
+        scrubber.setDaemon(true);
+        scrubber.start();
+        return result;
+    }
+
     protected void checkClosed() {
         if (isClosed) {
             throw new IllegalStateException("File is closed");
@@ -161,11 +538,14 @@ public class SSTable<Key, Value> {
         Integer offset = indices.get(key);
         Value result;
         try {
+            if (blockUncompressedStarts != null) {
+                return getCompressedValue(offset);
+            }
             storage.seek(offset);
             InputStream stream = Channels.newInputStream(storage.getChannel());
             result = valueSerializationStrategy.deserializeFromStream(stream);
         } catch (IOException e) {
-            throw new IllegalStateException();
+            throw new IllegalStateException(e.getMessage(), e);
         }
         return result;
     }
@@ -176,18 +556,22 @@ public class SSTable<Key, Value> {
         }
 
         try {
-            storage.seek(0);
+            storage.seek(indicesPosition);
 
             IntegerSerializer integerSerializer = IntegerSerializer.getInstance();
             BufferedOutputStream outputStream = new BufferedOutputStream(
                     Channels.newOutputStream(storage.getChannel()));
 
-            integerSerializer.serializeToStream(indices.size(), outputStream);
+            if (blockChecksums != null) {
+                writeCheckedIndices(indices.keySet(), outputStream);
+            } else {
+                integerSerializer.serializeToStream(indices.size(), outputStream);
 
-            for (Map.Entry<Key, Integer> entry : indices.entrySet()) {
-                keySerializationStrategy.serializeToStream(entry.getKey(), outputStream);
-                integerSerializer.serializeToStream(entry.getValue(), outputStream);
-                integerSerializer.serializeToStream(valueByteSize.get(entry.getKey()), outputStream);
+                for (Map.Entry<Key, Integer> entry : indices.entrySet()) {
+                    keySerializationStrategy.serializeToStream(entry.getKey(), outputStream);
+                    integerSerializer.serializeToStream(entry.getValue(), outputStream);
+                    integerSerializer.serializeToStream(valueByteSize.get(entry.getKey()), outputStream);
+                }
             }
 
             outputStream.flush();
@@ -223,7 +607,7 @@ public class SSTable<Key, Value> {
         try {
             rewriteIndices();
             storage.close();
-            if (needToSign) {
+            if (needToSign && blockChecksums == null) {
                 fileDigitalSignature.signFileWithDefaultSignName(path);
             }
         } catch (IOException e) {
@@ -1,19 +1,20 @@
 package ru.mipt.java2016.homework.g595.romanenko.task3;
 
+import ru.mipt.java2016.homework.base.task2.KeyValueSnapshot;
 import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
 import ru.mipt.java2016.homework.base.task2.MalformedDataException;
 import ru.mipt.java2016.homework.g595.romanenko.task2.MapProducer;
 import ru.mipt.java2016.homework.g595.romanenko.task2.SSTable;
 import ru.mipt.java2016.homework.g595.romanenko.task2.serialization.IntegerSerializer;
+import ru.mipt.java2016.homework.g595.romanenko.task2.serialization.LongSerializer;
 import ru.mipt.java2016.homework.g595.romanenko.task2.serialization.SerializationStrategy;
 import ru.mipt.java2016.homework.g595.romanenko.task2.serialization.StringSerializer;
 import ru.mipt.java2016.homework.g595.romanenko.utils.FileDigitalSignature;
 
 import java.io.*;
 import java.nio.channels.Channels;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.stream.Collectors;
 
 
 /**
@@ -26,10 +27,13 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
 
     /**
      * Internal structure
+     * Values are appended to segment files: storage.db, storage.1.db, storage.2.db, ...
+     * Live segments are listed in tableList.db, so a closed segment is never rewritten.
+     * Address of a value is segment number in high 32 bits and offset in the segment in low 32 bits.
      */
-    private final RandomAccessFile storage;
+    private final Map<Integer, RandomAccessFile> segments = new TreeMap<>();
 
-    private final Map<K, Integer> indices = new HashMap<>();
+    private final Map<K, Long> indices = new HashMap<>();
 
     private final String currentDirectoryPath;
     private final SerializationStrategy<K> keySerializationStrategy;
@@ -51,6 +55,8 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
      */
     private final int maxUpdatedObjectsInMemory = 10; //10 * 10Kb = 100 Kb
     private final String defaultStorageName = "storage.db";
+    private static final long DEFAULT_MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+    private final long maxSegmentSize;
 
     /**
      * Internal state
@@ -58,16 +64,62 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
     private boolean isClosed = false;
     private int epochNumber = 0;
     private int totalAmount = 0;
-    private int storagePosition = 0;
     private int keyOverwriteAmount = 0;
+    private int currentSegment = 0;
 
+    /**
+     * Every close writes the index to a new file indices64.<generation>.db named by tableList.db,
+     * so the index listed in tableList.db always matches its segments
+     */
+    private int indexGeneration = 0;
+    private String indicesFileName = null;
+
+    /**
+     * Segments written since open, only they are signed on close
+     */
+    private final Set<Integer> modifiedSegments = new HashSet<>();
+
+    /**
+     * Segments replaced by rebuildStorage, they are deleted after tableList.db stops listing them
+     */
+    private final List<Integer> obsoleteSegments = new ArrayList<>();
+
+    /**
+     * Where the last read has stopped, to skip seek on sequential reads
+     */
+    private int readSegment = -1;
+    private long readPosition = -1;
+
+    /**
+     * Snapshots
+     * Every write and delete gets the next sequence number. While snapshots are open, the state a key had
+     * before a change is kept in versions, so a snapshot reads the state at its own sequence number.
+     * Old values stay in segments because segments are only appended to until close.
+     */
+    private long sequenceNumber = 0;
+    private final List<Snapshot> openSnapshots = new ArrayList<>();
+    private final Map<K, List<Version<V>>> versions = new HashMap<>();
 
     public Storage(String path,
                    SerializationStrategy<K> keySerializationStrategy,
                    SerializationStrategy<V> valueSerializationStrategy,
                    FileDigitalSignature fileDigitalSignature,
                    Comparator<K> keyComparator) {
+        this(path, keySerializationStrategy, valueSerializationStrategy, fileDigitalSignature, keyComparator,
+                DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param maxSegmentSize size after which values go to a new segment
+     */
+    public Storage(String path,
+                   SerializationStrategy<K> keySerializationStrategy,
+                   SerializationStrategy<V> valueSerializationStrategy,
+                   FileDigitalSignature fileDigitalSignature,
+                   Comparator<K> keyComparator,
+                   long maxSegmentSize) {
 
+        this.maxSegmentSize = maxSegmentSize;
         this.currentDirectoryPath = path;
         this.fileDigitalSignature = fileDigitalSignature;
         this.keySerializationStrategy = keySerializationStrategy;
@@ -83,25 +135,64 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
         }
 
         try {
-            storage = new RandomAccessFile(path + File.separator + defaultStorageName, "rw");
+            if (segments.isEmpty()) {
+                openSegment(0);
+                modifiedSegments.add(0);
+            }
         } catch (FileNotFoundException e) {
             throw new MalformedDataException();
         }
     }
 
+    private static long address(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private String segmentPath(int segment) {
+        String name = segment == 0 ? defaultStorageName : "storage." + segment + ".db";
+        return currentDirectoryPath + File.separator + name;
+    }
+
+    private RandomAccessFile openSegment(int segment) throws FileNotFoundException {
+        RandomAccessFile file = new RandomAccessFile(segmentPath(segment), "rw");
+        segments.put(segment, file);
+        currentSegment = Math.max(currentSegment, segment);
+        return file;
+    }
+
+    /**
+     * Positions segment file at the value
+     *
+     * @return stream reading from the value
+     */
+    private InputStream seekToValue(long address) throws IOException {
+        int segment = (int) (address >>> 32);
+        long offset = address & 0xFFFFFFFFL;
+        RandomAccessFile file = segments.get(segment);
+        if (file == null) {
+            throw new MalformedDataException("Segment " + segment + " is absent");
+        }
+        if (segment != readSegment || offset != readPosition) {
+            file.seek(offset);
+        }
+        readSegment = segment;
+        readPosition = offset;
+        return Channels.newInputStream(file.getChannel());
+    }
+
     private V loadValue(K key) {
         if (!indices.containsKey(key)) {
             return null;
         }
+        return loadValueAt(indices.get(key));
+    }
+
+    private V loadValueAt(long address) {
         V result;
         try {
-            Integer offset = indices.get(key);
-            if (offset != storagePosition) {
-                storage.seek(offset);
-            }
-            InputStream stream = Channels.newInputStream(storage.getChannel());
+            InputStream stream = seekToValue(address);
             result = valueSerializationStrategy.deserializeFromStream(stream);
-            storagePosition = offset + valueSerializationStrategy.getBytesSize(result);
+            readPosition += valueSerializationStrategy.getBytesSize(result);
         } catch (IOException e) {
             throw new MalformedDataException("Index exist, but value not");
         }
@@ -114,13 +205,9 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
         }
         byte[] result;
         try {
-            Integer offset = indices.get(key);
-            if (offset != storagePosition) {
-                storage.seek(offset);
-            }
-            InputStream stream = Channels.newInputStream(storage.getChannel());
+            InputStream stream = seekToValue(indices.get(key));
             result = valueSerializationStrategy.readValueAsBytes(stream);
-            storagePosition = offset + result.length;
+            readPosition += result.length;
         } catch (IOException e) {
             throw new MalformedDataException("Index exist, but value not");
         }
@@ -151,26 +238,55 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
 
         totalAmount = Integer.parseInt(tablesList.getValue("DBSize"));
         keyOverwriteAmount = Integer.parseInt(tablesList.getValue("DBOverwriteAmount"));
-
-        File file = new File(currentDirectoryPath + File.separator + defaultStorageName);
-        if (!(file.exists() && !file.isDirectory())) {
-            return false;
+        // Stores written before segments have one storage.db and int offsets
+        String segmentsList = tablesList.getValue("Segments");
+        indicesFileName = tablesList.getValue("Indices");
+        String indicesTableName = currentDirectoryPath + File.separator + indicesFileName;
+        String generation = tablesList.getValue("IndexGeneration");
+        if (generation != null) {
+            indexGeneration = Integer.parseInt(generation);
         }
-        String tableNamePath = currentDirectoryPath + File.separator + defaultStorageName;
-        boolean validationOk = fileDigitalSignature.validateFileSignWithDefaultSignName(tableNamePath);
-        if (!validationOk) {
-            throw new IllegalStateException("Invalid database");
+        tablesList.close();
+
+        List<Integer> segmentNumbers = new ArrayList<>();
+        if (segmentsList == null) {
+            segmentNumbers.add(0);
+        } else if (!segmentsList.isEmpty()) {
+            for (String segment : segmentsList.split(",")) {
+                segmentNumbers.add(Integer.parseInt(segment));
+            }
         }
 
-        String indicesTableName = currentDirectoryPath + File.separator + tablesList.getValue("Indices");
-        SSTable<K, Integer> indicesTable = new SSTable<>(indicesTableName,
-                keySerializationStrategy, IntegerSerializer.getInstance(), fileDigitalSignature);
-
-        Iterator<K> keysIt = indicesTable.readKeys();
+        for (int segment : segmentNumbers) {
+            File file = new File(segmentPath(segment));
+            if (!(file.exists() && !file.isDirectory())) {
+                return false;
+            }
+            boolean validationOk = fileDigitalSignature.validateFileSignWithDefaultSignName(segmentPath(segment));
+            if (!validationOk) {
+                throw new IllegalStateException("Invalid database");
+            }
+            openSegment(segment);
+        }
 
-        while (keysIt.hasNext()) {
-            K key = keysIt.next();
-            indices.put(key, indicesTable.getValue(key));
+        if (segmentsList == null) {
+            SSTable<K, Integer> indicesTable = new SSTable<>(indicesTableName,
+                    keySerializationStrategy, IntegerSerializer.getInstance(), fileDigitalSignature);
+            Iterator<K> keysIt = indicesTable.readKeys();
+            while (keysIt.hasNext()) {
+                K key = keysIt.next();
+                indices.put(key, address(0, indicesTable.getValue(key)));
+            }
+            indicesTable.close();
+        } else {
+            SSTable<K, Long> indicesTable = new SSTable<>(indicesTableName,
+                    keySerializationStrategy, LongSerializer.getInstance(), fileDigitalSignature);
+            Iterator<K> keysIt = indicesTable.readKeys();
+            while (keysIt.hasNext()) {
+                K key = keysIt.next();
+                indices.put(key, indicesTable.getValue(key));
+            }
+            indicesTable.close();
         }
 
         return true;
@@ -225,6 +341,7 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
     @Override
     public void write(K key, V value) {
         checkClosed();
+        rememberVersion(key, ++sequenceNumber);
         if (!exists(key)) {
             totalAmount++;
             epochNumber += 1;
@@ -240,15 +357,19 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
 
     private void flipUpdatedValues() {
         try {
-            if (storagePosition != storage.length()) {
-                storage.seek(storage.length());
+            RandomAccessFile storage = segments.get(currentSegment);
+            if (storage.length() >= maxSegmentSize) {
+                storage = openSegment(currentSegment + 1);
             }
-            storagePosition = (int) storage.length();
+            long storagePosition = storage.length();
+            storage.seek(storagePosition);
+            readSegment = -1;
+            modifiedSegments.add(currentSegment);
 
             OutputStream fileOutputStream = Channels.newOutputStream(storage.getChannel());
             BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileOutputStream);
             for (Map.Entry<K, V> entry : updatedValues) {
-                indices.put(entry.getKey(), storagePosition);
+                indices.put(entry.getKey(), address(currentSegment, storagePosition));
                 valueSerializationStrategy.serializeToStream(entry.getValue(), bufferedOutputStream);
                 storagePosition += valueSerializationStrategy.getBytesSize(entry.getValue());
             }
@@ -278,14 +399,76 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
     @Override
     public void delete(K key) {
         checkClosed();
+        rememberVersion(key, ++sequenceNumber);
         epochNumber += 1;
         if (exists(key)) {
             totalAmount -= 1;
         }
-        updatedValues.remove(key);
+        updatedValues.removeIf(entry -> entry.getKey().equals(key));
         indices.remove(key);
     }
 
+    /**
+     * Opens a read-only view of the current state, which stays valid while the storage is changed.
+     * Copies only the key set; values of changed keys are kept as versions until the snapshot is closed.
+     */
+    @Override
+    public KeyValueSnapshot<K, V> openSnapshot() {
+        checkClosed();
+        Snapshot snapshot = new Snapshot();
+        openSnapshots.add(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Saves the state of the key before the change with given sequence number, if some open snapshot needs it
+     */
+    private void rememberVersion(K key, long sequence) {
+        if (openSnapshots.isEmpty()) {
+            return;
+        }
+        long newestSnapshot = openSnapshots.get(openSnapshots.size() - 1).sequence;
+        List<Version<V>> keyVersions = versions.get(key);
+        if (keyVersions != null && keyVersions.get(keyVersions.size() - 1).overwrittenAt > newestSnapshot) {
+            // All open snapshots already see an older state of this key
+            return;
+        }
+        Version<V> version = null;
+        for (int i = updatedValues.size() - 1; i >= 0 && version == null; i--) {
+            if (updatedValues.get(i).getKey().equals(key)) {
+                version = new Version<>(sequence, true, -1, updatedValues.get(i).getValue());
+            }
+        }
+        if (version == null) {
+            Long address = indices.get(key);
+            version = new Version<>(sequence, address != null, address == null ? -1 : address, null);
+        }
+        if (keyVersions == null) {
+            keyVersions = new ArrayList<>();
+            versions.put(key, keyVersions);
+        }
+        keyVersions.add(version);
+    }
+
+    /**
+     * Drops versions which no open snapshot can see
+     */
+    private void releaseVersions() {
+        if (openSnapshots.isEmpty()) {
+            versions.clear();
+            return;
+        }
+        long oldestSnapshot = openSnapshots.get(0).sequence;
+        Iterator<List<Version<V>>> it = versions.values().iterator();
+        while (it.hasNext()) {
+            List<Version<V>> keyVersions = it.next();
+            keyVersions.removeIf(version -> version.overwrittenAt <= oldestSnapshot);
+            if (keyVersions.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
     @Override
     public Iterator<K> readKeys() {
         checkClosed();
@@ -310,6 +493,11 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
         }
         epochNumber += 1;
         isClosed = true;
+        for (Snapshot snapshot : openSnapshots) {
+            snapshot.isClosed = true;
+        }
+        openSnapshots.clear();
+        versions.clear();
         if (!updatedValues.isEmpty()) {
             flipUpdatedValues();
         }
@@ -317,10 +505,12 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
 
             String pathPrefix = currentDirectoryPath + File.separator;
 
-            if (keyOverwriteAmount >= totalAmount / 2) {
+            if (keyOverwriteAmount > 0 && keyOverwriteAmount >= totalAmount / 2) {
                 rebuildStorage();
             }
-            storage.close();
+            for (RandomAccessFile segment : segments.values()) {
+                segment.close();
+            }
             SSTable<String, String> tablesDB = new SSTable<>(
                     pathPrefix + "tableList.db",
                     StringSerializer.getInstance(),
@@ -330,43 +520,87 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
             Map<String, String> tablesListMap = new HashMap<>();
             tablesListMap.put("DBSize", Integer.toString(totalAmount));
             tablesListMap.put("DBOverwriteAmount", Integer.toString(keyOverwriteAmount));
-            tablesListMap.put("Indices", "indices.db");
-            tablesDB.rewrite(new MapProducer<>(tablesListMap));
-            tablesDB.close();
-
-            SSTable<K, Integer> indicesTable = new SSTable<>(
-                    pathPrefix + "indices.db",
-                    keySerializationStrategy, IntegerSerializer.getInstance(), fileDigitalSignature);
+            String newIndicesFileName = "indices64." + (indexGeneration + 1) + ".db";
+            tablesListMap.put("Indices", newIndicesFileName);
+            tablesListMap.put("IndexGeneration", Integer.toString(indexGeneration + 1));
+            tablesListMap.put("Segments", segments.keySet().stream()
+                    .map(String::valueOf).collect(Collectors.joining(",")));
+
+            for (int segment : modifiedSegments) {
+                fileDigitalSignature.signFileWithDefaultSignName(segmentPath(segment));
+            }
+            SSTable<K, Long> indicesTable = new SSTable<>(
+                    pathPrefix + newIndicesFileName,
+                    keySerializationStrategy, LongSerializer.getInstance(), fileDigitalSignature);
             indicesTable.rewrite(new MapProducer<>(indices));
             indicesTable.close();
 
-            fileDigitalSignature.signFileWithDefaultSignName(pathPrefix + defaultStorageName);
+            // tableList.db is written last, it switches the store to the new set of segments
+            tablesDB.rewrite(new MapProducer<>(tablesListMap));
+            tablesDB.close();
+
+            for (int segment : obsoleteSegments) {
+                new File(segmentPath(segment)).delete();
+                new File(segmentPath(segment) + ".sign").delete();
+            }
+            if (indicesFileName != null) {
+                new File(pathPrefix + indicesFileName).delete();
+                new File(pathPrefix + indicesFileName + ".sign").delete();
+            }
+            indicesFileName = newIndicesFileName;
+            indexGeneration += 1;
         } catch (IOException exp) {
             System.out.println(exp.getMessage());
             exp.printStackTrace();
         }
     }
 
+    /**
+     * Copies live values in address order into new segments. Old segments are deleted in close,
+     * after tableList.db is switched to the new ones.
+     */
     private void rebuildStorage() throws IOException {
-        String pathPrefix = currentDirectoryPath + File.separator;
-        FileOutputStream fileOutputStream = new FileOutputStream(pathPrefix + "tempStorage.db");
-        BufferedOutputStream newStorageStream = new BufferedOutputStream(fileOutputStream);
-        Integer totalLength = 0;
-        for (Map.Entry<K, Integer> entry : indices.entrySet()) {
+        List<Map.Entry<K, Long>> entries = new ArrayList<>(indices.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+
+        int segment = currentSegment + 1;
+        List<Integer> newSegments = new ArrayList<>();
+        BufferedOutputStream newStorageStream = null;
+        long segmentLength = 0;
+        for (Map.Entry<K, Long> entry : entries) {
             byte[] bytes = loadValueWithoutDeserialization(entry.getKey());
+            if (newStorageStream == null || segmentLength >= maxSegmentSize) {
+                if (newStorageStream != null) {
+                    newStorageStream.close();
+                    segment++;
+                }
+                newStorageStream = new BufferedOutputStream(new FileOutputStream(segmentPath(segment)));
+                newSegments.add(segment);
+                segmentLength = 0;
+            }
             newStorageStream.write(bytes);
-            entry.setValue(totalLength);
-            totalLength += bytes.length;
+            entry.setValue(address(segment, segmentLength));
+            segmentLength += bytes.length;
+        }
+        if (newStorageStream != null) {
+            newStorageStream.close();
+        } else {
+            new FileOutputStream(segmentPath(segment)).close();
+            newSegments.add(segment);
         }
 
-        newStorageStream.flush();
-        newStorageStream.close();
-        storage.close();
-
-        File storageFile = new File(pathPrefix + defaultStorageName);
-        File newStorageFile = new File(pathPrefix + "tempStorage.db");
-        Files.move(newStorageFile.toPath(), storageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        newStorageFile.delete();
+        for (RandomAccessFile file : segments.values()) {
+            file.close();
+        }
+        obsoleteSegments.addAll(segments.keySet());
+        segments.clear();
+        modifiedSegments.clear();
+        for (int newSegment : newSegments) {
+            openSegment(newSegment);
+            modifiedSegments.add(newSegment);
+        }
+        readSegment = -1;
+        keyOverwriteAmount = 0;
     }
 
     public class StorageIterator implements Iterator<K> {
@@ -428,4 +662,104 @@ public class Storage<K, V> implements KeyValueStorage<K, V> {
             return result;
         }
     }
+
+    /**
+     * State of a key before the change with sequence number overwrittenAt
+     */
+    private static class Version<V> {
+        private final long overwrittenAt;
+        private final boolean exists;
+        private final long address;
+        private final V value;
+
+        /**
+         * @param address where the value is in segments, or -1 if it was not flipped to disk yet
+         * @param value   value which was not flipped to disk yet
+         */
+        Version(long overwrittenAt, boolean exists, long address, V value) {
+            this.overwrittenAt = overwrittenAt;
+            this.exists = exists;
+            this.address = address;
+            this.value = value;
+        }
+    }
+
+    private class Snapshot implements KeyValueSnapshot<K, V> {
+        private final long sequence = sequenceNumber;
+        private final Set<K> keys = new HashSet<>(indices.keySet());
+        private boolean isClosed = false;
+
+        private Snapshot() {
+            for (Map.Entry<K, V> entry : updatedValues) {
+                keys.add(entry.getKey());
+            }
+        }
+
+        /**
+         * @return state of the key at the snapshot or null if the key has not changed since
+         */
+        private Version<V> versionAtSnapshot(K key) {
+            List<Version<V>> keyVersions = versions.get(key);
+            if (keyVersions != null) {
+                for (Version<V> version : keyVersions) {
+                    if (version.overwrittenAt > sequence) {
+                        return version;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void checkSnapshotClosed() {
+            if (isClosed) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+        }
+
+        @Override
+        public long sequenceNumber() {
+            return sequence;
+        }
+
+        @Override
+        public V read(K key) {
+            checkSnapshotClosed();
+            Version<V> version = versionAtSnapshot(key);
+            if (version == null) {
+                return Storage.this.read(key);
+            }
+            if (!version.exists) {
+                return null;
+            }
+            return version.address == -1 ? version.value : loadValueAt(version.address);
+        }
+
+        @Override
+        public boolean exists(K key) {
+            checkSnapshotClosed();
+            return keys.contains(key);
+        }
+
+        @Override
+        public Iterator<K> readKeys() {
+            checkSnapshotClosed();
+            return Collections.unmodifiableSet(keys).iterator();
+        }
+
+        @Override
+        public int size() {
+            checkSnapshotClosed();
+            return keys.size();
+        }
+
+        @Override
+        public void close() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            openSnapshots.remove(this);
+            releaseVersions();
+        }
+    }
 }
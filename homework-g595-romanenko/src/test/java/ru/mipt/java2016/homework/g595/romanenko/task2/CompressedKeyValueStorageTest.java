@@ -0,0 +1,147 @@
+package ru.mipt.java2016.homework.g595.romanenko.task2;
+
+import org.junit.Test;
+import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
+import ru.mipt.java2016.homework.g595.romanenko.task2.serialization.*;
+import ru.mipt.java2016.homework.g595.romanenko.utils.FileDigitalSignatureRSA;
+import ru.mipt.java2016.homework.tests.task2.AbstractSingleFileStorageTest;
+import ru.mipt.java2016.homework.tests.task2.Student;
+import ru.mipt.java2016.homework.tests.task2.StudentKey;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
+
+/**
+ * Same tests for storage with values in compressed blocks
+ **/
+
+public class CompressedKeyValueStorageTest extends AbstractSingleFileStorageTest {
+
+    @Override
+    protected KeyValueStorage<String, String> buildStringsStorage(String path) {
+        MyKeyValueStorage<String, String> result = null;
+        try {
+            result = new MyKeyValueStorage<>(
+                    path,
+                    StringSerializer.getInstance(),
+                    StringSerializer.getInstance(),
+                    true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    @Override
+    protected KeyValueStorage<Integer, Double> buildNumbersStorage(String path) {
+        MyKeyValueStorage<Integer, Double> result = null;
+        try {
+            result = new MyKeyValueStorage<>(
+                    path,
+                    IntegerSerializer.getInstance(),
+                    DoubleSerializer.getInstance(),
+                    true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    @Override
+    protected KeyValueStorage<StudentKey, Student> buildPojoStorage(String path) {
+        MyKeyValueStorage<StudentKey, Student> result = null;
+        try {
+            result = new MyKeyValueStorage<>(
+                    path,
+                    StudentKeySerializer.getInstance(),
+                    StudentSerializer.getInstance(),
+                    true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    private static String repetitiveValue() {
+        StringBuilder seed = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            seed.append((char) ('a' + i % 26));
+        }
+        String repeated = seed.toString();
+        while (repeated.length() < 8 * 1024) {
+            repeated += repeated;
+        }
+        return repeated;
+    }
+
+    @Test
+    public void testManyBlocks() {
+        String value = repetitiveValue();
+
+        doInTempDirectory(path -> {
+            doWithStrings(path, storage -> {
+                for (int i = 0; i < 100; i++) {
+                    storage.write("key" + i, i + value);
+                }
+            });
+            long fileLength = new File(path, "storage.db").length();
+            assertTrue("File is not compressed: " + fileLength, fileLength < 100 * value.length() / 4);
+
+            doWithStrings(path, storage -> {
+                storage.delete("key50");
+            });
+            doWithStrings(path, storage -> {
+                assertEquals(99, storage.size());
+                for (int i = 99; i >= 0; i--) {
+                    assertEquals(i == 50 ? null : i + value, storage.read("key" + i));
+                }
+            });
+        });
+    }
+
+    @Test
+    public void testBlockChecksums() {
+        String value = repetitiveValue();
+
+        doInTempDirectory(path -> {
+            doWithStrings(path, storage -> {
+                for (int i = 0; i < 100; i++) {
+                    storage.write("key" + i, i + value);
+                }
+            });
+            File file = new File(path, "storage.db");
+            try (RandomAccessFile corrupted = new RandomAccessFile(file, "rw")) {
+                long position = file.length() - 10;
+                corrupted.seek(position);
+                int oldByte = corrupted.read();
+                corrupted.seek(position);
+                corrupted.write(oldByte ^ 0xFF);
+            }
+
+            // Broken block is found only when it is read
+            SSTable<String, String> table = new SSTable<>(path, StringSerializer.getInstance(),
+                    StringSerializer.getInstance(), FileDigitalSignatureRSA.getInstance(), true);
+            List<Integer> brokenBlocks = table.scrubInBackground().get();
+            assertEquals(1, brokenBlocks.size());
+
+            int failures = 0;
+            for (int i = 0; i < 100; i++) {
+                try {
+                    assertEquals(i + value, table.getValue("key" + i));
+                } catch (IllegalStateException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                    assertTrue(e.getMessage().startsWith("Checksum mismatch in block"));
+                    failures++;
+                }
+            }
+            assertTrue(failures > 0 && failures < 100);
+            table.forceClose();
+        });
+    }
+}
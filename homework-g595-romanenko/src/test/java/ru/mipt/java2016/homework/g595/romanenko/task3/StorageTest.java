@@ -1,6 +1,7 @@
 package ru.mipt.java2016.homework.g595.romanenko.task3;
 
 import org.junit.Test;
+import ru.mipt.java2016.homework.base.task2.KeyValueSnapshot;
 import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
 import ru.mipt.java2016.homework.g595.romanenko.task2.StudentKeySerializer;
 import ru.mipt.java2016.homework.g595.romanenko.task2.StudentSerializer;
@@ -13,9 +14,18 @@ import ru.mipt.java2016.homework.tests.task2.Student;
 import ru.mipt.java2016.homework.tests.task2.StudentKey;
 import ru.mipt.java2016.homework.tests.task3.KeyValueStoragePerformanceTest;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
 import static ru.mipt.java2016.homework.tests.task3.PerformanceTestUtils.randomValue;
 
@@ -82,4 +92,146 @@ public class StorageTest extends KeyValueStoragePerformanceTest {
             }
         }));
     }
+
+    private Storage<String, String> buildSegmentedStorage(String path) {
+        return new Storage<>(
+                path,
+                StringSerializer.getInstance(),
+                StringSerializer.getInstance(),
+                FileDigitalSignatureAdler32.getInstance(),
+                String::compareTo,
+                64 * 1024
+        );
+    }
+
+    private static int segmentsAmount(String path) {
+        return new File(path).list((dir, name) -> name.startsWith("storage.") && name.endsWith(".db")).length;
+    }
+
+    @Test
+    public void testSegments() {
+        doInTempDirectory(path -> {
+            Storage<String, String> storage = buildSegmentedStorage(path);
+            Random random = new Random(42);
+            for (int i = 0; i < 200; i++) {
+                storage.write(Integer.toString(i), randomValue(random));
+            }
+            storage.close();
+            int segmentsBeforeRebuild = segmentsAmount(path);
+            assertTrue(segmentsBeforeRebuild > 10);
+
+            storage = buildSegmentedStorage(path);
+            random.setSeed(42);
+            for (int i = 0; i < 200; i++) {
+                assertEquals(randomValue(random), storage.read(Integer.toString(i)));
+            }
+            // Overwrite most of the keys, so close rebuilds segments and drops the old ones
+            for (int i = 0; i < 150; i++) {
+                storage.write(Integer.toString(i), "new" + i);
+            }
+            storage.close();
+            assertTrue(segmentsAmount(path) < segmentsBeforeRebuild);
+
+            storage = buildSegmentedStorage(path);
+            random.setSeed(42);
+            for (int i = 0; i < 200; i++) {
+                String value = randomValue(random);
+                assertEquals(i < 150 ? "new" + i : value, storage.read(Integer.toString(i)));
+            }
+            assertEquals(200, storage.size());
+            storage.close();
+        });
+    }
+
+    @Test
+    public void testUntouchedStorageIsNotRebuilt() {
+        doInTempDirectory(path -> {
+            buildSegmentedStorage(path).close();
+            String[] segments = new File(path).list((dir, name) -> name.startsWith("storage."));
+            Arrays.sort(segments);
+
+            // No keys and no overwrites: close must keep the segments as they are
+            buildSegmentedStorage(path).close();
+            String[] segmentsAfterReopen = new File(path).list((dir, name) -> name.startsWith("storage."));
+            Arrays.sort(segmentsAfterReopen);
+            assertArrayEquals(segments, segmentsAfterReopen);
+        });
+    }
+
+    @Test
+    public void testCrashBeforeTableListSwitch() {
+        doInTempDirectory(path -> {
+            Storage<String, String> storage = buildSegmentedStorage(path);
+            for (int i = 0; i < 200; i++) {
+                storage.write(Integer.toString(i), "old" + i);
+            }
+            storage.close();
+            File backup = new File(path, "backup");
+            assertTrue(backup.mkdir());
+            for (File file : new File(path).listFiles(File::isFile)) {
+                Files.copy(file.toPath(), new File(backup, file.getName()).toPath());
+            }
+
+            storage = buildSegmentedStorage(path);
+            for (int i = 0; i < 150; i++) {
+                storage.write(Integer.toString(i), "new" + i);
+            }
+            storage.close();
+            // Crash right before tableList.db is rewritten: new index and segments are on disk,
+            // old files are not deleted yet and tableList.db still lists them
+            for (File file : backup.listFiles()) {
+                File current = new File(path, file.getName());
+                if (file.getName().startsWith("tableList.db") || !current.exists()) {
+                    Files.copy(file.toPath(), current.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            storage = buildSegmentedStorage(path);
+            for (int i = 0; i < 200; i++) {
+                assertEquals("old" + i, storage.read(Integer.toString(i)));
+            }
+            storage.close();
+        });
+    }
+
+    @Test
+    public void testSnapshot() {
+        doInTempDirectory(path -> doWithStrings(path, storage -> {
+            for (int i = 0; i < 100; i++) {
+                storage.write("key" + i, "old" + i);
+            }
+            KeyValueSnapshot<String, String> snapshot = storage.openSnapshot();
+
+            // Writes go on while the snapshot is read
+            Iterator<String> keys = snapshot.readKeys();
+            int keysAmount = 0;
+            while (keys.hasNext()) {
+                String key = keys.next();
+                assertEquals("old" + key.substring(3), snapshot.read(key));
+                storage.write(key, "new" + key.substring(3));
+                storage.write("added" + keysAmount, "value");
+                keysAmount++;
+            }
+            assertEquals(100, keysAmount);
+            storage.delete("key7");
+
+            KeyValueSnapshot<String, String> snapshotAfterDelete = storage.openSnapshot();
+            storage.write("key7", "again");
+
+            assertEquals(100, snapshot.size());
+            assertEquals("old7", snapshot.read("key7"));
+            assertTrue(snapshot.exists("key7"));
+            assertFalse(snapshot.exists("added0"));
+            assertNull(snapshot.read("added0"));
+            assertNull(snapshotAfterDelete.read("key7"));
+            assertEquals("new8", snapshotAfterDelete.read("key8"));
+
+            snapshot.close();
+            assertEquals("again", storage.read("key7"));
+            assertNull(snapshotAfterDelete.read("key7"));
+            assertEquals(199, snapshotAfterDelete.size());
+            assertEquals(200, storage.size());
+            snapshotAfterDelete.close();
+        }));
+    }
 }
@@ -8,26 +8,27 @@ import ru.mipt.java2016.homework.g595.topilskiy.task3.Serializer.RWStreamSeriali
 import ru.mipt.java2016.homework.g595.topilskiy.task3.Verification.Adler32Verification;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.Iterator;
 
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -40,6 +41,12 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * - a buffered     <KeyType, ValueType>         cache           (for O(1) repeat access)
  * - a SSTable-like <KeyType, ValueTypeLocation> lookup table    (for O(logN) all-around access)
  *
+ * Thread-safety:
+ * - operations on single keys hold the storage lock in shared mode and a lock of the key's stripe,
+ *   so operations on keys from different stripes run in parallel
+ * - values are read from files with positional FileChannel reads, which need no file lock
+ * - buffer flushes, rebuilds and close hold the storage lock exclusively
+ *
  * @author Artem K. Topilskiy
  * @since 21.11.16
  */
@@ -72,6 +79,8 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
     private static final long MAX_FILE_BYTE_SIZE = 256 * 1024 * 1024;  /* 256MB */
     /* Maximum additional fraction of the storage size that can be dirty (filled with deleted values) */
     private static final double MAX_DIRTY_FRACTION = 2.0;
+    /* Number of stripes of key locks (a power of two) */
+    private static final int NUMBER_OF_KEY_LOCK_STRIPES = 64;
 
     /* Class for keeping the file and offset of where the Value is stored */
     private static class ValueFileAndOffset {
@@ -86,6 +95,9 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
         }
     }
 
+    /* Location of Values, which are still in bufferKeyVal and not yet on disk */
+    private static final ValueFileAndOffset VALUE_IN_BUFFER = new ValueFileAndOffset(-1, -1);
+
 
     /**
      *  Final Data of Storage
@@ -96,10 +108,10 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
     private final ISerializer keyTypeSerializer;
     /* A Serializer for ValueType in KeyValueStorage */
     private final ISerializer valueTypeSerializer;
-    /* A ReadWrite lock for thread-safety */
+    /* A ReadWrite lock for thread-safety: shared for single key operations, exclusive for file operations */
     private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    /* A */
-    private final ReentrantLock fileLock = new ReentrantLock();
+    /* ReadWrite locks for single keys, chosen by key hash */
+    private final ReentrantReadWriteLock[] keyLockStripes = new ReentrantReadWriteLock[NUMBER_OF_KEY_LOCK_STRIPES];
     /* A file for locking the storage on a filesystem level */
     private final File storageFilesystemLock;
 
@@ -158,17 +170,19 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
      *  Dynamic Data of Storage
      */
     /* Boolean whether Storage is Closed */
-    private Boolean isClosed = false;
+    private volatile boolean isClosed = false;
     /* Number of dirty (deleted) values in storage */
-    private int numberDirtyValues;
+    private final AtomicInteger numberDirtyValues = new AtomicInteger();
+    /* Number of insertions and deletions of keys, for invalidating Iterators */
+    private final AtomicInteger numberKeySetModifications = new AtomicInteger();
 
     /* A buffer for intermediate data storage */
-    private HashMap<KeyType, ValueType> bufferKeyVal = new HashMap<>();
-    /* A list of RAF of Storage in use for storing Values */
-    private ArrayList<RandomAccessFile> rafStorageFiles = new ArrayList<>();
+    private final ConcurrentHashMap<KeyType, ValueType> bufferKeyVal = new ConcurrentHashMap<>();
+    /* A list of FileChannels of Storage in use for storing Values */
+    private final ArrayList<FileChannel> storageFileChannels = new ArrayList<>();
 
     /* Map of Keys and the locations of Values in Storage */
-    private HashMap<KeyType, ValueFileAndOffset> mapKeyValueLocation = new HashMap<>();
+    private ConcurrentHashMap<KeyType, ValueFileAndOffset> mapKeyValueLocation = new ConcurrentHashMap<>();
 
 
     /**
@@ -271,10 +285,10 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
                     throw new MalformedDataException(FAILED_FILE_LOCATION);
                 }
 
-                rafStorageFiles.add(new RandomAccessFile(currentFile, "rw"));
+                storageFileChannels.add(openStorageFileChannel(currentFile));
             }
 
-            numberDirtyValues = RWStreamSerializer.deserializeInteger(readFromFile);
+            numberDirtyValues.set(RWStreamSerializer.deserializeInteger(readFromFile));
 
             Integer numberOfKeys = RWStreamSerializer.deserializeInteger(readFromFile);
 
@@ -314,37 +328,75 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
      */
     private boolean checkStorageTooDirty() {
         if (mapKeyValueLocation.size() > MAX_BUFFER_SIZE) {
-            return numberDirtyValues > mapKeyValueLocation.size() * MAX_DIRTY_FRACTION;
+            return numberDirtyValues.get() > mapKeyValueLocation.size() * MAX_DIRTY_FRACTION;
         } else {
-            return numberDirtyValues > 4 * MAX_BUFFER_SIZE;
+            return numberDirtyValues.get() > 4 * MAX_BUFFER_SIZE;
         }
     }
 
     /**
-     * @return the index of the next suitable RAF of Storage to write to
-     * @throws IOException if a new RAF file could not be created
+     * @return the lock of the stripe, to which key belongs
+     */
+    private ReentrantReadWriteLock getKeyLock(Object key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return keyLockStripes[hash & (NUMBER_OF_KEY_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * @return a FileChannel for reading and writing file
+     * @throws IOException if file could not be opened
+     */
+    private FileChannel openStorageFileChannel(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return the index of the next suitable FileChannel of Storage to write to
+     * @throws IOException if a new file could not be created
      */
-    private int getIndexOfRAFToWrite() throws IOException {
-        if (rafStorageFiles.size() != 0) {
-            RandomAccessFile currRAF = rafStorageFiles.get(rafStorageFiles.size() - 1);
-            if (currRAF.length() <= MAX_FILE_BYTE_SIZE) {
-                return rafStorageFiles.size() - 1;
+    private int getIndexOfChannelToWrite() throws IOException {
+        if (storageFileChannels.size() != 0) {
+            FileChannel currChannel = storageFileChannels.get(storageFileChannels.size() - 1);
+            if (currChannel.size() <= MAX_FILE_BYTE_SIZE) {
+                return storageFileChannels.size() - 1;
             }
         }
 
-        Integer newFileIndex = rafStorageFiles.size();
+        Integer newFileIndex = storageFileChannels.size();
         String  newFileName  = getPathToStorageFileOfIndex(newFileIndex);
         File newFile = new File(newFileName);
 
         createNewFileWrapper(newFile);
 
-        rafStorageFiles.add(new RandomAccessFile(newFileName, "rw"));
-        RandomAccessFile newRAF = rafStorageFiles.get(newFileIndex);
-        newRAF.setLength(0);
+        FileChannel newChannel = openStorageFileChannel(newFile);
+        newChannel.truncate(0);
+        storageFileChannels.add(newChannel);
 
         return newFileIndex;
     }
 
+    /**
+     *  Flush bufferKeyVal and rebuild Storage, if needed
+     *  NOTE: takes the write lock, so must not be called within a read lock
+     */
+    private void maintainStorage() {
+        readWriteLock.writeLock().lock();
+        try {
+            if (isClosed) {
+                return;
+            }
+            if (bufferKeyVal.size() >= MAX_BUFFER_SIZE) {
+                flushBuffer();
+            }
+            if (checkStorageTooDirty()) {
+                rebuildStorage();
+            }
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
     /**
      *  Flush bufferKeyVal to disk
      *  NOTE: only called within an existing write lock
@@ -352,16 +404,16 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
     private void flushBuffer() {
         readWriteLock.writeLock().lock();
         try {
-            int indexRAFToWrite = getIndexOfRAFToWrite();
-            RandomAccessFile usedRAF = rafStorageFiles.get(indexRAFToWrite);
+            int indexChannelToWrite = getIndexOfChannelToWrite();
+            FileChannel usedChannel = storageFileChannels.get(indexChannelToWrite);
 
-            usedRAF.seek(usedRAF.length());
+            usedChannel.position(usedChannel.size());
 
-            OutputStream outStream = Channels.newOutputStream(usedRAF.getChannel());
+            OutputStream outStream = Channels.newOutputStream(usedChannel);
 
             for (Map.Entry<KeyType, ValueType> entry: bufferKeyVal.entrySet()) {
                 ValueFileAndOffset valueLocation =
-                        new ValueFileAndOffset(indexRAFToWrite, usedRAF.getFilePointer());
+                        new ValueFileAndOffset(indexChannelToWrite, usedChannel.position());
 
                 mapKeyValueLocation.put(entry.getKey(), valueLocation);
                 RWStreamSerializer.serialize(entry.getValue(), valueTypeSerializer, outStream);
@@ -387,53 +439,48 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
                 flushBuffer();
             }
 
-            HashMap<KeyType, ValueFileAndOffset> newMapKeyValueLocation =
-                    new HashMap<KeyType, ValueFileAndOffset>();
+            ConcurrentHashMap<KeyType, ValueFileAndOffset> newMapKeyValueLocation =
+                    new ConcurrentHashMap<KeyType, ValueFileAndOffset>();
 
             ArrayList<File> newFiles = new ArrayList<>();
 
 
             File currFile = new File(getPathToStorageFileOfIndex(newFiles.size()) + "tmp");
             newFiles.add(currFile);
-            RandomAccessFile currRAF = new RandomAccessFile(currFile, "rw");
-            OutputStream outStream = Channels.newOutputStream(currRAF.getChannel());
-            currRAF.setLength(0);
-            currRAF.seek(0);
+            FileChannel currChannel = FileChannel.open(currFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            OutputStream outStream = Channels.newOutputStream(currChannel);
 
             for (Map.Entry<KeyType, ValueFileAndOffset> entry : mapKeyValueLocation.entrySet()) {
-                if (currRAF.length() > MAX_FILE_BYTE_SIZE) {
+                if (currChannel.size() > MAX_FILE_BYTE_SIZE) {
                     outStream.close();
-                    currRAF.close();
 
                     currFile = new File(getPathToStorageFileOfIndex(newFiles.size()) + "tmp");
                     newFiles.add(currFile);
-                    currRAF = new RandomAccessFile(currFile, "rw");
-                    outStream = Channels.newOutputStream(currRAF.getChannel());
-                    currRAF.setLength(0);
-                    currRAF.seek(0);
+                    currChannel = FileChannel.open(currFile.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                    outStream = Channels.newOutputStream(currChannel);
                 }
 
-                RandomAccessFile currValueFile = rafStorageFiles.get(entry.getValue().file);
-                currValueFile.seek(entry.getValue().offset);
-                InputStream inStream = Channels.newInputStream(currValueFile.getChannel());
-
-                ValueType currValue =
-                        (ValueType) RWStreamSerializer.deserialize(valueTypeSerializer, inStream);
+                ValueType currValue = (ValueType) RWStreamSerializer.deserializeAt(valueTypeSerializer,
+                        storageFileChannels.get(entry.getValue().file), entry.getValue().offset);
 
                 ValueFileAndOffset newValueLocation =
-                        new ValueFileAndOffset(newFiles.size() - 1, currRAF.getFilePointer());
+                        new ValueFileAndOffset(newFiles.size() - 1, currChannel.position());
 
                 newMapKeyValueLocation.put(entry.getKey(), newValueLocation);
                 RWStreamSerializer.serialize(currValue, valueTypeSerializer, outStream);
             }
+            outStream.close();
 
 
-            for (RandomAccessFile currentFile : rafStorageFiles) {
-                currentFile.close();
+            int numberOfOldFiles = storageFileChannels.size();
+            for (FileChannel currentChannel : storageFileChannels) {
+                currentChannel.close();
             }
-            rafStorageFiles.clear();
+            storageFileChannels.clear();
 
-            for (Integer fileIndex = 0; fileIndex < rafStorageFiles.size(); ++fileIndex) {
+            for (Integer fileIndex = 0; fileIndex < numberOfOldFiles; ++fileIndex) {
                 Path currPath = Paths.get(getPathToStorageFileOfIndex(fileIndex));
                 Files.delete(currPath);
             }
@@ -445,10 +492,10 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
                 Files.move(currPath, destPath);
             }
 
-            for (File newFile : newFiles) {
-                rafStorageFiles.add(new RandomAccessFile(newFile, "rw"));
+            for (Integer fileIndex = 0; fileIndex < newFiles.size(); ++fileIndex) {
+                storageFileChannels.add(openStorageFileChannel(new File(getPathToStorageFileOfIndex(fileIndex))));
             }
-            numberDirtyValues = 0;
+            numberDirtyValues.set(0);
             mapKeyValueLocation = newMapKeyValueLocation;
 
         } catch (IOException caught) {
@@ -479,6 +526,10 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
         this.keyTypeSerializer = keyTypeSerializer;
         this.valueTypeSerializer = valueTypeSerializer;
 
+        for (int stripe = 0; stripe < NUMBER_OF_KEY_LOCK_STRIPES; ++stripe) {
+            keyLockStripes[stripe] = new ReentrantReadWriteLock();
+        }
+
         storageFilesystemLock = new File(getPathToLockStorage());
         try {
             if (!storageFilesystemLock.createNewFile()) {
@@ -500,36 +551,30 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
      */
     @Override
     public ValueType read(KeyType key) throws MalformedDataException {
-        checkNotClosed();
+        ReentrantReadWriteLock keyLock = getKeyLock(key);
 
         readWriteLock.readLock().lock();
+        keyLock.readLock().lock();
         try {
-            ValueType readValue = null;
-
-            if (bufferKeyVal.keySet().contains(key)) {
-                readValue = bufferKeyVal.get(key);
+            checkNotClosed();
 
-            } else if (mapKeyValueLocation.keySet().contains(key)) {
-                Integer file = mapKeyValueLocation.get(key).file;
-                Long offset = mapKeyValueLocation.get(key).offset;
-                RandomAccessFile currentFile = rafStorageFiles.get(file);
+            ValueType readValue = bufferKeyVal.get(key);
+            ValueFileAndOffset valueLocation = mapKeyValueLocation.get(key);
 
-                fileLock.lock();
+            if (readValue == null && valueLocation != null && valueLocation != VALUE_IN_BUFFER) {
                 try {
-                    currentFile.seek(offset);
-                    InputStream inStream = Channels.newInputStream(currentFile.getChannel());
-                    readValue = (ValueType) RWStreamSerializer.deserialize(valueTypeSerializer, inStream);
+                    readValue = (ValueType) RWStreamSerializer.deserializeAt(valueTypeSerializer,
+                            storageFileChannels.get(valueLocation.file), valueLocation.offset);
 
                 } catch (IOException caught) {
                     throw new MalformedDataException(FAILED_FILE_READ);
-                } finally {
-                    fileLock.unlock();
                 }
             }
 
             return readValue;
 
         } finally {
+            keyLock.readLock().unlock();
             readWriteLock.readLock().unlock();
         }
     }
@@ -543,15 +588,14 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
      */
     @Override
     public boolean exists(KeyType key) throws MalformedDataException {
-        checkNotClosed();
-
         readWriteLock.readLock().lock();
         try {
-            /* mapKeyValueLocation has all of the keys of bufferKeyVal, but the latter has less elements,
-             * so a search there first will be much faster in the best case than
-             * just looking straight into mapKeyValueLocation
+            checkNotClosed();
+
+            /* mapKeyValueLocation has all of the keys of bufferKeyVal (both are concurrent maps,
+             * so a single lookup needs no key lock)
              */
-            return bufferKeyVal.containsKey(key) || mapKeyValueLocation.containsKey(key);
+            return mapKeyValueLocation.containsKey(key);
         } finally {
             readWriteLock.readLock().unlock();
         }
@@ -566,28 +610,31 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
      */
     @Override
     public void write(KeyType key, ValueType value) throws MalformedDataException {
-        checkNotClosed();
+        ReentrantReadWriteLock keyLock = getKeyLock(key);
 
-        readWriteLock.writeLock().lock();
+        readWriteLock.readLock().lock();
+        keyLock.writeLock().lock();
         try {
-            /* If the old value will have to be deleted */
-            if (mapKeyValueLocation.containsKey(key) && !bufferKeyVal.containsKey(key)) {
-                ++numberDirtyValues;
-            }
+            checkNotClosed();
 
-            bufferKeyVal.put(key, value);
-            mapKeyValueLocation.put(key, null);
+            ValueFileAndOffset oldValueLocation = mapKeyValueLocation.put(key, VALUE_IN_BUFFER);
 
-            if (bufferKeyVal.size() >= MAX_BUFFER_SIZE) {
-                flushBuffer();
+            /* If the old value will have to be deleted */
+            if (oldValueLocation == null) {
+                numberKeySetModifications.incrementAndGet();
+            } else if (oldValueLocation != VALUE_IN_BUFFER) {
+                numberDirtyValues.incrementAndGet();
             }
 
-            if (checkStorageTooDirty()) {
-                rebuildStorage();
-            }
+            bufferKeyVal.put(key, value);
 
         } finally {
-            readWriteLock.writeLock().unlock();
+            keyLock.writeLock().unlock();
+            readWriteLock.readLock().unlock();
+        }
+
+        if (bufferKeyVal.size() >= MAX_BUFFER_SIZE || checkStorageTooDirty()) {
+            maintainStorage();
         }
     }
 
@@ -599,24 +646,27 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
      */
     @Override
     public void delete(KeyType key) throws MalformedDataException {
-        checkNotClosed();
+        ReentrantReadWriteLock keyLock = getKeyLock(key);
 
-        readWriteLock.writeLock().lock();
+        readWriteLock.readLock().lock();
+        keyLock.writeLock().lock();
         try {
-            if (mapKeyValueLocation.containsKey(key)) {
-                ++numberDirtyValues;
+            checkNotClosed();
 
-                mapKeyValueLocation.remove(key);
+            if (mapKeyValueLocation.remove(key) != null) {
+                numberDirtyValues.incrementAndGet();
+                numberKeySetModifications.incrementAndGet();
             }
 
             bufferKeyVal.remove(key);
 
-            if (checkStorageTooDirty()) {
-                rebuildStorage();
-            }
-
         } finally {
-            readWriteLock.writeLock().unlock();
+            keyLock.writeLock().unlock();
+            readWriteLock.readLock().unlock();
+        }
+
+        if (checkStorageTooDirty()) {
+            maintainStorage();
         }
     }
 
@@ -628,11 +678,33 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
      */
     @Override
     public Iterator<KeyType> readKeys() throws MalformedDataException {
-        checkNotClosed();
-
         readWriteLock.readLock().lock();
         try {
-            return mapKeyValueLocation.keySet().iterator();
+            checkNotClosed();
+
+            final Iterator<KeyType> keyIterator = mapKeyValueLocation.keySet().iterator();
+            final int expectedKeySetModifications = numberKeySetModifications.get();
+
+            /* Iterators of concurrent maps never fail, so modifications of the key set are tracked here */
+            return new Iterator<KeyType>() {
+                @Override
+                public boolean hasNext() {
+                    checkNotModified();
+                    return keyIterator.hasNext();
+                }
+
+                @Override
+                public KeyType next() {
+                    checkNotModified();
+                    return keyIterator.next();
+                }
+
+                private void checkNotModified() {
+                    if (numberKeySetModifications.get() != expectedKeySetModifications) {
+                        throw new ConcurrentModificationException();
+                    }
+                }
+            };
         } finally {
             readWriteLock.readLock().unlock();
         }
@@ -646,10 +718,10 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
      */
     @Override
     public int size() throws MalformedDataException {
-        checkNotClosed();
-
         readWriteLock.readLock().lock();
         try {
+            checkNotClosed();
+
             return mapKeyValueLocation.size();
         } finally {
             readWriteLock.readLock().unlock();
@@ -665,12 +737,11 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
      */
     @Override
     public void close() throws MalformedDataException {
-        if (isClosed) {
-            return;
-        }
-
         readWriteLock.writeLock().lock();
         try {
+            if (isClosed) {
+                return;
+            }
             isClosed = true;
             flushBuffer();
 
@@ -682,8 +753,8 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
                          new BufferedOutputStream(new FileOutputStream(getPathToStorage()))) {
 
                 RWStreamSerializer.serializeString(getSerializerClassStringVerification(), storageBOS);
-                RWStreamSerializer.serializeInteger(rafStorageFiles.size(), storageBOS);
-                RWStreamSerializer.serializeInteger(numberDirtyValues, storageBOS);
+                RWStreamSerializer.serializeInteger(storageFileChannels.size(), storageBOS);
+                RWStreamSerializer.serializeInteger(numberDirtyValues.get(), storageBOS);
                 RWStreamSerializer.serializeInteger(mapKeyValueLocation.size(), storageBOS);
 
                 for (Map.Entry<KeyType, ValueFileAndOffset> entry : mapKeyValueLocation.entrySet()) {
@@ -697,9 +768,9 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
 
             try (BufferedOutputStream storageHashBOS =
                          new BufferedOutputStream(new FileOutputStream(getPathToHashStorage()))) {
-                RWStreamSerializer.serializeInteger(rafStorageFiles.size(), storageHashBOS);
+                RWStreamSerializer.serializeInteger(storageFileChannels.size(), storageHashBOS);
 
-                for (Integer fileIndex = 0; fileIndex < rafStorageFiles.size(); ++fileIndex) {
+                for (Integer fileIndex = 0; fileIndex < storageFileChannels.size(); ++fileIndex) {
                     Long currentFileChecksum =
                             Adler32Verification.calculateAdler32Checksum(getPathToStorageFileOfIndex(fileIndex));
                     RWStreamSerializer.serializeLong(currentFileChecksum, storageHashBOS);
@@ -709,8 +780,8 @@ public class OptimisedByteKeyValueStorage<KeyType, ValueType> implements KeyValu
             }
 
             try {
-                for (RandomAccessFile currentFile : rafStorageFiles) {
-                    currentFile.close();
+                for (FileChannel currentChannel : storageFileChannels) {
+                    currentChannel.close();
                 }
             } catch (IOException caught) {
                 throw new MalformedDataException(FAILED_FILE_LOCATION);
@@ -7,6 +7,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 import java.util.Date;
 
 /**
@@ -98,6 +101,46 @@ public class RWStreamSerializer {
         }
     }
 
+    /**
+     * Deserialize a Type value located at position in channel
+     * NOTE: uses positional reads, so channel position is not changed
+     *       and several threads may read from the same channel at once
+     *
+     * @param  readTypeSerializer - the Serializer of Type to be read
+     * @param  channel - FileChannel to be read from
+     * @param  position - offset of the value in channel
+     * @return an Object read, which can be casted to Type
+     * @throws IOException - if data cannot be read properly
+     */
+    public static Object deserializeAt(ISerializer readTypeSerializer, FileChannel channel,
+                                       long position) throws IOException {
+        ByteBuffer lenBuffer = ByteBuffer.allocate(IntegerSerializerSingleton.getIntegerByteSize());
+        readFully(channel, lenBuffer, position);
+        Integer lenRead = IntegerSerializerSingleton.getInstance().deserialize(lenBuffer.array());
+
+        if (lenRead.equals(NULL_INTEGER_LENGTH)) {
+            return null;
+        } else {
+            ByteBuffer typeBuffer = ByteBuffer.allocate(lenRead);
+            readFully(channel, typeBuffer, position + lenBuffer.capacity());
+
+            return readTypeSerializer.deserialize(typeBuffer.array());
+        }
+    }
+
+    /**
+     * Fill buffer with bytes of channel starting from position
+     *
+     * @throws IOException - if channel ends before buffer is filled
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
     /**
      * Deserialize an Integer value from inStream
      *
@@ -0,0 +1,38 @@
+package ru.mipt.java2016.homework.g595.topilskiy.task1;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.mipt.java2016.homework.base.task1.Calculator;
+import ru.mipt.java2016.homework.base.task1.CompilingCalculator;
+import ru.mipt.java2016.homework.base.task1.ParsingException;
+import ru.mipt.java2016.homework.tests.task1.AbstractCalculatorTest;
+
+/**
+ * Runs the common calculator tests against CompilingCalculator
+ * with a cache small enough to force evictions.
+ */
+public class CompilingCalculatorTest extends AbstractCalculatorTest {
+    private final CompilingCalculator calculator = new CompilingCalculator(new SimpleCalculator(), 4);
+
+    @Override
+    protected Calculator calc() {
+        return calculator;
+    }
+
+    @Test
+    public void testRepeatedEvaluation() throws ParsingException {
+        for (int i = 0; i < 3; ++i) {
+            test("6.0 - 4 * (0.0 + 5/2)", -4.0);
+            test("1/2/3/4/5", 1.0 / 2 / 3 / 4 / 5);
+        }
+        Assert.assertEquals(2, calculator.cachedExpressions());
+    }
+
+    @Test
+    public void testCacheIsBounded() throws ParsingException {
+        for (int i = 0; i < 10; ++i) {
+            test(i + " + 1", i + 1);
+        }
+        Assert.assertEquals(4, calculator.cachedExpressions());
+    }
+}
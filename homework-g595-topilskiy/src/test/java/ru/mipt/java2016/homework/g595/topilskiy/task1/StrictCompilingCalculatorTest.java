@@ -0,0 +1,32 @@
+package ru.mipt.java2016.homework.g595.topilskiy.task1;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.mipt.java2016.homework.base.task1.Calculator;
+import ru.mipt.java2016.homework.base.task1.CompilingCalculator;
+import ru.mipt.java2016.homework.base.task1.ParsingException;
+import ru.mipt.java2016.homework.tests.task1.AbstractCalculatorTest;
+
+/**
+ * Runs the common calculator tests against CompilingCalculator without a fallback,
+ * so every expression is accepted or rejected by CompiledExpression alone.
+ */
+public class StrictCompilingCalculatorTest extends AbstractCalculatorTest {
+    private final CompilingCalculator calculator = new CompilingCalculator(4);
+
+    @Override
+    protected Calculator calc() {
+        return calculator;
+    }
+
+    @Test
+    public void testRejectedExpressionIsNotCached() {
+        try {
+            calculator.calculate("1 + (2");
+            Assert.fail("Unbalanced braces should not compile");
+        } catch (ParsingException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Expected ')'"));
+        }
+        Assert.assertEquals(0, calculator.cachedExpressions());
+    }
+}
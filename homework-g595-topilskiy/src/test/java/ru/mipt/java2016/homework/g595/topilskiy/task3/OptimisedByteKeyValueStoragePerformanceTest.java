@@ -16,6 +16,15 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
 
 
 /**
@@ -23,6 +32,9 @@ import java.io.RandomAccessFile;
  * @since 20.11.16
  */
 public class OptimisedByteKeyValueStoragePerformanceTest extends KeyValueStoragePerformanceTest {
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 2000;
+
     @Test
     public void testAdler32() throws IOException {
         final String TEST_FILE_PATH = "/tmp/test_adler.txt";
@@ -40,6 +52,49 @@ public class OptimisedByteKeyValueStoragePerformanceTest extends KeyValueStorage
         }
     }
 
+    @Test
+    public void testConcurrentReadWrite() {
+        doInTempDirectory(path -> {
+            doWithStrings(path, storage -> {
+                ExecutorService executor = Executors.newFixedThreadPool(2 * THREADS);
+                try {
+                    List<Future<?>> futures = new ArrayList<>();
+                    for (int thread = 0; thread < THREADS; ++thread) {
+                        final int first = thread * KEYS_PER_THREAD;
+                        futures.add(executor.submit(() -> {
+                            for (int i = first; i < first + KEYS_PER_THREAD; ++i) {
+                                storage.write("key" + i, "value" + i);
+                            }
+                        }));
+                        // Readers run over the same keys while they are being written
+                        futures.add(executor.submit(() -> {
+                            for (int i = first; i < first + KEYS_PER_THREAD; ++i) {
+                                String value = storage.read("key" + i);
+                                assertTrue(value == null || value.equals("value" + i));
+                            }
+                        }));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                } finally {
+                    executor.shutdown();
+                }
+
+                assertEquals(THREADS * KEYS_PER_THREAD, storage.size());
+                for (int i = 0; i < THREADS * KEYS_PER_THREAD; ++i) {
+                    assertEquals("value" + i, storage.read("key" + i));
+                }
+            });
+            doWithStrings(path, storage -> {
+                assertEquals(THREADS * KEYS_PER_THREAD, storage.size());
+                assertEquals("value0", storage.read("key0"));
+                assertEquals("value" + (THREADS * KEYS_PER_THREAD - 1),
+                        storage.read("key" + (THREADS * KEYS_PER_THREAD - 1)));
+            });
+        });
+    }
+
     @Override
     protected KeyValueStorage<String, String> buildStringsStorage(String path) throws MalformedDataException {
         return new OptimisedByteKeyValueStorage<>(path, StringSerializerSingleton.getInstance(),
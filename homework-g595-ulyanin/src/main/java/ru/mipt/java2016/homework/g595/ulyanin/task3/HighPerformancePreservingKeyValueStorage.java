@@ -8,7 +8,7 @@ import javax.xml.bind.ValidationException;
 import java.io.*;
 import java.nio.channels.FileLock;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 
 /**
@@ -18,7 +18,11 @@ import java.util.Iterator;
 public class HighPerformancePreservingKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
     private enum StorageState { CLOSED, OPENED }
 
-    private static final int MAX_MEMORY_BYTES = 40 * 1024 * 1024;
+    /**
+     * MemTable is flushed when its keys and values take that many bytes serialized;
+     * on heap they take a few times more, and tests run with -Xmx64M
+     */
+    private static final long MAX_MEMTABLE_BYTES = 4 * 1024 * 1024;
 
     private static final String DEFAULT_DB_NAME = "HPPKVStorage";
 
@@ -32,9 +36,11 @@ public class HighPerformancePreservingKeyValueStorage<K, V> implements KeyValueS
     private Serializer<K> keySerializer;
     private Serializer<V> valueSerializer;
 
-    private HashMap<K, V> memTable;
+    private MemTable<K, V> memTable;
     private SSTable<K, V> storage;
     private File associatedFile;
+    private int size;
+    private int modificationCount;
 
     HighPerformancePreservingKeyValueStorage(String workingDirectory,
                                              Serializer<K> keySerializer,
@@ -43,7 +49,7 @@ public class HighPerformancePreservingKeyValueStorage<K, V> implements KeyValueS
         this.keySerializer = keySerializer;
         this.valueSerializer = valueSerializer;
         this.workingDirectory = workingDirectory;
-        memTable = new HashMap<>();
+        memTable = new MemTable<>(keySerializer, valueSerializer);
         File tmp = new File(workingDirectory);
         storageFileName = workingDirectory;
         if (tmp.exists()) {
@@ -66,6 +72,7 @@ public class HighPerformancePreservingKeyValueStorage<K, V> implements KeyValueS
                 System.out.println("database already in use");
             }
         }
+        size = storage.size();
     }
 
     private void createLockFile() throws IOException {
@@ -100,38 +107,105 @@ public class HighPerformancePreservingKeyValueStorage<K, V> implements KeyValueS
         dataIS.close();
     }
 
+    private void throwIfClosed() {
+        if (state == StorageState.CLOSED) {
+            throw new IllegalStateException("storage is closed");
+        }
+    }
+
+    private void flushMemTableIfFull() throws IOException {
+        if (memTable.sizeInBytes() >= MAX_MEMTABLE_BYTES) {
+            memTable.flushTo(storage);
+        }
+    }
+
     @Override
     public V read(K key) {
-        return storage.read(key);
+        throwIfClosed();
+        if (!memTable.contains(key)) {
+            return storage.read(key);
+        }
+        try {
+            return memTable.read(key);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
     public boolean exists(K key) {
+        throwIfClosed();
+        if (memTable.contains(key)) {
+            return !memTable.isDeleted(key);
+        }
         return storage.exists(key);
     }
 
     @Override
     public void write(K key, V value) {
+        if (!exists(key)) {
+            ++size;
+            ++modificationCount;
+        }
         try {
-            storage.appendEntry(key, value);
+            memTable.write(key, value);
+            flushMemTableIfFull();
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException(e);
         }
     }
 
     @Override
     public void delete(K key) {
-        storage.delete(key);
+        if (!exists(key)) {
+            return;
+        }
+        --size;
+        ++modificationCount;
+        try {
+            memTable.delete(key);
+            flushMemTableIfFull();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
     public Iterator<K> readKeys() {
-        return storage.readKeys();
+        throwIfClosed();
+        try {
+            memTable.flushTo(storage);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Iterator<K> keys = storage.readKeys();
+        int expectedModificationCount = modificationCount;
+        // Later writes go to the memtable and do not touch the SSTable keys, so check them here
+        return new Iterator<K>() {
+            @Override
+            public boolean hasNext() {
+                checkModification();
+                return keys.hasNext();
+            }
+
+            @Override
+            public K next() {
+                checkModification();
+                return keys.next();
+            }
+
+            private void checkModification() {
+                if (modificationCount != expectedModificationCount) {
+                    throw new ConcurrentModificationException();
+                }
+            }
+        };
     }
 
     @Override
     public int size() {
-        return storage.size() + memTable.size();
+        throwIfClosed();
+        return size;
     }
 
     @Override
@@ -140,6 +214,7 @@ public class HighPerformancePreservingKeyValueStorage<K, V> implements KeyValueS
             return;
         }
         state = StorageState.CLOSED;
+        memTable.flushTo(storage);
         FileOutputStream fileOutputStream = new FileOutputStream(associatedFile);
         DataOutputStream dataOS = new DataOutputStream(fileOutputStream);
         StringSerializer.getInstance().serialize(storage.getDataBaseHash(), dataOS);
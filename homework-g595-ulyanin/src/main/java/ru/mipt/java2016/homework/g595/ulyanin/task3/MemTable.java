@@ -0,0 +1,117 @@
+package ru.mipt.java2016.homework.g595.ulyanin.task3;
+
+import ru.mipt.java2016.homework.g595.ulyanin.task2.Serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorted buffer of recent writes which have not reached the SSTable yet.
+ * Values are kept serialized, so the table knows exactly how many bytes of keys and values
+ * it holds without any instrumentation; deleted keys are kept as tombstones until the flush.
+ * Keys must be Comparable.
+ */
+class MemTable<K, V> {
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final ConcurrentSkipListMap<K, byte[]> entries = new ConcurrentSkipListMap<>();
+    private final AtomicLong sizeInBytes = new AtomicLong();
+
+    MemTable(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+    }
+
+    /**
+     * @return serialized size of all buffered keys and values
+     */
+    long sizeInBytes() {
+        return sizeInBytes.get();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    boolean contains(K key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @return true if the key was deleted after the last flush
+     */
+    boolean isDeleted(K key) {
+        return entries.get(key) == TOMBSTONE;
+    }
+
+    /**
+     * @return buffered value or null if the key is absent or deleted
+     */
+    V read(K key) throws IOException {
+        byte[] bytes = entries.get(key);
+        if (bytes == null || bytes == TOMBSTONE) {
+            return null;
+        }
+        return valueSerializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    void write(K key, V value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        valueSerializer.serialize(value, new DataOutputStream(bytes));
+        put(key, bytes.toByteArray());
+    }
+
+    void delete(K key) throws IOException {
+        put(key, TOMBSTONE);
+    }
+
+    /**
+     * Appends buffered values to the table in key order with one sequential write and empties the buffer
+     */
+    void flushTo(SSTable<K, V> table) throws IOException {
+        try (SSTable<K, V>.Appender appender = table.appender()) {
+            for (Map.Entry<K, byte[]> entry : entries.entrySet()) {
+                if (entry.getValue() == TOMBSTONE) {
+                    appender.delete(entry.getKey());
+                } else {
+                    appender.append(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        entries.clear();
+        sizeInBytes.set(0);
+    }
+
+    private void put(K key, byte[] bytes) throws IOException {
+        byte[] previous = entries.put(key, bytes);
+        if (previous == null) {
+            sizeInBytes.addAndGet(serializedKeySize(key) + bytes.length);
+        } else {
+            // The key is already counted, only the value changes
+            sizeInBytes.addAndGet(bytes.length - previous.length);
+        }
+    }
+
+    private int serializedKeySize(K key) throws IOException {
+        DataOutputStream counter = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        keySerializer.serialize(key, counter);
+        return counter.size();
+    }
+}
@@ -9,6 +9,7 @@ import ru.mipt.java2016.homework.g595.ulyanin.task2.StringSerializer;
 
 import javax.xml.bind.ValidationException;
 import java.io.*;
+import java.nio.channels.Channels;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
@@ -23,6 +24,7 @@ public class SSTable<K, V> implements Closeable {
     private static final String KEYS_FILE_SUFFIX = "_keys";
     private static final String DATA_FILE_SUFFIX = "_data";
     private static final int MAX_SKIP_BYTES = 300;
+    private static final int APPEND_BUFFER_SIZE = 64 * 1024;
 
     private enum StorageState { OPENED, CLOSED }
 
@@ -118,10 +120,6 @@ public class SSTable<K, V> implements Closeable {
         return storage.size();
     }
 
-    public long approximateSizeInBytes() {
-        return ObjectSizeFetcher.getObjectSize(storage);
-    }
-
     private String getFileHash(String fileName) throws IOException, NoSuchAlgorithmException {
         /*jumpToBytes(file, 0);
         long h = 0;
@@ -205,6 +203,44 @@ public class SSTable<K, V> implements Closeable {
 
     }
 
+    /**
+     * Opens a buffered writer at the end of the data file for appending many serialized values at once
+     */
+    Appender appender() throws IOException {
+        throwIfClosed();
+        return new Appender();
+    }
+
+    class Appender implements Closeable {
+        private final DataOutputStream output;
+        private long offset;
+
+        private Appender() throws IOException {
+            offset = fileData.length();
+            fileData.seek(offset);
+            output = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(fileData.getChannel()), APPEND_BUFFER_SIZE));
+        }
+
+        void append(K key, byte[] serializedValue) throws IOException {
+            storage.put(key, new ValueInfo(offset));
+            output.write(serializedValue);
+            offset += serializedValue.length;
+        }
+
+        void delete(K key) {
+            storage.remove(key);
+        }
+
+        /**
+         * Flushes the buffer but leaves the data file open
+         */
+        @Override
+        public void close() throws IOException {
+            output.flush();
+        }
+    }
+
     private void throwIfClosed() {
         if (state.equals(StorageState.CLOSED)) {
             throw new IllegalStateException("trying to apply method to closed SSTable");
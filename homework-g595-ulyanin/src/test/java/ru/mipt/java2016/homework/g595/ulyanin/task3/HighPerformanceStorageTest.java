@@ -1,5 +1,6 @@
 package ru.mipt.java2016.homework.g595.ulyanin.task3;
 
+import org.junit.Test;
 import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
 import ru.mipt.java2016.homework.g595.ulyanin.task2.*;
 import ru.mipt.java2016.homework.tests.task2.Student;
@@ -10,6 +11,11 @@ import javax.xml.bind.ValidationException;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
+
 /**
  * @author ulyanin
  * @since 14.11.16.
@@ -61,4 +67,31 @@ public class HighPerformanceStorageTest extends KeyValueStoragePerformanceTest {
         }
         return result;
     }
+
+    @Test
+    public void testMemTableFlushes() {
+        doInTempDirectory(path -> {
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < 1000; ++i) {
+                value.append((char) ('a' + i % 26));
+            }
+            doWithStrings(path, storage -> {
+                // About 10 MB of values, so the memtable is flushed several times
+                for (int i = 0; i < 10000; ++i) {
+                    storage.write("key" + i, value + Integer.toString(i));
+                }
+                for (int i = 0; i < 10000; i += 2) {
+                    storage.delete("key" + i);
+                }
+                assertEquals(5000, storage.size());
+                assertEquals(value + "9999", storage.read("key9999"));
+                assertNull(storage.read("key0"));
+            });
+            doWithStrings(path, storage -> {
+                assertEquals(5000, storage.size());
+                assertEquals(value + "1", storage.read("key1"));
+                assertFalse(storage.exists("key9998"));
+            });
+        });
+    }
 }
@@ -18,6 +18,11 @@ public class StringSerializerV2 implements ISerializer<String> {
 
     @Override
     public String deserialize(ByteBuffer code) {
-        return new String(code.array());
+        if (code.hasArray()) {
+            return new String(code.array(), code.arrayOffset() + code.position(), code.remaining());
+        }
+        byte[] bytes = new byte[code.remaining()];
+        code.get(bytes);
+        return new String(bytes);
     }
 }
@@ -53,10 +53,15 @@ public class SSTableKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
 
     public SSTableKeyValueStorage(String directoryPath, ISerializer<K> keySerializer,
             ISerializer<V> valueSerializer, long cacheSize) throws IOException {
+        this(directoryPath, keySerializer, valueSerializer, cacheSize, false);
+    }
+
+    public SSTableKeyValueStorage(String directoryPath, ISerializer<K> keySerializer,
+            ISerializer<V> valueSerializer, long cacheSize, boolean memoryMapped) throws IOException {
         this.keySerializer = keySerializer;
         this.valueSerializer = valueSerializer;
         indexFileIO = new IndexFileIO(directoryPath, "index.db");
-        storageFileIO = new StorageFileIO(directoryPath, "storage.db");
+        storageFileIO = new StorageFileIO(directoryPath, "storage.db", memoryMapped);
         storageLength = storageFileIO.fileLength();
         writtenLength = storageLength - 1;
         readOffsetTable();
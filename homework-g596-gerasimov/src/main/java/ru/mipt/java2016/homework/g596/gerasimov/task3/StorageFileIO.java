@@ -2,6 +2,7 @@ package ru.mipt.java2016.homework.g596.gerasimov.task3;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -10,7 +11,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.NotDirectoryException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by geras-artem on 17.11.16.
@@ -18,6 +23,8 @@ import java.nio.file.NotDirectoryException;
 public class StorageFileIO implements AutoCloseable {
     private static final int INT_SIZE = Integer.SIZE / 8;
 
+    private static final int MAPPING_WINDOW_SIZE = 1 << 26;
+
     private File file;
 
     private File tmpFile;
@@ -30,7 +37,35 @@ public class StorageFileIO implements AutoCloseable {
 
     private ByteBuffer intBuffer = ByteBuffer.allocate(INT_SIZE);
 
+    private final boolean memoryMapped;
+
+    private final int mappingWindowSize;
+
+    private final List<MappedByteBuffer> windows = new ArrayList<>();
+
+    private long mappedLength;
+
+    private long readPosition;
+
     public StorageFileIO(String directoryPath, String fileName) throws IOException {
+        this(directoryPath, fileName, false);
+    }
+
+    /**
+     * If memoryMapped is set, fields are read as slices of the file mapped in fixed-size windows,
+     * so no syscall or copy is made on a read. The mapping grows only when a read goes past the mapped region.
+     */
+    public StorageFileIO(String directoryPath, String fileName, boolean memoryMapped) throws IOException {
+        this(directoryPath, fileName, memoryMapped, MAPPING_WINDOW_SIZE);
+    }
+
+    /**
+     * Tests use small windows to hit window boundaries without writing 64 MB files.
+     */
+    StorageFileIO(String directoryPath, String fileName, boolean memoryMapped, int mappingWindowSize)
+            throws IOException {
+        this.memoryMapped = memoryMapped;
+        this.mappingWindowSize = mappingWindowSize;
         File directory = new File(directoryPath);
         if (!directory.exists()) {
             throw new NotDirectoryException("Directory not found");
@@ -43,11 +78,20 @@ public class StorageFileIO implements AutoCloseable {
     }
 
     public int readSize(long offset) throws IOException {
+        if (memoryMapped) {
+            readPosition = offset + INT_SIZE;
+            return mappedRegion(offset, INT_SIZE).getInt();
+        }
         randomAccessFile.seek(offset);
         return randomAccessFile.readInt();
     }
 
     public ByteBuffer readField(int size) throws IOException {
+        if (memoryMapped) {
+            ByteBuffer result = mappedRegion(readPosition, size);
+            readPosition += size;
+            return result;
+        }
         ByteBuffer result = ByteBuffer.allocate(size);
         randomAccessFile.readFully(result.array());
         return result;
@@ -63,6 +107,7 @@ public class StorageFileIO implements AutoCloseable {
     }
 
     public StorageFileIO open() throws IOException {
+        unmap();
         randomAccessFile.close();
         outputStream.close();
         tmpFile.createNewFile();
@@ -107,9 +152,59 @@ public class StorageFileIO implements AutoCloseable {
     }
 
     public void epicClose() throws IOException {
+        unmap();
         intBuffer.putInt(0, -1);
         outputStream.write(intBuffer.array());
         outputStream.close();
         randomAccessFile.close();
     }
-}
\ No newline at end of file
+
+    private ByteBuffer mappedRegion(long offset, int size) throws IOException {
+        if (offset + size > mappedLength) {
+            remap();
+            if (offset + size > mappedLength) {
+                throw new EOFException("Read beyond the end of the storage file");
+            }
+        }
+        int start = (int) (offset % mappingWindowSize);
+        if (start + size <= mappingWindowSize) {
+            ByteBuffer region = windows.get((int) (offset / mappingWindowSize)).duplicate();
+            region.position(start);
+            region.limit(start + size);
+            return region.slice();
+        }
+
+        // The field crosses a window boundary, so it has to be copied
+        ByteBuffer result = ByteBuffer.allocate(size);
+        long position = offset;
+        while (result.hasRemaining()) {
+            ByteBuffer window = windows.get((int) (position / mappingWindowSize)).duplicate();
+            int from = (int) (position % mappingWindowSize);
+            int length = Math.min(window.limit() - from, result.remaining());
+            window.position(from);
+            window.limit(from + length);
+            result.put(window);
+            position += length;
+        }
+        result.flip();
+        return result;
+    }
+
+    private void remap() throws IOException {
+        FileChannel channel = randomAccessFile.getChannel();
+        long fileLength = channel.size();
+        if (!windows.isEmpty() && windows.get(windows.size() - 1).capacity() < mappingWindowSize) {
+            mappedLength -= windows.remove(windows.size() - 1).capacity();
+        }
+        while (mappedLength < fileLength) {
+            long size = Math.min(mappingWindowSize, fileLength - mappedLength);
+            windows.add(channel.map(FileChannel.MapMode.READ_ONLY, mappedLength, size));
+            mappedLength += size;
+        }
+    }
+
+    private void unmap() {
+        windows.clear();
+        mappedLength = 0;
+    }
+}
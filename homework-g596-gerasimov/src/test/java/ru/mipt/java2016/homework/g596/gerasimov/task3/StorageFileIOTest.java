@@ -0,0 +1,74 @@
+package ru.mipt.java2016.homework.g596.gerasimov.task3;
+
+import static org.junit.Assert.assertEquals;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/**
+ * Memory-mapped reads with tiny windows, so every field is near a window boundary.
+ */
+public class StorageFileIOTest {
+    private static final int WINDOW_SIZE = 16;
+
+    private static final int INT_SIZE = Integer.SIZE / 8;
+
+    private long offsetAfterWrites;
+
+    @Test
+    public void testFieldCrossingWindowBoundary() {
+        doInTempDirectory(path -> {
+            StorageFileIO storageFileIO = new StorageFileIO(path, "storage.db", true, WINDOW_SIZE);
+            String first = "first value";
+            // Size of the second field starts one byte before the boundary, its body spans several windows
+            String second = "value which crosses two window boundaries";
+            long secondOffset = write(storageFileIO, first);
+            write(storageFileIO, second);
+            storageFileIO.flush();
+            assertEquals(WINDOW_SIZE - 1, secondOffset);
+
+            assertEquals(first, read(storageFileIO, 0));
+            assertEquals(second, read(storageFileIO, secondOffset));
+            storageFileIO.epicClose();
+        });
+    }
+
+    @Test
+    public void testRemapAfterFileGrows() {
+        doInTempDirectory(path -> {
+            StorageFileIO storageFileIO = new StorageFileIO(path, "storage.db", true, WINDOW_SIZE);
+            long offset = 0;
+            for (int i = 0; i < 20; ++i) {
+                String value = "value" + i;
+                long next = write(storageFileIO, value);
+                storageFileIO.flush();
+                // The file has grown since the previous read, so the tail has to be mapped again
+                assertEquals(value, read(storageFileIO, offset));
+                assertEquals("value0", read(storageFileIO, 0));
+                offset = next;
+            }
+            storageFileIO.epicClose();
+        });
+    }
+
+    /**
+     * @return offset of the next field.
+     */
+    private long write(StorageFileIO storageFileIO, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        storageFileIO.writeSize(bytes.length);
+        storageFileIO.writeField(ByteBuffer.wrap(bytes));
+        offsetAfterWrites += INT_SIZE + bytes.length;
+        return offsetAfterWrites;
+    }
+
+    private String read(StorageFileIO storageFileIO, long offset) throws IOException {
+        ByteBuffer field = storageFileIO.readField(storageFileIO.readSize(offset));
+        byte[] bytes = new byte[field.remaining()];
+        field.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -5,7 +5,11 @@ import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.Weigher;
+import com.google.common.io.CountingOutputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
@@ -15,9 +19,11 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -98,9 +104,21 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
     private String twinFilePath;
 
     /**
-     * Collection that stores keys and relevant values of offset in file.
+     * Name of file where index is saved on close.
      */
-    private Map<K, Long> offsets;
+    private String indexFilePath;
+
+    /**
+     * Off-heap index that stores serialised keys and relevant values of offset in file.
+     * Offset is -1 for keys whose values are in map and not yet written to file.
+     * It is saved to its own file on close, so next open doesn't need to scan the whole data file.
+     */
+    private OffHeapIndex offsets;
+
+    /**
+     * Number of insertions and deletions of keys, used by iterators to detect modifications.
+     */
+    private int modificationCount;
 
     /**
      * Cache for last accessed elements;
@@ -114,7 +132,7 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
     protected final void initStorage() throws IOException {
         file.seek(0); // go to the start
         map.clear();
-        offsets.clear();
+        offsets = new OffHeapIndex();
 
         K key;
         while (file.getFilePointer() < file.length()) {
@@ -132,12 +150,38 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
                 throw new RuntimeException("No value for some key.");
             }
 
-            offsets.put(key, offset);
+            offsets.put(serialiseKey(key), offset);
         }
 
         isInitialized = true;
     }
 
+    /**
+     * @param key - key to serialise.
+     * @return key in the same form as it is written to file.
+     */
+    private byte[] serialiseKey(final K key) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            keySerialisation.write(new DataOutputStream(bytes), key);
+        } catch (IOException e) {
+            throw new MalformedDataException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes - serialised key.
+     * @return deserialised key.
+     */
+    private K deserialiseKey(final byte[] bytes) {
+        try {
+            return keySerialisation.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException e) {
+            throw new MalformedDataException(e);
+        }
+    }
+
     /**
      * @param path           - path to the directory with storage in filesystem.
      * @param name           - name of file with key-value storage.
@@ -160,6 +204,7 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
 
         String twinName = name + "_twin";
         twinFilePath = path + File.separator + twinName;
+        indexFilePath = path + File.separator + name + "_index";
 
         Weigher<K, V> weigher = (key, value) -> (int) ObjectSize.deepSizeOf(key) + (int) ObjectSize
                 .deepSizeOf(value);
@@ -168,8 +213,14 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
                 .weigher(weigher)
                 .build();
 
-        offsets = new HashMap<>();
-        initStorage();
+        offsets = OffHeapIndex.load(Paths.get(indexFilePath), file.length());
+        if (offsets == null) {
+            initStorage();
+        } else {
+            isInitialized = true;
+        }
+        // Index is valid only until data file is changed, so it shouldn't survive a crash
+        Files.deleteIfExists(Paths.get(indexFilePath));
     }
 
     public final V read(final K key) {
@@ -182,11 +233,10 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
             if (value == null) {
                 value = map.get(key);
                 if (value == null) {
-                    if (!offsets.containsKey(key)) {
+                    long offset = offsets.get(serialiseKey(key));
+                    if (offset == OffHeapIndex.NOT_FOUND) {
                         return null;
                     }
-                    long offset;
-                    offset = offsets.get(key);
                     try {
                         file.seek(offset);
                         value = valueSerialisation.read(file);
@@ -210,7 +260,7 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
             if (!isInitialized) {
                 throw new MalformedDataException("Storage is closed.");
             }
-            return map.containsKey(key) || offsets.containsKey(key);
+            return map.containsKey(key) || offsets.get(serialiseKey(key)) != OffHeapIndex.NOT_FOUND;
         } finally {
             readLock.unlock();
         }
@@ -226,7 +276,7 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
         file.seek(file.length());
         for (Map.Entry<K, V> entry : map.entrySet()) {
             keySerialisation.write(file, entry.getKey());
-            offsets.put(entry.getKey(), file.getFilePointer());
+            offsets.put(serialiseKey(entry.getKey()), file.getFilePointer());
             valueSerialisation.write(file, entry.getValue());
         }
 
@@ -258,7 +308,10 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
                 cleanFile();
             }
             map.put(key, value);
-            offsets.put(key, -1L);
+            cache.invalidate(key);
+            if (offsets.put(serialiseKey(key), -1L)) {
+                ++modificationCount;
+            }
         } finally {
             writeLock.unlock();
         }
@@ -273,23 +326,24 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
         }
 
         try (RandomAccessFile twinFile = new RandomAccessFile(twinFilePath, "rw");
-                DataOutputStream dataOutputStream = new DataOutputStream(
+                CountingOutputStream countingOutputStream = new CountingOutputStream(
                         new BufferedOutputStream(
                                 new FileOutputStream(
-                                        twinFile.getFD())))) {
+                                        twinFile.getFD())));
+                DataOutputStream dataOutputStream = new DataOutputStream(countingOutputStream)) {
             twinFile.setLength(0);
 
-            long newOffset = 0;
-            for (Map.Entry<K, Long> entry : offsets.entrySet()) {
-                if (entry.getValue() == -1) {
+            for (int slot = 0; slot < offsets.capacity(); ++slot) {
+                if (offsets.isEmpty(slot) || offsets.offset(slot) == -1) {
                     continue;
                 }
 
-                long offset = entry.getValue();
+                long offset = offsets.offset(slot);
                 try {
                     file.seek(offset);
-                    newOffset += keySerialisation.write(dataOutputStream, entry.getKey());
-                    offsets.put(entry.getKey(), newOffset);
+                    // Index keeps keys serialised, so they are copied as is
+                    dataOutputStream.write(offsets.key(slot));
+                    offsets.setOffset(slot, countingOutputStream.getCount());
                     valueSerialisation.write(dataOutputStream, valueSerialisation.read(file));
                 } catch (IOException e) {
                     throw new MalformedDataException(e);
@@ -316,7 +370,9 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
             }
             map.remove(key);
             cache.invalidate(key);
-            offsets.remove(key);
+            if (offsets.remove(serialiseKey(key))) {
+                ++modificationCount;
+            }
             ++deleteCount;
             if (deleteCount > maxDeleteCount) {
                 cleanFile();
@@ -337,12 +393,61 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
             } catch (IOException e) {
                 throw new MalformedDataException(e);
             }
-            return offsets.keySet().iterator();
+            return new KeyIterator();
         } finally {
             readLock.unlock();
         }
     }
 
+    /**
+     * Iterates over used slots of the index.
+     */
+    private class KeyIterator implements Iterator<K> {
+        private final int expectedModificationCount = modificationCount;
+        private int slot = nextUsedSlot(0);
+
+        @Override
+        public boolean hasNext() {
+            readLock.lock();
+            try {
+                checkNotModified();
+                return slot < offsets.capacity();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public K next() {
+            readLock.lock();
+            try {
+                checkNotModified();
+                if (slot >= offsets.capacity()) {
+                    throw new NoSuchElementException();
+                }
+                K key = deserialiseKey(offsets.key(slot));
+                slot = nextUsedSlot(slot + 1);
+                return key;
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        private int nextUsedSlot(final int from) {
+            int next = from;
+            while (next < offsets.capacity() && offsets.isEmpty(next)) {
+                ++next;
+            }
+            return next;
+        }
+
+        private void checkNotModified() {
+            if (!isInitialized || modificationCount != expectedModificationCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
     public final int size() {
         readLock.lock();
         try {
@@ -370,9 +475,11 @@ public class BigDataStorage<K, V> implements KeyValueStorage<K, V> {
                 writeToFile();
             }
 
+            offsets.save(Paths.get(indexFilePath), file.length());
+
             file.close();
             map.clear();
-            offsets.clear();
+            offsets = null;
             isInitialized = false;
         } finally {
             writeLock.unlock();
@@ -0,0 +1,334 @@
+package ru.mipt.java2016.homework.g596.ivanova.task3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Open-addressed hash index "serialised key -> offset in data file", which lives in direct buffers
+ * outside of the heap and can be saved to and loaded from its own file without touching the data file.
+ *
+ * Slot layout: int hash, int key length, long position of key bytes in key heap, long offset.
+ * Key bytes are stored one after another in a separate key heap.
+ * Collisions are resolved with linear probing, removal shifts following slots back,
+ * so there are no tombstones.
+ */
+public class OffHeapIndex {
+    /**
+     * Offset which is returned for absent keys.
+     */
+    public static final long NOT_FOUND = -2;
+
+    private static final int MAGIC = 0x4f484931;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8;
+    private static final int SLOT_SIZE = 4 + 4 + 8 + 8;
+    private static final int HASH_OFFSET = 0;
+    private static final int LENGTH_OFFSET = 4;
+    private static final int KEY_POSITION_OFFSET = 8;
+    private static final int OFFSET_OFFSET = 16;
+    private static final int EMPTY = 0;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INITIAL_KEY_HEAP_SIZE = 16 * 1024;
+
+    /**
+     * Slots of the hash table, capacity is always a power of two.
+     */
+    private ByteBuffer slots;
+
+    private int capacity;
+
+    /**
+     * Serialised keys, slots point into it.
+     */
+    private ByteBuffer keyHeap;
+
+    private int size;
+
+    /**
+     * Creates empty index.
+     */
+    public OffHeapIndex() {
+        capacity = INITIAL_CAPACITY;
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        keyHeap = ByteBuffer.allocateDirect(INITIAL_KEY_HEAP_SIZE);
+    }
+
+    private OffHeapIndex(final int capacity, final int size, final ByteBuffer slots, final ByteBuffer keyHeap) {
+        this.capacity = capacity;
+        this.size = size;
+        this.slots = slots;
+        this.keyHeap = keyHeap;
+    }
+
+    /**
+     * @return number of keys in index.
+     */
+    public final int size() {
+        return size;
+    }
+
+    /**
+     * @param key - serialised key.
+     * @return offset for key or NOT_FOUND.
+     */
+    public final long get(final byte[] key) {
+        int slot = findSlot(key, hash(key));
+        return isEmpty(slot) ? NOT_FOUND : offset(slot);
+    }
+
+    /**
+     * @param key - serialised key.
+     * @param offset - new offset for key.
+     * @return true if key was not in index before.
+     */
+    public final boolean put(final byte[] key, final long offset) {
+        int hash = hash(key);
+        int slot = findSlot(key, hash);
+        if (!isEmpty(slot)) {
+            setOffset(slot, offset);
+            return false;
+        }
+
+        int base = slot * SLOT_SIZE;
+        slots.putInt(base + HASH_OFFSET, hash);
+        slots.putInt(base + LENGTH_OFFSET, key.length);
+        slots.putLong(base + KEY_POSITION_OFFSET, appendKey(key));
+        slots.putLong(base + OFFSET_OFFSET, offset);
+        ++size;
+        if (size * 2 > capacity) {
+            rehash(capacity * 2);
+        }
+        return true;
+    }
+
+    /**
+     * @param key - serialised key.
+     * @return true if key was in index.
+     */
+    public final boolean remove(final byte[] key) {
+        int slot = findSlot(key, hash(key));
+        if (isEmpty(slot)) {
+            return false;
+        }
+
+        int mask = capacity - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (!isEmpty(next)) {
+            int home = slots.getInt(next * SLOT_SIZE + HASH_OFFSET) & mask;
+            // Slot can be moved to the hole only if its home is not strictly between the hole and the slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                copySlot(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots.putInt(hole * SLOT_SIZE + HASH_OFFSET, EMPTY);
+        --size;
+        return true;
+    }
+
+    /**
+     * @return number of slots; used slots are iterated with isEmpty, key, offset and setOffset.
+     */
+    public final int capacity() {
+        return capacity;
+    }
+
+    public final boolean isEmpty(final int slot) {
+        return slots.getInt(slot * SLOT_SIZE + HASH_OFFSET) == EMPTY;
+    }
+
+    /**
+     * @param slot - number of used slot.
+     * @return serialised key stored in slot.
+     */
+    public final byte[] key(final int slot) {
+        int base = slot * SLOT_SIZE;
+        byte[] key = new byte[slots.getInt(base + LENGTH_OFFSET)];
+        ByteBuffer view = keyHeap.duplicate();
+        view.position((int) slots.getLong(base + KEY_POSITION_OFFSET));
+        view.get(key);
+        return key;
+    }
+
+    public final long offset(final int slot) {
+        return slots.getLong(slot * SLOT_SIZE + OFFSET_OFFSET);
+    }
+
+    public final void setOffset(final int slot, final long offset) {
+        slots.putLong(slot * SLOT_SIZE + OFFSET_OFFSET, offset);
+    }
+
+    /**
+     * Saves index to file. Key heap is compacted on the way, so keys of removed entries are dropped.
+     *
+     * @param path - file to write index to.
+     * @param dataLength - length of data file the index is valid for.
+     * @throws IOException - if an I/O error occurs.
+     */
+    public final void save(final Path path, final long dataLength) throws IOException {
+        compactKeyHeap();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(capacity).putInt(size).putLong(dataLength).putLong(keyHeap.position());
+            header.flip();
+            writeFully(channel, header);
+
+            ByteBuffer slotsView = slots.duplicate();
+            slotsView.clear();
+            writeFully(channel, slotsView);
+
+            ByteBuffer keyHeapView = keyHeap.duplicate();
+            keyHeapView.flip();
+            writeFully(channel, keyHeapView);
+        }
+    }
+
+    /**
+     * Loads index saved by save.
+     *
+     * @param path - file with index.
+     * @param dataLength - current length of data file.
+     * @return loaded index or null if file is absent, broken or was saved for another data file.
+     * @throws IOException - if an I/O error occurs.
+     */
+    public static OffHeapIndex load(final Path path, final long dataLength) throws IOException {
+        if (!path.toFile().exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+            int magic = header.getInt();
+            int capacity = header.getInt();
+            int size = header.getInt();
+            long savedDataLength = header.getLong();
+            long keyHeapLength = header.getLong();
+            if (magic != MAGIC || savedDataLength != dataLength || Integer.bitCount(capacity) != 1
+                    || size < 0 || size * 2 > capacity || keyHeapLength < 0
+                    || channel.size() != HEADER_SIZE + (long) capacity * SLOT_SIZE + keyHeapLength) {
+                return null;
+            }
+
+            ByteBuffer slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+            readFully(channel, slots);
+            ByteBuffer keyHeap = ByteBuffer.allocateDirect((int) Math.max(keyHeapLength, INITIAL_KEY_HEAP_SIZE));
+            keyHeap.limit((int) keyHeapLength);
+            readFully(channel, keyHeap);
+            keyHeap.limit(keyHeap.capacity());
+            return new OffHeapIndex(capacity, size, slots, keyHeap);
+        }
+    }
+
+    private int findSlot(final byte[] key, final int hash) {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        while (true) {
+            int base = slot * SLOT_SIZE;
+            int slotHash = slots.getInt(base + HASH_OFFSET);
+            if (slotHash == EMPTY || slotHash == hash && keyEquals(base, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(final int base, final byte[] key) {
+        if (slots.getInt(base + LENGTH_OFFSET) != key.length) {
+            return false;
+        }
+        int position = (int) slots.getLong(base + KEY_POSITION_OFFSET);
+        for (int i = 0; i < key.length; ++i) {
+            if (keyHeap.get(position + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long appendKey(final byte[] key) {
+        if (keyHeap.remaining() < key.length) {
+            long required = (long) keyHeap.position() + key.length;
+            long newCapacity = Math.max(required, 2L * keyHeap.capacity());
+            if (newCapacity > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Key heap of the index is full.");
+            }
+            ByteBuffer newKeyHeap = ByteBuffer.allocateDirect((int) newCapacity);
+            keyHeap.flip();
+            newKeyHeap.put(keyHeap);
+            keyHeap = newKeyHeap;
+        }
+        long position = keyHeap.position();
+        keyHeap.put(key);
+        return position;
+    }
+
+    private void copySlot(final int from, final int to) {
+        for (int i = 0; i < SLOT_SIZE; i += 8) {
+            slots.putLong(to * SLOT_SIZE + i, slots.getLong(from * SLOT_SIZE + i));
+        }
+    }
+
+    private void rehash(final int newCapacity) {
+        ByteBuffer oldSlots = slots;
+        int oldCapacity = capacity;
+        capacity = newCapacity;
+        slots = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldCapacity; ++i) {
+            int hash = oldSlots.getInt(i * SLOT_SIZE + HASH_OFFSET);
+            if (hash == EMPTY) {
+                continue;
+            }
+            int slot = hash & mask;
+            while (!isEmpty(slot)) {
+                slot = (slot + 1) & mask;
+            }
+            for (int j = 0; j < SLOT_SIZE; j += 8) {
+                slots.putLong(slot * SLOT_SIZE + j, oldSlots.getLong(i * SLOT_SIZE + j));
+            }
+        }
+    }
+
+    private void compactKeyHeap() {
+        ByteBuffer compacted = ByteBuffer.allocateDirect(Math.max(keyHeap.position(), INITIAL_KEY_HEAP_SIZE));
+        for (int slot = 0; slot < capacity; ++slot) {
+            if (isEmpty(slot)) {
+                continue;
+            }
+            byte[] key = key(slot);
+            slots.putLong(slot * SLOT_SIZE + KEY_POSITION_OFFSET, compacted.position());
+            compacted.put(key);
+        }
+        keyHeap = compacted;
+    }
+
+    private static int hash(final byte[] key) {
+        int hash = Arrays.hashCode(key) * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of index file.");
+            }
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
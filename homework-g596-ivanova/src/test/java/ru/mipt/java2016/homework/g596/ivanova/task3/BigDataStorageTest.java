@@ -1,6 +1,19 @@
 package ru.mipt.java2016.homework.g596.ivanova.task3;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
+
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.Test;
 import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
 import ru.mipt.java2016.homework.base.task2.MalformedDataException;
 import ru.mipt.java2016.homework.g596.ivanova.task2.DoubleSerialisation;
@@ -52,4 +65,84 @@ public class BigDataStorageTest extends KeyValueStoragePerformanceTest {
             return null;
         }
     }
+
+    @Test
+    public void testReopenLoadsSavedIndex() {
+        doInTempDirectory(path -> {
+            writeEntries(path);
+            Path index = Paths.get(path, "storage_index");
+            assertTrue(Files.exists(index));
+            OffHeapIndex saved = OffHeapIndex.load(index, new File(path, "storage").length());
+            assertNotNull(saved);
+            assertEquals(900, saved.size());
+
+            doWithStrings(path, storage -> {
+                // Index is deleted while storage is open, so it doesn't outlive a crash
+                assertFalse(Files.exists(index));
+                checkEntries(storage);
+            });
+        });
+    }
+
+    @Test
+    public void testRescanWhenIndexIsMissing() {
+        doInTempDirectory(path -> {
+            writeEntries(path);
+            Files.delete(Paths.get(path, "storage_index"));
+            doWithStrings(path, this::checkEntries);
+        });
+    }
+
+    @Test
+    public void testRescanWhenIndexIsCorrupted() {
+        doInTempDirectory(path -> {
+            writeEntries(path);
+            Path index = Paths.get(path, "storage_index");
+            try (RandomAccessFile raw = new RandomAccessFile(index.toFile(), "rw")) {
+                raw.writeInt(0);
+                raw.setLength(raw.length() / 2);
+            }
+            assertNull(OffHeapIndex.load(index, new File(path, "storage").length()));
+            doWithStrings(path, this::checkEntries);
+        });
+    }
+
+    @Test
+    public void testRescanWhenDataFileChanged() {
+        doInTempDirectory(path -> {
+            writeEntries(path);
+            // Index saved for another version of data file must not be trusted
+            try (RandomAccessFile raw = new RandomAccessFile(new File(path, "storage"), "rw")) {
+                raw.seek(raw.length());
+                StringSerialisation.getInstance().write(raw, "key1000");
+                StringSerialisation.getInstance().write(raw, "value1000");
+            }
+            doWithStrings(path, storage -> {
+                assertEquals(901, storage.size());
+                assertEquals("value1000", storage.read("key1000"));
+            });
+        });
+    }
+
+    private void writeEntries(final String path) throws Exception {
+        doWithStrings(path, storage -> {
+            for (int i = 0; i < 1000; ++i) {
+                storage.write("key" + i, "value" + i);
+            }
+            for (int i = 0; i < 1000; i += 10) {
+                storage.delete("key" + i);
+            }
+        });
+    }
+
+    private void checkEntries(final KeyValueStorage<String, String> storage) {
+        assertEquals(900, storage.size());
+        for (int i = 0; i < 1000; ++i) {
+            if (i % 10 == 0) {
+                assertFalse(storage.exists("key" + i));
+            } else {
+                assertEquals("value" + i, storage.read("key" + i));
+            }
+        }
+    }
 }
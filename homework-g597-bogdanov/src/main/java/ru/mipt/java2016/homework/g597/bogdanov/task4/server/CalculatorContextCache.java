@@ -0,0 +1,57 @@
+package ru.mipt.java2016.homework.g597.bogdanov.task4.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import ru.mipt.java2016.homework.base.task1.ParsingException;
+import ru.mipt.java2016.homework.g597.bogdanov.task4.REST.RESTCalculator;
+import ru.mipt.java2016.homework.g597.bogdanov.task4.REST.functions.CalculatorFunctionObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a ready RESTCalculator with all variables and parsed functions of every user who has called /eval,
+ * so evaluation doesn't go to the database and doesn't re-parse functions.
+ *
+ * Every endpoint that changes user's variables or functions must call invalidate after the database update;
+ * the next /eval loads the context again. The context is built inside ConcurrentHashMap.computeIfAbsent,
+ * so invalidate waits for a build that has started before it and a stale context can't stay in the cache.
+ */
+@Component
+public class CalculatorContextCache {
+    private static final Logger LOG = LoggerFactory.getLogger(CalculatorContextCache.class);
+
+    @Autowired
+    private CalculatorDao calculatorDao;
+
+    private final Map<String, RESTCalculator> contexts = new ConcurrentHashMap<>();
+
+    public double calculate(String username, String expression) throws ParsingException {
+        RESTCalculator calculator = contexts.computeIfAbsent(username, this::loadContext);
+        // Parsed functions keep evaluation state inside, so one context is evaluated by one thread at a time
+        synchronized (calculator) {
+            return calculator.calculate(expression);
+        }
+    }
+
+    public void invalidate(String username) {
+        contexts.remove(username);
+    }
+
+    private RESTCalculator loadContext(String username) {
+        LOG.trace("Loading calculator context for " + username);
+        RESTCalculator calculator = new RESTCalculator();
+        Map<String, Double> variables = calculatorDao.getVariables(username);
+        for (Map.Entry<String, Double> entry : variables.entrySet()) {
+            calculator.putVariable(entry.getKey(), entry.getValue());
+        }
+        Map<String, CalculatorFunctionObject> functions = calculatorDao.getFunctions(username);
+        for (Map.Entry<String, CalculatorFunctionObject> entry : functions.entrySet()) {
+            calculator.putFunction(entry.getKey(), entry.getValue().getExpression(), entry.getValue().getArguments());
+        }
+        return calculator;
+    }
+}
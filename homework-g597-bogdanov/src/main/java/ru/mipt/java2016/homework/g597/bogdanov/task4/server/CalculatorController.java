@@ -7,7 +7,6 @@ import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 
 import ru.mipt.java2016.homework.base.task1.ParsingException;
-import ru.mipt.java2016.homework.g597.bogdanov.task4.REST.RESTCalculator;
 import ru.mipt.java2016.homework.g597.bogdanov.task4.REST.functions.CalculatorFunctionObject;
 
 import java.util.List;
@@ -23,10 +22,10 @@ public class CalculatorController {
     private static final Logger LOG = LoggerFactory.getLogger(CalculatorController.class);
 
     @Autowired
-    private RESTCalculator calculator;
+    private CalculatorDao calculatorDao;
 
     @Autowired
-    private CalculatorDao calculatorDao;
+    private CalculatorContextCache contextCache;
 
     @RequestMapping(path = "/variable/{name}", method = RequestMethod.GET, produces = "text/plain")
     public String getVariable(Authentication authentication, @PathVariable String name) throws ParsingException {
@@ -39,6 +38,7 @@ public class CalculatorController {
     public String deleteVariable(Authentication authentication, @PathVariable String name) throws ParsingException {
         String username = authentication.getName();
         boolean success = calculatorDao.deleteVariable(username, name);
+        contextCache.invalidate(username);
         if (success) {
             return name + " deleted\n";
         } else {
@@ -52,6 +52,7 @@ public class CalculatorController {
             throws ParsingException {
         String username = authentication.getName();
         calculatorDao.addVariable(username, name, Double.parseDouble(value));
+        contextCache.invalidate(username);
         return "Variable added\n";
     }
 
@@ -74,6 +75,7 @@ public class CalculatorController {
     public String deleteFunction(Authentication authentication, @PathVariable String name) throws ParsingException {
         String username = authentication.getName();
         boolean success = calculatorDao.deleteFunction(username, name);
+        contextCache.invalidate(username);
         if (success) {
             return name + " deleted\n";
         } else {
@@ -90,6 +92,7 @@ public class CalculatorController {
         String username = authentication.getName();
         List<String> arguments = Arrays.asList(args.split(","));
         calculatorDao.addFunction(username, name, arguments, expression);
+        contextCache.invalidate(username);
         return "Function added\n";
     }
 
@@ -104,16 +107,7 @@ public class CalculatorController {
     public String calculate(Authentication authentication, @RequestBody String expression) throws ParsingException {
         LOG.debug("Calculation request: [" + expression + "]");
         String username = authentication.getName();
-        Map<String, Double> variables = calculatorDao.getVariables(username);
-        for (Map.Entry<String, Double> entry : variables.entrySet()) {
-            calculator.putVariable(entry.getKey(), entry.getValue());
-        }
-        Map<String, CalculatorFunctionObject> functions = calculatorDao.getFunctions(username);
-        for (Map.Entry<String, CalculatorFunctionObject> entry : functions.entrySet()) {
-            calculator.putFunction(entry.getKey(), entry.getValue().getExpression(), entry.getValue().getArguments());
-        }
-        double result = calculator.calculate(expression);
-        calculator = new RESTCalculator();
+        double result = contextCache.calculate(username, expression);
         return result + "\n";
     }
 
@@ -168,7 +168,7 @@ public class CalculatorDao {
     boolean deleteFunction(String username, String function) throws ParsingException {
         try {
             getFunction(username, function);
-            jdbcTemplate.update("DELETE FROM billing.variables WHERE username = ? AND name = ?",
+            jdbcTemplate.update("DELETE FROM billing.functions WHERE username = ? AND name = ?",
                     new Object[]{username, function});
             return true;
         } catch (EmptyResultDataAccessException e) {
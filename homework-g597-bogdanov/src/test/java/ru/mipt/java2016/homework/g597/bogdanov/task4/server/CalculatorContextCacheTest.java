@@ -0,0 +1,99 @@
+package ru.mipt.java2016.homework.g597.bogdanov.task4.server;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+
+import ru.mipt.java2016.homework.base.task1.ParsingException;
+
+import javax.sql.DataSource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that every endpoint changing variables or functions drops the cached context of the user.
+ */
+public class CalculatorContextCacheTest {
+    private final Authentication user = new UsernamePasswordAuthenticationToken("username", "password");
+
+    private AnnotationConfigApplicationContext context;
+    private CalculatorController controller;
+    private CalculatorDao calculatorDao;
+
+    @Configuration
+    static class TestDatabaseConfiguration {
+        @Bean
+        public DataSource billingDataSource() {
+            HikariConfig config = new HikariConfig();
+            config.setDriverClassName(org.h2.Driver.class.getName());
+            config.setJdbcUrl("jdbc:h2:mem:calculator-context-cache-test");
+            return new HikariDataSource(config);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        context = new AnnotationConfigApplicationContext(TestDatabaseConfiguration.class,
+                CalculatorDao.class, CalculatorContextCache.class, CalculatorController.class);
+        controller = context.getBean(CalculatorController.class);
+        calculatorDao = context.getBean(CalculatorDao.class);
+    }
+
+    @After
+    public void tearDown() {
+        context.close();
+    }
+
+    @Test
+    public void testVariableChangesInvalidateContext() throws ParsingException {
+        controller.addVariable(user, "x", "2");
+        assertEquals("6.0\n", controller.calculate(user, "x * 3"));
+
+        controller.addVariable(user, "x", "5");
+        assertEquals("15.0\n", controller.calculate(user, "x * 3"));
+
+        controller.deleteVariable(user, "x");
+        assertUnknown("x * 3");
+    }
+
+    @Test
+    public void testFunctionChangesInvalidateContext() throws ParsingException {
+        controller.addFunction(user, "inc", "a", "a + 1");
+        assertEquals("2.0\n", controller.calculate(user, "inc(1)"));
+
+        controller.addFunction(user, "inc", "a", "a + 10");
+        assertEquals("11.0\n", controller.calculate(user, "inc(1)"));
+
+        controller.deleteFunction(user, "inc");
+        assertUnknown("inc(1)");
+    }
+
+    @Test
+    public void testDeleteFunctionKeepsVariables() throws ParsingException {
+        controller.addVariable(user, "twice", "3");
+        controller.addFunction(user, "twice", "a", "a * 2");
+
+        assertEquals("twice deleted\n", controller.deleteFunction(user, "twice"));
+        assertFalse(calculatorDao.getFunctions("username").containsKey("twice"));
+        assertEquals(3.0, calculatorDao.getVariable("username", "twice"), 0);
+        assertEquals("twice not exists\n", controller.deleteFunction(user, "twice"));
+    }
+
+    private void assertUnknown(String expression) {
+        try {
+            controller.calculate(user, expression);
+            fail("Context should have been reloaded without the deleted definition");
+        } catch (ParsingException expected) {
+            // ok
+        }
+    }
+}
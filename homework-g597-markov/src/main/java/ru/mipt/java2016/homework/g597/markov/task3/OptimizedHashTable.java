@@ -9,18 +9,40 @@ import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 
+/**
+ * Значения лежат в файле values_storage.db друг за другом, в памяти хранятся смещение и длина каждого.
+ * Перезаписанные и удалённые значения остаются в файле мусором. Когда мусора становится больше, чем живых
+ * данных, в фоне запускается vacuum: он берёт снимок живых участков файла, сортирует их по смещению, склеивает
+ * соседние и копирует в новый файл через FileChannel.transferTo, ничего не десериализуя. Чтение и запись
+ * в это время работают со старым файлом (он только дописывается в конец). В конце под монитором хранилища
+ * докопируется хвост, дописанный после снимка, новый файл атомарно подменяет старый, и смещения пересчитываются.
+ */
 public class OptimizedHashTable<K, V> implements KeyValueStorage<K, V> {
     private static final long TO_INSERT = -1;
     private static final int MIN_NUMBER_TO_INSERT = 100;
+    private static final long MIN_GARBAGE_TO_VACUUM = 64 * 1024;
+    // Файл ключей начинается с отрицательного магического числа и версии. В старом формате там сразу
+    // неотрицательное число ключей, а за каждым смещением нет длины значения.
+    private static final int KEYS_FORMAT_MAGIC = 0xC0DE4B59;
+    private static final int KEYS_FORMAT_VERSION = 2;
 
     private final String databaseName = "storage.db";
     private final String databasePath;
@@ -35,8 +57,13 @@ public class OptimizedHashTable<K, V> implements KeyValueStorage<K, V> {
     private RandomAccessFile keysFile;
     private RandomAccessFile valuesFile;
     private boolean closed = false;
-    private Map<K, Long> offsets = new HashMap<>();
-    private int optimizeCounter = 0;
+    private final Map<K, Long> offsets = new HashMap<>();
+    // Длины значений, которые уже лежат в файле (то есть для всех ключей со смещением не TO_INSERT)
+    private final Map<K, Integer> lengths = new HashMap<>();
+    private long liveBytes = 0;
+    private long garbageBytes = 0;
+    private boolean vacuumRunning = false;
+    private IOException vacuumFailure;
 
     public OptimizedHashTable(String path,
                               SerializationStrategy<K> serializerKeys,
@@ -86,12 +113,34 @@ public class OptimizedHashTable<K, V> implements KeyValueStorage<K, V> {
     }
 
     private void getKeysAndOffsets() throws IOException {
-        int numberOfKeys = (new IntegerSerializator()).read(keysFile);
+        IntegerSerializator integerSerializator = new IntegerSerializator();
+        int numberOfKeys = integerSerializator.read(keysFile);
+        boolean withLengths = numberOfKeys == KEYS_FORMAT_MAGIC;
+        if (withLengths) {
+            int version = integerSerializator.read(keysFile);
+            if (version != KEYS_FORMAT_VERSION) {
+                throw new IOException("unsupported keys file version " + version);
+            }
+            numberOfKeys = integerSerializator.read(keysFile);
+        }
         for (int i = 0; i < numberOfKeys; i++) {
             K key = keySerializer.read(keysFile);
             Long offset = (new LongSerializator()).read(keysFile);
+            int length = withLengths ? integerSerializator.read(keysFile) : readValueLength(offset);
             offsets.put(key, offset);
+            lengths.put(key, length);
+            liveBytes += length;
         }
+        garbageBytes = valuesFile.length() - liveBytes;
+    }
+
+    /**
+     * Длина значения для файла ключей старого формата: значение читается, чтобы узнать, где оно кончается.
+     */
+    private int readValueLength(long offset) throws IOException {
+        valuesFile.seek(offset);
+        valueSerializer.read(valuesFile);
+        return (int) (valuesFile.getFilePointer() - offset);
     }
 
     @Override
@@ -122,12 +171,13 @@ public class OptimizedHashTable<K, V> implements KeyValueStorage<K, V> {
     @Override
     public synchronized void write(K key, V value) {
         checkForClosed();
+        checkVacuumFailure();
         try {
             elemsToInsert.put(key, value);
             Long offset = offsets.put(key, TO_INSERT);
 
-            if (offset == null || offset == TO_INSERT) {
-                optimizeCounter += 1;
+            if (offset != null && offset != TO_INSERT) {
+                forgetValue(key);
             }
             optimize();
         } catch (IOException e) {
@@ -138,9 +188,11 @@ public class OptimizedHashTable<K, V> implements KeyValueStorage<K, V> {
     @Override
     public synchronized void delete(K key) {
         checkForClosed();
+        checkVacuumFailure();
         if (offsets.containsKey(key)) {
             if (offsets.remove(key) != TO_INSERT) {
-                optimizeCounter += 1;
+                forgetValue(key);
+                startVacuumIfNeeded();
             }
             elemsToInsert.remove(key);
         }
@@ -164,27 +216,53 @@ public class OptimizedHashTable<K, V> implements KeyValueStorage<K, V> {
         }
     }
 
+    /**
+     * Сообщает об ошибке фонового vacuum при следующем изменении, а не только при закрытии.
+     * После этого vacuum снова может запуститься: старый файл значений при ошибке не меняется.
+     */
+    private void checkVacuumFailure() {
+        if (vacuumFailure != null) {
+            IOException failure = vacuumFailure;
+            vacuumFailure = null;
+            throw new IllegalStateException("vacuum failed", failure);
+        }
+    }
+
     @Override
     public synchronized void close() throws IOException {
         try {
             if (closed) {
                 return;
             }
+            while (vacuumRunning) {
+                wait();
+            }
             insertElems();
             keysFile.seek(0);
             keysFile.setLength(0);
-            new IntegerSerializator().write(keysFile, offsets.size());
+            SerializationStrategy<Integer> integerSerializator = new IntegerSerializator();
+            integerSerializator.write(keysFile, KEYS_FORMAT_MAGIC);
+            integerSerializator.write(keysFile, KEYS_FORMAT_VERSION);
+            integerSerializator.write(keysFile, offsets.size());
             SerializationStrategy<Long> longSerializator = new LongSerializator();
             for (K key : offsets.keySet()) {
                 keySerializer.write(keysFile, key);
                 longSerializator.write(keysFile, offsets.get(key));
+                integerSerializator.write(keysFile, lengths.get(key));
             }
             offsets.clear();
+            lengths.clear();
             keysFile.close();
             valuesFile.close();
             closed = true;
         } catch (IOException e) {
             throw new IOException("soemthing went wrong while closing");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for vacuum");
+        }
+        if (vacuumFailure != null) {
+            throw new IOException("vacuum failed", vacuumFailure);
         }
     }
 
@@ -193,40 +271,142 @@ public class OptimizedHashTable<K, V> implements KeyValueStorage<K, V> {
         if (elemsToInsert.size() > MIN_NUMBER_TO_INSERT) {
             insertElems();
         }
+        startVacuumIfNeeded();
+    }
 
-        // Если нужно убрать много элементов из б.д.
-        if (optimizeCounter > offsets.size()) {
-            try {
-                Map<K, Long> newOffsets = new HashMap<>();
-                String newValuesPath = databasePath + File.separator + "new_" + valuesFileName;
-
-                String valuesPath = databasePath + File.separator + valuesFileName;
-                File newValues = new File(newValuesPath);
-
-                try (RandomAccessFile newValuesFile = new RandomAccessFile(newValues, "rw")) {
-                    newValuesFile.seek(0);
-                    newValuesFile.setLength(0);
-
-                    for (K key : offsets.keySet()) {
-                        if (offsets.get(key) == TO_INSERT) {
-                            newOffsets.put(key, TO_INSERT);
-                        } else {
-                            valuesFile.seek(offsets.get(key));
-                            V value = valueSerializer.read(valuesFile);
-                            newOffsets.put(key, newValuesFile.length());
-                            valueSerializer.write(newValuesFile, value);
-                        }
+    private void forgetValue(K key) {
+        int length = lengths.remove(key);
+        liveBytes -= length;
+        garbageBytes += length;
+    }
+
+    /**
+     * Если мусора в файле значений больше, чем живых данных, запускает vacuum в фоновом потоке.
+     */
+    private void startVacuumIfNeeded() {
+        if (vacuumRunning || vacuumFailure != null
+                || garbageBytes < MIN_GARBAGE_TO_VACUUM || garbageBytes <= liveBytes) {
+            return;
+        }
+        List<Extent> snapshot = new ArrayList<>(lengths.size());
+        for (Map.Entry<K, Integer> entry : lengths.entrySet()) {
+            snapshot.add(new Extent(offsets.get(entry.getKey()), entry.getValue()));
+        }
+        long snapshotEnd;
+        try {
+            snapshotEnd = valuesFile.length();
+        } catch (IOException e) {
+            vacuumFailure = e;
+            return;
+        }
+        vacuumRunning = true;
+        Thread thread = new Thread(() -> vacuum(snapshot, snapshotEnd), "vacuum-" + databasePath);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Копирует живые участки [0, snapshotEnd) старого файла значений в новый и подменяет файлы.
+     * Участки старого файла до snapshotEnd не меняются, пока идёт vacuum, поэтому их можно читать без монитора.
+     */
+    private void vacuum(List<Extent> snapshot, long snapshotEnd) {
+        Path valuesPath = Paths.get(databasePath, valuesFileName);
+        Path newValuesPath = Paths.get(databasePath, "new_" + valuesFileName);
+        IOException failure = null;
+        try (FileChannel target = FileChannel.open(newValuesPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Collections.sort(snapshot);
+            long[] oldOffsets = new long[snapshot.size()];
+            long[] newOffsets = new long[snapshot.size()];
+            long newLength = 0;
+            try (FileChannel source = FileChannel.open(valuesPath, StandardOpenOption.READ)) {
+                int runStart = 0;
+                while (runStart < snapshot.size()) {
+                    // Склеиваем участки, идущие в файле вплотную, чтобы копировать их одним transferTo
+                    long runOffset = snapshot.get(runStart).offset;
+                    long runEnd = runOffset;
+                    int runFinish = runStart;
+                    while (runFinish < snapshot.size() && snapshot.get(runFinish).offset == runEnd) {
+                        Extent extent = snapshot.get(runFinish);
+                        oldOffsets[runFinish] = extent.offset;
+                        newOffsets[runFinish] = newLength + (extent.offset - runOffset);
+                        runEnd += extent.length;
+                        ++runFinish;
                     }
-                    optimizeCounter = 0;
-                    offsets = newOffsets;
-                    valuesFile.close();
-                    newValuesFile.close();
-                    Files.move(Paths.get(newValuesPath), Paths.get(valuesPath), REPLACE_EXISTING);
-                    valuesFile = new RandomAccessFile(valuesPath, "rw");
+                    transfer(source, runOffset, runEnd - runOffset, target, newLength);
+                    newLength += runEnd - runOffset;
+                    runStart = runFinish;
                 }
-            } catch (IOException e) {
-                throw new IOException(e);
             }
+
+            synchronized (this) {
+                publishVacuumed(target, newLength, oldOffsets, newOffsets, snapshotEnd, valuesPath, newValuesPath);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        synchronized (this) {
+            if (failure != null) {
+                vacuumFailure = failure;
+                try {
+                    Files.deleteIfExists(newValuesPath);
+                } catch (IOException e) {
+                    vacuumFailure.addSuppressed(e);
+                }
+            }
+            vacuumRunning = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Вызывается под монитором: докопирует дописанный после снимка хвост, подменяет файл и пересчитывает смещения.
+     */
+    private void publishVacuumed(FileChannel target, long newLength, long[] oldOffsets, long[] newOffsets,
+                                 long snapshotEnd, Path valuesPath, Path newValuesPath) throws IOException {
+        long tailLength = valuesFile.length() - snapshotEnd;
+        transfer(valuesFile.getChannel(), snapshotEnd, tailLength, target, newLength);
+        target.force(false);
+        target.close();
+
+        valuesFile.close();
+        try {
+            try {
+                Files.move(newValuesPath, valuesPath, ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(newValuesPath, valuesPath, REPLACE_EXISTING);
+            }
+        } finally {
+            valuesFile = new RandomAccessFile(valuesPath.toFile(), "rw");
+        }
+
+        long tailShift = newLength - snapshotEnd;
+        for (Map.Entry<K, Long> entry : offsets.entrySet()) {
+            long offset = entry.getValue();
+            if (offset == TO_INSERT) {
+                continue;
+            }
+            if (offset >= snapshotEnd) {
+                entry.setValue(offset + tailShift);
+            } else {
+                // Значение не менялось с момента снимка, значит, оно есть в снимке
+                entry.setValue(newOffsets[Arrays.binarySearch(oldOffsets, offset)]);
+            }
+        }
+        garbageBytes = newLength + tailLength - liveBytes;
+    }
+
+    private static void transfer(FileChannel source, long position, long count,
+                                 FileChannel target, long targetPosition) throws IOException {
+        target.position(targetPosition);
+        long done = 0;
+        while (done < count) {
+            long transferred = source.transferTo(position + done, count - done, target);
+            if (transferred == 0 && position + done >= source.size()) {
+                throw new IOException("values file is shorter than expected");
+            }
+            done += transferred;
         }
     }
 
@@ -236,9 +416,27 @@ public class OptimizedHashTable<K, V> implements KeyValueStorage<K, V> {
         for (K key : elemsToInsert.keySet()) {
             offsets.put(key, offset);
             valueSerializer.write(valuesFile, elemsToInsert.get(key));
-            offset = valuesFile.getFilePointer();
+            long end = valuesFile.getFilePointer();
+            int length = (int) (end - offset);
+            lengths.put(key, length);
+            liveBytes += length;
+            offset = end;
         }
         elemsToInsert.clear();
     }
-}
 
+    private static final class Extent implements Comparable<Extent> {
+        private final long offset;
+        private final int length;
+
+        Extent(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Extent other) {
+            return Long.compare(offset, other.offset);
+        }
+    }
+}
@@ -5,12 +5,19 @@ package ru.mipt.java2016.homework.g597.markov.task3;
  */
 
 
+import org.junit.Test;
 import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
 import ru.mipt.java2016.homework.tests.task2.Student;
 import ru.mipt.java2016.homework.tests.task2.StudentKey;
 import ru.mipt.java2016.homework.tests.task3.KeyValueStoragePerformanceTest;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
 
 public class PerfomanceMapTest extends KeyValueStoragePerformanceTest {
     @Override
@@ -45,4 +52,61 @@ public class PerfomanceMapTest extends KeyValueStoragePerformanceTest {
             return null;
         }
     }
+
+    @Test
+    public void testOpensKeysFileWithoutLengths() {
+        doInTempDirectory(path -> {
+            // Файлы в старом формате: число ключей и пары ключ-смещение без длин значений
+            StringSerializator strings = new StringSerializator();
+            assertTrue(new File(path, "storage.db").createNewFile());
+            try (RandomAccessFile keys = new RandomAccessFile(new File(path, "keys_storage.db"), "rw");
+                 RandomAccessFile values = new RandomAccessFile(new File(path, "values_storage.db"), "rw")) {
+                strings.write(values, "stale value");
+                keys.writeInt(100);
+                for (int i = 0; i < 100; ++i) {
+                    strings.write(keys, "key" + i);
+                    keys.writeLong(values.getFilePointer());
+                    strings.write(values, "value" + i);
+                }
+            }
+            doWithStrings(path, storage -> {
+                assertEquals(100, storage.size());
+                assertEquals("value42", storage.read("key42"));
+                storage.write("key100", "value100");
+            });
+            doWithStrings(path, storage -> {
+                assertEquals(101, storage.size());
+                assertEquals("value0", storage.read("key0"));
+                assertEquals("value100", storage.read("key100"));
+            });
+        });
+    }
+
+    @Test
+    public void testVacuumKeepsLiveValues() {
+        doInTempDirectory(path -> {
+            StringBuilder padding = new StringBuilder();
+            for (int i = 0; i < 1000; ++i) {
+                padding.append('x');
+            }
+            doWithStrings(path, storage -> {
+                for (int round = 0; round < 50; ++round) {
+                    for (int key = 0; key < 100; ++key) {
+                        storage.write("key" + key, round + padding.toString());
+                    }
+                }
+                for (int key = 0; key < 50; ++key) {
+                    storage.delete("key" + key);
+                }
+            });
+            // Без vacuum файл значений вырос бы до ~5 Мб
+            assertTrue(new File(path, "values_storage.db").length() < 1024 * 1024);
+            doWithStrings(path, storage -> {
+                assertEquals(50, storage.size());
+                for (int key = 50; key < 100; ++key) {
+                    assertEquals(49 + padding.toString(), storage.read("key" + key));
+                }
+            });
+        });
+    }
 }
@@ -1,24 +1,31 @@
 package ru.mipt.java2016.homework.g597.spirin.task3;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import ru.mipt.java2016.homework.base.task2.ChunkedIndexFile;
 import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
+import ru.mipt.java2016.homework.base.task2.StorageStats;
+import ru.mipt.java2016.homework.base.task2.TinyLfuCache;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by whoami on 11/21/16.
  */
-public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K, V>, AutoCloseable {
+public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K, V>, StorageStats, AutoCloseable {
 
     private final SerializationStrategy<K> keySerializer;
     private final SerializationStrategy<V> valueSerializer;
@@ -31,24 +38,32 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
 
     private Map<K, Long> offsets = new HashMap<>();
 
+    // Set while the chunked offset file is still being loaded in background
+    private volatile ChunkedIndexFile<K> loadingIndex;
+    private final boolean lazyIndex;
+    // Changes when a key is added or removed, so that readKeys can fail fast
+    private int modificationCount;
+
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private boolean isOpen = false;
 
     private int countModifyOperations;
     private static final int MAX_MODIFY_OPERATIONS = 5000;
-
-    private LoadingCache<K, V> cache = CacheBuilder.newBuilder().maximumSize(1000).build(new CacheLoader<K, V>() {
-        @Override
-        public V load(K key) throws Exception {
-            Long offset = offsets.get(key);
-            if (offset == null) {
-                return null;
-            }
-
-            dataStorage.seek(offset);
-            return valueSerializer.read(dataStorage);
-        }
-    });
+    private static final int BATCH_READ_BUFFER_SIZE = 64 * 1024;
+    // The data file starts with magic and format version, files without them are in the legacy format
+    private static final int DATA_MAGIC = 0x53504B56;
+    private static final int DATA_FORMAT_VERSION = 2;
+    private static final int DATA_HEADER_SIZE = 8;
+    static final long MAX_CACHED_BYTES = 8 * 1024 * 1024;
+
+    // Values are weighted by their size in the data file
+    private final TinyLfuCache<K, V> cache;
+
+    // Read without the lock by monitoring, see StorageStats
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+    private final AtomicLong compactionNanos = new AtomicLong();
 
     /**
      *  Suppose that name is a template for name of file storage
@@ -56,9 +71,23 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
     HighPerformanceKeyValueStorage(String path, String name,
                                    SerializationStrategy<K> keySerializer,
                                    SerializationStrategy<V> valueSerializer) throws IOException {
+        this(path, name, keySerializer, valueSerializer, MAX_CACHED_BYTES, false);
+    }
+
+    /**
+     *  Several storages working side by side (e.g. shards) should split the cache budget between them.
+     *  With lazyIndex the constructor returns before the offset file is loaded: single-key operations
+     *  load only the chunk of their key, operations over all keys wait for the whole index.
+     */
+    HighPerformanceKeyValueStorage(String path, String name,
+                                   SerializationStrategy<K> keySerializer,
+                                   SerializationStrategy<V> valueSerializer,
+                                   long maxCachedBytes, boolean lazyIndex) throws IOException {
 
         this.path = path;
         this.name = name;
+        this.cache = new TinyLfuCache<>(maxCachedBytes);
+        this.lazyIndex = lazyIndex;
 
         handleFileExistence();
 
@@ -91,23 +120,105 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
     private void loadData() throws IOException {
         offsets.clear();
         offsetStorage.seek(0);
-        cache.cleanUp();
+        cache.clear();
+
+        if (dataStorage.length() == 0) {
+            writeDataHeader(dataStorage);
+        } else if (!hasDataHeader()) {
+            migrateLegacyFiles();
+            return;
+        }
 
+        FileChannel channel = offsetStorage.getChannel();
+        if (ChunkedIndexFile.isChunked(channel)) {
+            ChunkedIndexFile<K> indexFile = new ChunkedIndexFile<>(channel, keySerializer::read, lazyIndex);
+            offsets = indexFile.map();
+            if (lazyIndex) {
+                loadingIndex = indexFile;
+            }
+            return;
+        }
+
+        // Offset files written before the chunked format are a plain sequence of keys and offsets
+        readPlainOffsets(keySerializer);
+    }
+
+    private void readPlainOffsets(SerializationStrategy<K> keyReader) throws IOException {
         while (offsetStorage.getFilePointer() < offsetStorage.length()) {
-            K key = keySerializer.read(offsetStorage);
+            K key = keyReader.read(offsetStorage);
             long offset = offsetStorage.readLong();
             offsets.put(key, offset);
         }
     }
 
+    private boolean hasDataHeader() throws IOException {
+        if (dataStorage.length() < DATA_HEADER_SIZE) {
+            return false;
+        }
+        dataStorage.seek(0);
+        if (dataStorage.readInt() != DATA_MAGIC) {
+            return false;
+        }
+        int version = dataStorage.readInt();
+        if (version != DATA_FORMAT_VERSION) {
+            throw new IOException("Unsupported data format version " + version);
+        }
+        return true;
+    }
+
+    private static void writeDataHeader(RandomAccessFile file) throws IOException {
+        file.seek(0);
+        file.writeInt(DATA_MAGIC);
+        file.writeInt(DATA_FORMAT_VERSION);
+    }
+
+    /**
+     * Files written before the data header have plain offsets and strings in the legacy encoding.
+     * They are rewritten in the current format right away, so the format is never mixed in one file.
+     */
+    private void migrateLegacyFiles() throws IOException {
+        readPlainOffsets(keySerializer.legacyFormat());
+        rewriteDataFile(keySerializer.legacyFormat(), valueSerializer.legacyFormat(), 0);
+        ChunkedIndexFile.write(offsetStorage.getChannel(), offsets, keySerializer::write);
+    }
+
+    private void ensureLoaded(K key) {
+        ChunkedIndexFile<K> indexFile = loadingIndex;
+        if (indexFile != null) {
+            indexFile.ensureLoaded(key);
+        }
+    }
+
+    private void ensureIndexLoaded() {
+        ChunkedIndexFile<K> indexFile = loadingIndex;
+        if (indexFile != null) {
+            indexFile.awaitLoaded();
+            loadingIndex = null;
+        }
+    }
+
     private void updateStorage() throws IOException {
+        ensureIndexLoaded();
+        long start = System.nanoTime();
+        rewriteDataFile(keySerializer, valueSerializer, DATA_HEADER_SIZE);
+        compactionCount.incrementAndGet();
+        compactionNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Copies live records to a new data file in the current format and replaces the old file with it
+     */
+    private void rewriteDataFile(SerializationStrategy<K> keyReader, SerializationStrategy<V> valueReader,
+                                 long firstRecord) throws IOException {
         try (RandomAccessFile buffer = new RandomAccessFile(path + File.separator + name + ".buffer", "rw")) {
             Map<K, Long> updatedOffsets = new HashMap<>();
 
-            dataStorage.seek(0);
+            buffer.setLength(0);
+            writeDataHeader(buffer);
+            dataStorage.seek(firstRecord);
             while (dataStorage.getFilePointer() < dataStorage.length()) {
-                V value = valueSerializer.read(dataStorage);
-                K key = keySerializer.read(dataStorage);
+                V value = valueReader.read(dataStorage);
+                K key = keyReader.read(dataStorage);
 
                 if (offsets.containsKey(key)) {
                     updatedOffsets.put(key, buffer.getFilePointer());
@@ -118,6 +229,8 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
 
             offsets.clear();
             offsets = updatedOffsets;
+            bytesRead.addAndGet(dataStorage.length());
+            bytesWritten.addAndGet(buffer.length());
         }
         dataStorage.close();
 
@@ -133,11 +246,20 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
         lock.writeLock().lock();
         try {
             checkIfStorageIsOpen();
-            if (!offsets.containsKey(key)) {
+            ensureLoaded(key);
+            Long offset = offsets.get(key);
+            if (offset == null) {
                 return null;
             }
-            return cache.get(key);
-        } catch (ExecutionException e) {
+            V value = cache.get(key);
+            if (value == null) {
+                dataStorage.seek(offset);
+                value = valueSerializer.read(dataStorage);
+                bytesRead.addAndGet(dataStorage.getFilePointer() - offset);
+                cache.put(key, value, dataStorage.getFilePointer() - offset);
+            }
+            return value;
+        } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
             lock.writeLock().unlock();
@@ -149,18 +271,108 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
         lock.writeLock().lock();
         try {
             checkIfStorageIsOpen();
+            ensureLoaded(key);
 
             if (offsets.containsKey(key)) {
                 countModifyOperations += 1;
+            } else {
+                ++modificationCount;
             }
 
             dataStorage.seek(dataStorage.length());
             Long offset = dataStorage.getFilePointer();
 
             offsets.put(key, offset);
+            cache.invalidate(key);
 
             valueSerializer.write(dataStorage, value);
             keySerializer.write(dataStorage, key);
+            bytesWritten.addAndGet(dataStorage.getFilePointer() - offset);
+
+            if (countModifyOperations >= MAX_MODIFY_OPERATIONS) {
+                updateStorage();
+                countModifyOperations = 0;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads values of all keys under one lock. Keys missing in cache are sorted by offset and read
+     * through one buffer of positional reads, so values lying close to each other in the data file
+     * are fetched by a single read instead of a seek per key.
+     */
+    @Override
+    public Map<K, V> readAll(Collection<? extends K> keys) {
+        lock.readLock().lock();
+        try {
+            checkIfStorageIsOpen();
+            ensureIndexLoaded();
+            Map<K, V> result = new HashMap<>();
+            List<Map.Entry<K, Long>> misses = new ArrayList<>();
+            for (K key : keys) {
+                Long offset = offsets.get(key);
+                if (offset == null) {
+                    continue;
+                }
+                V value = cache.get(key);
+                if (value != null) {
+                    result.put(key, value);
+                } else {
+                    misses.add(new AbstractMap.SimpleImmutableEntry<>(key, offset));
+                }
+            }
+
+            misses.sort(Map.Entry.comparingByValue());
+            BatchInputStream stream = new BatchInputStream(dataStorage.getChannel());
+            DataInputStream input = new DataInputStream(stream);
+            for (Map.Entry<K, Long> miss : misses) {
+                stream.seek(miss.getValue());
+                V value = valueSerializer.read(input);
+                result.put(miss.getKey(), value);
+                bytesRead.addAndGet(stream.position() - miss.getValue());
+                cache.put(miss.getKey(), value, stream.position() - miss.getValue());
+            }
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Serializes all records into memory and appends them to the data file with one write.
+     */
+    @Override
+    public void writeAll(Map<? extends K, ? extends V> entries) {
+        lock.writeLock().lock();
+        try {
+            checkIfStorageIsOpen();
+            ensureIndexLoaded();
+
+            long start = dataStorage.length();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+                K key = entry.getKey();
+                if (offsets.containsKey(key)) {
+                    countModifyOperations += 1;
+                } else {
+                    ++modificationCount;
+                }
+                offsets.put(key, start + output.size());
+                cache.invalidate(key);
+
+                valueSerializer.write(output, entry.getValue());
+                keySerializer.write(output, key);
+            }
+            dataStorage.seek(start);
+            dataStorage.write(bytes.toByteArray());
+            bytesWritten.addAndGet(bytes.size());
 
             if (countModifyOperations >= MAX_MODIFY_OPERATIONS) {
                 updateStorage();
@@ -178,12 +390,15 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
         lock.writeLock().lock();
         try {
             checkIfStorageIsOpen();
+            ensureLoaded(key);
 
             if (offsets.containsKey(key)) {
                 countModifyOperations += 1;
+                ++modificationCount;
             }
 
             offsets.remove(key);
+            cache.invalidate(key);
 
             if (countModifyOperations >= MAX_MODIFY_OPERATIONS) {
                 updateStorage();
@@ -201,6 +416,7 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
         lock.readLock().lock();
         try {
             checkIfStorageIsOpen();
+            ensureLoaded(key);
             return offsets.containsKey(key);
         } finally {
             lock.readLock().unlock();
@@ -212,6 +428,7 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
         lock.readLock().lock();
         try {
             checkIfStorageIsOpen();
+            ensureIndexLoaded();
             return offsets.size();
         } finally {
             lock.readLock().unlock();
@@ -223,7 +440,29 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
         lock.readLock().lock();
         try {
             checkIfStorageIsOpen();
-            return offsets.keySet().iterator();
+            ensureIndexLoaded();
+            Iterator<K> keys = offsets.keySet().iterator();
+            int expectedModificationCount = modificationCount;
+            // The loaded index is a ConcurrentHashMap, its own iterator never fails
+            return new Iterator<K>() {
+                @Override
+                public boolean hasNext() {
+                    checkModification();
+                    return keys.hasNext();
+                }
+
+                @Override
+                public K next() {
+                    checkModification();
+                    return keys.next();
+                }
+
+                private void checkModification() {
+                    if (modificationCount != expectedModificationCount) {
+                        throw new ConcurrentModificationException();
+                    }
+                }
+            };
         } finally {
             lock.readLock().unlock();
         }
@@ -245,13 +484,9 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
                 countModifyOperations = 0;
             }
 
-            offsetStorage.setLength(0);
-            offsetStorage.seek(0);
-
-            for (Map.Entry<K, Long> entry : offsets.entrySet()) {
-                keySerializer.write(offsetStorage, entry.getKey());
-                offsetStorage.writeLong(entry.getValue());
-            }
+            ensureIndexLoaded();
+            ChunkedIndexFile.write(offsetStorage.getChannel(), offsets, keySerializer::write);
+            bytesWritten.addAndGet(offsetStorage.length());
 
             dataStorage.close();
             offsetStorage.close();
@@ -259,4 +494,109 @@ public class HighPerformanceKeyValueStorage<K, V> implements KeyValueStorage<K,
             lock.writeLock().unlock();
         }
     }
+
+    @Override
+    public long bytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long bytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public long cacheHits() {
+        return cache.hitCount();
+    }
+
+    @Override
+    public long cacheMisses() {
+        return cache.missCount();
+    }
+
+    @Override
+    public long compactionCount() {
+        return compactionCount.get();
+    }
+
+    @Override
+    public long compactionNanos() {
+        return compactionNanos.get();
+    }
+
+    // Every write goes straight to the data file, there are no buffers to flush in background
+    @Override
+    public long flushCount() {
+        return 0;
+    }
+
+    @Override
+    public long flushNanos() {
+        return 0;
+    }
+
+    /**
+     * Stream over the data file which reads it with positional reads into one big buffer.
+     * Seeking inside the buffered window doesn't touch the disk.
+     */
+    private static class BatchInputStream extends InputStream {
+        private final FileChannel channel;
+        private final byte[] buffer = new byte[BATCH_READ_BUFFER_SIZE];
+        private long bufferStart;
+        private int bufferLength;
+        private long position;
+
+        BatchInputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void seek(long newPosition) {
+            position = newPosition;
+        }
+
+        long position() {
+            return position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer[(int) (position++ - bufferStart)] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = (int) Math.min(length, bufferStart + bufferLength - position);
+            System.arraycopy(buffer, (int) (position - bufferStart), bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        /**
+         * @return false if position is at the end of file
+         */
+        private boolean fill() throws IOException {
+            if (position >= bufferStart && position < bufferStart + bufferLength) {
+                return true;
+            }
+            bufferStart = position;
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            while (wrapped.hasRemaining()) {
+                if (channel.read(wrapped, bufferStart + wrapped.position()) < 0) {
+                    break;
+                }
+            }
+            bufferLength = wrapped.position();
+            return bufferLength > 0;
+        }
+    }
 }
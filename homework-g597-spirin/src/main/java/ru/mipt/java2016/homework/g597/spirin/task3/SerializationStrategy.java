@@ -11,4 +11,12 @@ public interface SerializationStrategy<T> {
     T read(DataInput file) throws IOException;
 
     void write(DataOutput file, T object) throws IOException;
+
+    /**
+     * Encoding of data and offset files written before the data file got a format header.
+     * Only strings were encoded differently, so strategies containing strings must override it.
+     */
+    default SerializationStrategy<T> legacyFormat() {
+        return this;
+    }
 }
@@ -1,5 +1,7 @@
 package ru.mipt.java2016.homework.g597.spirin.task3;
 
+import ru.mipt.java2016.homework.base.task2.BinaryCodec;
+
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
@@ -17,20 +19,39 @@ public class StringSerializer implements SerializationStrategy<String> {
         return SingletonHolder.HOLDER_INSTANCE;
     }
 
-    private final IntegerSerializer integerSerializer = IntegerSerializer.getInstance();
-
     @Override
     public String read(DataInput file) throws IOException {
-        int len = integerSerializer.read(file);
-        byte[] characters = new byte[len];
-        file.readFully(characters);
-        return new String(characters);
+        return BinaryCodec.readString(file);
     }
 
     @Override
     public void write(DataOutput file, String object) throws IOException {
-        byte[] characters = object.getBytes();
-        integerSerializer.write(file, characters.length);
-        file.write(characters);
+        BinaryCodec.writeString(file, object);
+    }
+
+    @Override
+    public SerializationStrategy<String> legacyFormat() {
+        return LegacyStringSerializer.INSTANCE;
+    }
+
+    /**
+     * Int length and bytes in the default charset
+     */
+    private static class LegacyStringSerializer implements SerializationStrategy<String> {
+        static final LegacyStringSerializer INSTANCE = new LegacyStringSerializer();
+
+        @Override
+        public String read(DataInput file) throws IOException {
+            byte[] characters = new byte[file.readInt()];
+            file.readFully(characters);
+            return new String(characters);
+        }
+
+        @Override
+        public void write(DataOutput file, String object) throws IOException {
+            byte[] characters = object.getBytes();
+            file.writeInt(characters.length);
+            file.write(characters);
+        }
     }
 }
@@ -1,11 +1,30 @@
 package ru.mipt.java2016.homework.g597.spirin.task3;
 
+import org.junit.Test;
+import ru.mipt.java2016.homework.base.task2.AsyncKeyValueStorage;
 import ru.mipt.java2016.homework.base.task2.KeyValueStorage;
 import ru.mipt.java2016.homework.tests.task2.Student;
 import ru.mipt.java2016.homework.tests.task2.StudentKey;
 import ru.mipt.java2016.homework.tests.task3.KeyValueStoragePerformanceTest;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
 
 /**
  * Created by whoami on 11/22/16.
@@ -46,4 +65,142 @@ public class HighPerformanceKeyValueStorageTest extends KeyValueStoragePerforman
             return null;
         }
     }
+
+    @Test
+    public void testReadAllWriteAll() {
+        doInTempDirectory(path -> {
+            doWithStrings(path, storage -> {
+                Map<String, String> entries = new HashMap<>();
+                for (int i = 0; i < 1000; ++i) {
+                    entries.put("key" + i, "value" + i);
+                }
+                storage.writeAll(entries);
+                assertEquals("value7", storage.read("key7"));
+
+                entries.clear();
+                for (int i = 0; i < 1000; i += 2) {
+                    entries.put("key" + i, "new value" + i);
+                }
+                storage.writeAll(entries);
+                assertEquals(1000, storage.size());
+            });
+            doWithStrings(path, storage -> {
+                assertEquals("new value6", storage.read("key6"));
+                List<String> keys = new ArrayList<>();
+                for (int i = 999; i >= 0; --i) {
+                    keys.add("key" + i);
+                }
+                keys.add("missing");
+                Map<String, String> values = storage.readAll(keys);
+                assertEquals(1000, values.size());
+                for (int i = 0; i < 1000; ++i) {
+                    assertEquals((i % 2 == 0 ? "new value" : "value") + i, values.get("key" + i));
+                }
+                assertNull(values.get("missing"));
+            });
+        });
+    }
+
+    @Test
+    public void testAsyncWrapper() {
+        doInTempDirectory(path -> {
+            AsyncKeyValueStorage<String, String> storage =
+                    new AsyncKeyValueStorage<>(buildStringsStorage(path), 4, 16);
+            List<CompletableFuture<?>> writes = new ArrayList<>();
+            for (int i = 0; i < 500; ++i) {
+                writes.add(storage.write("key" + i, "first" + i));
+                writes.add(storage.write("key" + i, "second" + i));
+                if (i % 5 == 0) {
+                    writes.add(storage.delete("key" + i));
+                }
+            }
+            List<CompletableFuture<String>> reads = new ArrayList<>();
+            for (int i = 0; i < 500; ++i) {
+                reads.add(storage.read("key" + i));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()])).join();
+            for (int i = 0; i < 500; ++i) {
+                assertEquals(i % 5 == 0 ? null : "second" + i, reads.get(i).join());
+            }
+            assertEquals(400, (int) storage.size().join());
+            storage.close();
+            // Repeated close is a no-op
+            storage.close();
+            try {
+                storage.flushAsync();
+                fail("Closed storage should not accept operations");
+            } catch (IllegalStateException expected) {
+                // ok
+            }
+
+            doWithStrings(path, reopened -> {
+                assertEquals(400, reopened.size());
+                assertEquals("second7", reopened.read("key7"));
+            });
+        });
+    }
+
+    @Test
+    public void testLegacyFormatMigration() {
+        doInTempDirectory(path -> {
+            SerializationStrategy<String> legacy = StringSerializer.getInstance().legacyFormat();
+            try (DataOutputStream data = new DataOutputStream(new FileOutputStream(
+                         new File(path, filename + ".data")));
+                 DataOutputStream offsets = new DataOutputStream(new FileOutputStream(
+                         new File(path, filename + ".offset")))) {
+                // Stale record of an overwritten key
+                legacy.write(data, "stale7");
+                legacy.write(data, "key7");
+                for (int i = 0; i < 100; ++i) {
+                    legacy.write(offsets, "key" + i);
+                    offsets.writeLong(data.size());
+                    legacy.write(data, "value" + i);
+                    legacy.write(data, "key" + i);
+                }
+            }
+            doWithStrings(path, storage -> {
+                assertEquals(100, storage.size());
+                assertEquals("value0", storage.read("key0"));
+                assertEquals("value7", storage.read("key7"));
+                storage.write("key100", "value100");
+            });
+            doWithStrings(path, storage -> {
+                assertEquals(101, storage.size());
+                assertEquals("value99", storage.read("key99"));
+                assertEquals("value100", storage.read("key100"));
+            });
+        });
+    }
+
+    @Test
+    public void testChunkedIndexReopen() {
+        doInTempDirectory(path -> {
+            doWithStrings(path, storage -> {
+                for (int i = 0; i < 20000; ++i) {
+                    storage.write("key" + i, "value" + i);
+                }
+                storage.delete("key13");
+            });
+            for (boolean lazy : new boolean[] {false, true}) {
+                HighPerformanceKeyValueStorage<String, String> storage = new HighPerformanceKeyValueStorage<>(
+                        path, filename, StringSerializer.getInstance(), StringSerializer.getInstance(),
+                        HighPerformanceKeyValueStorage.MAX_CACHED_BYTES, lazy);
+                try {
+                    assertEquals("value19999", storage.read("key19999"));
+                    assertFalse(storage.exists("key13"));
+                    storage.write("key13", "value13");
+                    assertEquals(20000, storage.size());
+                    Set<String> keys = new HashSet<>();
+                    Iterator<String> iterator = storage.readKeys();
+                    while (iterator.hasNext()) {
+                        keys.add(iterator.next());
+                    }
+                    assertEquals(20000, keys.size());
+                    storage.delete("key13");
+                } finally {
+                    storage.close();
+                }
+            }
+        });
+    }
 }
@@ -0,0 +1,128 @@
+package ru.mipt.java2016.homework.g597.spirin.task3;
+
+import org.junit.Test;
+import ru.mipt.java2016.homework.base.task2.InstrumentedKeyValueStorage;
+import ru.mipt.java2016.homework.base.task2.LatencyHistogram;
+import ru.mipt.java2016.homework.base.task2.ShardedKeyValueStorage;
+import ru.mipt.java2016.homework.base.task2.StorageStats;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
+
+/**
+ * HighPerformanceKeyValueStorage behind the metrics decorator
+ */
+public class InstrumentedKeyValueStorageTest {
+    private static final AtomicInteger STORAGE_NUMBER = new AtomicInteger();
+    private final String filename = "storage.db";
+
+    private InstrumentedKeyValueStorage<String, String> buildInstrumented(String path) {
+        try {
+            return new InstrumentedKeyValueStorage<>(new HighPerformanceKeyValueStorage<>(path, filename,
+                    StringSerializer.getInstance(), StringSerializer.getInstance()),
+                    "spirin-" + STORAGE_NUMBER.incrementAndGet());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    public void testMetricsArePublished() {
+        doInTempDirectory(path -> {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            InstrumentedKeyValueStorage<String, String> storage = buildInstrumented(path);
+            ObjectName name = storage.objectName();
+            assertTrue(server.isRegistered(name));
+            for (int i = 0; i < 1000; ++i) {
+                storage.write("key" + i, "value" + i);
+            }
+            for (int i = 0; i < 1000; ++i) {
+                storage.read("key" + (i % 10));
+            }
+            storage.delete("key0");
+            assertFalse(storage.exists("key0"));
+            try {
+                storage.flush();
+                fail("Spirin storage does not support flush");
+            } catch (UnsupportedOperationException expected) {
+                // Counted as a failed flush
+            }
+
+            assertEquals(1000, storage.getWrite().getCount());
+            assertEquals(1, storage.getFlush().getErrorCount());
+            CompositeData reads = (CompositeData) server.getAttribute(name, "Read");
+            assertEquals(1000L, reads.get("count"));
+            assertTrue((Long) reads.get("p50Nanos") <= (Long) reads.get("p99Nanos"));
+            assertTrue((Long) reads.get("p99Nanos") <= (Long) reads.get("p999Nanos"));
+            assertTrue((Long) reads.get("p999Nanos") <= (Long) reads.get("maxNanos"));
+            assertTrue((Long) server.getAttribute(name, "BytesWritten") > 0);
+            assertTrue((Double) server.getAttribute(name, "CacheHitRatio") > 0.9);
+            assertEquals(0L, server.getAttribute(name, "BackgroundFlushCount"));
+
+            server.invoke(name, "resetOperationStats", null, null);
+            assertEquals(0, storage.getRead().getCount());
+
+            storage.close();
+            assertFalse(server.isRegistered(name));
+            assertEquals(1, storage.getClose().getCount());
+        });
+    }
+
+    @Test
+    public void testUnknownEngineStats() {
+        doInTempDirectory(path -> {
+            // The sharded wrapper doesn't implement StorageStats
+            InstrumentedKeyValueStorage<String, String> storage = new InstrumentedKeyValueStorage<>(
+                    new ShardedKeyValueStorage<>(path, 1, this::buildShard),
+                    "sharded-" + STORAGE_NUMBER.incrementAndGet());
+            storage.write("key", "value");
+            assertEquals("value", storage.read("key"));
+            assertEquals(StorageStats.UNKNOWN, storage.getBytesRead());
+            assertEquals(StorageStats.UNKNOWN, storage.getCacheHitRatio(), 0);
+            storage.close();
+        });
+    }
+
+    private HighPerformanceKeyValueStorage<String, String> buildShard(String shardPath) {
+        try {
+            return new HighPerformanceKeyValueStorage<>(shardPath, filename,
+                    StringSerializer.getInstance(), StringSerializer.getInstance());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentileNanos(0.5));
+        for (long nanos = 1; nanos <= 100000; ++nanos) {
+            histogram.record(nanos);
+        }
+        assertEquals(100000, histogram.count());
+        assertEquals(50000, histogram.meanNanos());
+        assertEquals(100000, histogram.maxNanos());
+        assertWithinBucket(50000, histogram.percentileNanos(0.5));
+        assertWithinBucket(99000, histogram.percentileNanos(0.99));
+        assertWithinBucket(99900, histogram.percentileNanos(0.999));
+        assertEquals(100000, histogram.percentileNanos(1));
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.percentileNanos(1));
+    }
+
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue(actual + " is below " + expected, actual >= expected);
+        assertTrue(actual + " is too far from " + expected, actual <= expected + expected / 16);
+    }
+}
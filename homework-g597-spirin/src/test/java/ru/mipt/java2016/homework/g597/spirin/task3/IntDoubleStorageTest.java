@@ -0,0 +1,150 @@
+package ru.mipt.java2016.homework.g597.spirin.task3;
+
+import org.junit.Test;
+import ru.mipt.java2016.homework.base.task2.IntDoubleKeyValueStorage;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Paths;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
+
+/**
+ * Primitive Integer -> Double storage from homework-base
+ */
+public class IntDoubleStorageTest {
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 12;
+
+    @Test
+    public void testDeleteMovesLastRecord() {
+        doInTempDirectory(path -> {
+            try (IntDoubleKeyValueStorage storage = new IntDoubleKeyValueStorage(path)) {
+                for (int i = 0; i < 10000; ++i) {
+                    storage.write(i * 31, i / 2.0);
+                }
+                for (int i = 1; i < 10000; i += 2) {
+                    storage.delete(i * 31);
+                }
+            }
+            try (IntDoubleKeyValueStorage storage = new IntDoubleKeyValueStorage(path)) {
+                assertEquals(5000, storage.size());
+                for (int i = 0; i < 10000; ++i) {
+                    if (i % 2 == 0) {
+                        assertEquals((Double) (i / 2.0), storage.read(i * 31));
+                    } else {
+                        assertFalse(storage.exists(i * 31));
+                    }
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testOnlyKeySetChangesBreakIterator() {
+        doInTempDirectory(path -> {
+            try (IntDoubleKeyValueStorage storage = new IntDoubleKeyValueStorage(path)) {
+                for (int i = 0; i < 10; ++i) {
+                    storage.writeDouble(i, i);
+                }
+                Iterator<Integer> iterator = storage.readKeys();
+                iterator.next();
+                storage.writeDouble(1, -1.0);
+                iterator.next();
+
+                storage.deleteKey(2);
+                try {
+                    iterator.next();
+                    fail("Iterator should notice a deleted key");
+                } catch (ConcurrentModificationException expected) {
+                    // ok
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testRecordCountIsRecoveredAfterCrash() {
+        doInTempDirectory(path -> {
+            try (IntDoubleKeyValueStorage storage = new IntDoubleKeyValueStorage(path)) {
+                storage.flush();
+                for (int i = 0; i < 100; ++i) {
+                    storage.writeDouble(i, i * 1.5);
+                }
+            }
+            // Crash before close: header still holds the count of the last flush
+            setHeaderCount(path, 0);
+            try (IntDoubleKeyValueStorage storage = new IntDoubleKeyValueStorage(path)) {
+                assertEquals(100, storage.size());
+                assertEquals(99 * 1.5, storage.readDouble(99, Double.NaN), 0);
+            }
+        });
+    }
+
+    @Test
+    public void testInterruptedDeleteIsRecovered() {
+        doInTempDirectory(path -> {
+            try (IntDoubleKeyValueStorage storage = new IntDoubleKeyValueStorage(path)) {
+                for (int i = 0; i < 3; ++i) {
+                    storage.writeDouble(i, i);
+                }
+            }
+            // Crash while deleting key 0: the last record is copied over it, but the file is not truncated yet
+            try (RandomAccessFile raw = new RandomAccessFile(storageFile(path), "rw")) {
+                raw.seek(HEADER_SIZE);
+                raw.writeInt(2);
+                raw.writeDouble(2);
+            }
+            try (IntDoubleKeyValueStorage storage = new IntDoubleKeyValueStorage(path)) {
+                assertEquals(2, storage.size());
+                assertNull(storage.read(0));
+                assertEquals((Double) 1.0, storage.read(1));
+                assertEquals((Double) 2.0, storage.read(2));
+            }
+            try (IntDoubleKeyValueStorage storage = new IntDoubleKeyValueStorage(path)) {
+                assertEquals(2, storage.size());
+            }
+        });
+    }
+
+    @Test
+    public void testTornRecordIsTruncated() {
+        doInTempDirectory(path -> {
+            try (IntDoubleKeyValueStorage storage = new IntDoubleKeyValueStorage(path)) {
+                storage.writeDouble(1, 1);
+                storage.writeDouble(2, 2);
+            }
+            // Crash in the middle of appending the second record
+            try (RandomAccessFile raw = new RandomAccessFile(storageFile(path), "rw")) {
+                raw.setLength(HEADER_SIZE + RECORD_SIZE + 5);
+            }
+            try (IntDoubleKeyValueStorage storage = new IntDoubleKeyValueStorage(path)) {
+                assertEquals(1, storage.size());
+                assertEquals((Double) 1.0, storage.read(1));
+                assertNull(storage.read(2));
+                storage.writeDouble(3, 3);
+            }
+            assertEquals(HEADER_SIZE + 2 * RECORD_SIZE, new File(storageFile(path)).length());
+            try (IntDoubleKeyValueStorage storage = new IntDoubleKeyValueStorage(path)) {
+                assertEquals((Double) 3.0, storage.read(3));
+            }
+        });
+    }
+
+    private static void setHeaderCount(String path, int count) throws Exception {
+        try (RandomAccessFile raw = new RandomAccessFile(storageFile(path), "rw")) {
+            raw.seek(4);
+            raw.writeInt(count);
+        }
+    }
+
+    private static String storageFile(String path) {
+        return Paths.get(path, IntDoubleKeyValueStorage.FILE_NAME).toString();
+    }
+}
@@ -0,0 +1,125 @@
+package ru.mipt.java2016.homework.g597.spirin.task3;
+
+import org.junit.Test;
+import ru.mipt.java2016.homework.base.task2.MalformedDataException;
+import ru.mipt.java2016.homework.base.task2.ShardedKeyValueStorage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
+
+/**
+ * HighPerformanceKeyValueStorage split into several shards
+ */
+public class ShardedKeyValueStorageTest {
+    private static final int SHARDS = 4;
+    private final String filename = "storage.db";
+
+    private ShardedKeyValueStorage<String, String> buildSharded(String path, int shards) throws IOException {
+        return new ShardedKeyValueStorage<>(path, shards, this::buildStorage);
+    }
+
+    private HighPerformanceKeyValueStorage<String, String> buildStorage(String shardPath) {
+        try {
+            return new HighPerformanceKeyValueStorage<>(shardPath, filename,
+                    StringSerializer.getInstance(), StringSerializer.getInstance(),
+                    HighPerformanceKeyValueStorage.MAX_CACHED_BYTES / SHARDS, false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    public void testManifestIsValidated() {
+        doInTempDirectory(path -> {
+            try (ShardedKeyValueStorage<String, String> storage = buildSharded(path, SHARDS)) {
+                storage.write("key", "value");
+            }
+            try {
+                buildSharded(path, SHARDS + 1);
+                fail("Storage should not open with another shard count");
+            } catch (MalformedDataException expected) {
+                // Keys would be routed to wrong shards
+            }
+            try (ShardedKeyValueStorage<String, String> storage = new ShardedKeyValueStorage<>(path,
+                    this::buildStorage)) {
+                assertEquals(SHARDS, storage.shardCount());
+                assertEquals("value", storage.read("key"));
+            }
+        });
+    }
+
+    @Test
+    public void testOnlyKeySetChangesBreakIterator() {
+        doInTempDirectory(path -> {
+            try (ShardedKeyValueStorage<String, String> storage = buildSharded(path, SHARDS)) {
+                for (int i = 0; i < 100; ++i) {
+                    storage.write("key" + i, "value" + i);
+                }
+                Iterator<String> iterator = storage.readKeys();
+                iterator.next();
+                storage.write("key1", "another value");
+                storage.delete("missing");
+                iterator.next();
+
+                storage.delete("key2");
+                try {
+                    iterator.next();
+                    fail("Iterator should notice a deleted key");
+                } catch (ConcurrentModificationException expected) {
+                    // ok
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testConcurrentWriters() {
+        doInTempDirectory(path -> {
+            try (ShardedKeyValueStorage<String, String> storage = buildSharded(path, SHARDS)) {
+                ExecutorService executor = Executors.newFixedThreadPool(SHARDS);
+                try {
+                    List<Future<?>> futures = new ArrayList<>();
+                    for (int thread = 0; thread < SHARDS; ++thread) {
+                        int first = thread * 1000;
+                        futures.add(executor.submit(() -> {
+                            for (int i = first; i < first + 1000; ++i) {
+                                storage.write("key" + i, "value" + i);
+                                assertEquals("value" + i, storage.read("key" + i));
+                            }
+                        }));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                } finally {
+                    executor.shutdown();
+                }
+                assertEquals(SHARDS * 1000, storage.size());
+            }
+            try (ShardedKeyValueStorage<String, String> storage = buildSharded(path, SHARDS)) {
+                Set<String> keys = new HashSet<>();
+                Iterator<String> iterator = storage.readKeys();
+                while (iterator.hasNext()) {
+                    keys.add(iterator.next());
+                }
+                assertEquals(SHARDS * 1000, keys.size());
+                assertEquals("value3999", storage.read("key3999"));
+                assertNull(storage.read("key4000"));
+            }
+        });
+    }
+}
@@ -0,0 +1,93 @@
+package ru.mipt.java2016.homework.g597.spirin.task3;
+
+import org.junit.Test;
+import ru.mipt.java2016.homework.base.task2.BinaryCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * StringSerializer writes strings with BinaryCodec
+ */
+public class StringSerializerTest {
+    private static final String[] STRINGS = {
+        "",
+        "key42",
+        "Latin-1: caf\u00e9 \u00ff",
+        "\u041f\u0440\u0438\u0432\u0435\u0442, \u043c\u0438\u0440",
+        "pair \uD83D\uDE00 and lonely \uD83D surrogate \uDE00",
+        longString(100 * 1024, 'x'),
+        longString(100 * 1024, '\u0416'),
+    };
+
+    private static String longString(int length, char symbol) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            builder.append((char) (symbol + i % 7));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testDataStreams() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        for (String string : STRINGS) {
+            StringSerializer.getInstance().write(output, string);
+        }
+        int expectedSize = 0;
+        for (String string : STRINGS) {
+            expectedSize += BinaryCodec.encodedSize(string);
+        }
+        assertEquals(expectedSize, bytes.size());
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (String string : STRINGS) {
+            assertEquals(string, StringSerializer.getInstance().read(input));
+        }
+        assertEquals(0, input.available());
+    }
+
+    @Test
+    public void testBuffersAndChannels() throws IOException {
+        ByteBuffer direct = ByteBuffer.allocateDirect(1024 * 1024);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (String string : STRINGS) {
+            BinaryCodec.writeString(direct, string);
+            BinaryCodec.writeString(Channels.newChannel(bytes), string);
+        }
+        direct.flip();
+        ByteBuffer heap = ByteBuffer.wrap(bytes.toByteArray());
+        assertEquals(direct, heap);
+        for (String string : STRINGS) {
+            assertEquals(string, BinaryCodec.readString(direct));
+            assertEquals(string, BinaryCodec.readString(heap));
+        }
+    }
+
+    @Test
+    public void testVarInts() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int[] values = {0, 1, 127, 128, 300, Integer.MAX_VALUE, -1};
+        for (int value : values) {
+            buffer.clear();
+            BinaryCodec.writeVarInt(buffer, value);
+            assertEquals(BinaryCodec.varIntSize(value), buffer.position());
+            buffer.flip();
+            assertEquals(value, BinaryCodec.readVarInt(buffer));
+
+            buffer.clear();
+            BinaryCodec.writeVarLong(buffer, (long) value << 20);
+            assertEquals(BinaryCodec.varLongSize((long) value << 20), buffer.position());
+            buffer.flip();
+            assertEquals((long) value << 20, BinaryCodec.readVarLong(buffer));
+        }
+    }
+}
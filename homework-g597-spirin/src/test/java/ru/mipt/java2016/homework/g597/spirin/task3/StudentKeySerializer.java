@@ -13,7 +13,9 @@ import java.io.RandomAccessFile;
 public class StudentKeySerializer implements SerializationStrategy<StudentKey> {
 
     private static class SingletonHolder {
-        static final StudentKeySerializer HOLDER_INSTANCE = new StudentKeySerializer();
+        static final StudentKeySerializer HOLDER_INSTANCE = new StudentKeySerializer(StringSerializer.getInstance());
+        static final StudentKeySerializer LEGACY_INSTANCE =
+                new StudentKeySerializer(StringSerializer.getInstance().legacyFormat());
     }
 
     static StudentKeySerializer getInstance() {
@@ -21,7 +23,11 @@ public class StudentKeySerializer implements SerializationStrategy<StudentKey> {
     }
 
     private final IntegerSerializer integerSerializer = IntegerSerializer.getInstance();
-    private final StringSerializer stringSerializer = StringSerializer.getInstance();
+    private final SerializationStrategy<String> stringSerializer;
+
+    private StudentKeySerializer(SerializationStrategy<String> stringSerializer) {
+        this.stringSerializer = stringSerializer;
+    }
 
     @Override
     public StudentKey read(DataInput file) throws IOException {
@@ -35,4 +41,9 @@ public class StudentKeySerializer implements SerializationStrategy<StudentKey> {
         integerSerializer.write(file, object.getGroupId());
         stringSerializer.write(file, object.getName());
     }
+
+    @Override
+    public SerializationStrategy<StudentKey> legacyFormat() {
+        return SingletonHolder.LEGACY_INSTANCE;
+    }
 }
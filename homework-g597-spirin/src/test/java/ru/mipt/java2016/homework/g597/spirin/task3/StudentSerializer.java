@@ -15,7 +15,9 @@ import java.util.Date;
 public class StudentSerializer implements SerializationStrategy<Student> {
 
     private static class SingletonHolder {
-        static final StudentSerializer HOLDER_INSTANCE = new StudentSerializer();
+        static final StudentSerializer HOLDER_INSTANCE = new StudentSerializer(StringSerializer.getInstance());
+        static final StudentSerializer LEGACY_INSTANCE =
+                new StudentSerializer(StringSerializer.getInstance().legacyFormat());
     }
 
     static StudentSerializer getInstance() {
@@ -23,11 +25,15 @@ public class StudentSerializer implements SerializationStrategy<Student> {
     }
 
     private final IntegerSerializer integerSerializer = IntegerSerializer.getInstance();
-    private final StringSerializer stringSerializer = StringSerializer.getInstance();
+    private final SerializationStrategy<String> stringSerializer;
     private final DateSerializer dateSerializer = DateSerializer.getInstance();
     private final BooleanSerializer booleanSerializer = BooleanSerializer.getInstance();
     private final DoubleSerializer doubleSerializer = DoubleSerializer.getInstance();
 
+    private StudentSerializer(SerializationStrategy<String> stringSerializer) {
+        this.stringSerializer = stringSerializer;
+    }
+
     @Override
     public Student read(DataInput file) throws IOException {
         int groupID = integerSerializer.read(file);
@@ -48,4 +54,9 @@ public class StudentSerializer implements SerializationStrategy<Student> {
         booleanSerializer.write(file, object.isHasDormitory());
         doubleSerializer.write(file, object.getAverageScore());
     }
+
+    @Override
+    public SerializationStrategy<Student> legacyFormat() {
+        return SingletonHolder.LEGACY_INSTANCE;
+    }
 }
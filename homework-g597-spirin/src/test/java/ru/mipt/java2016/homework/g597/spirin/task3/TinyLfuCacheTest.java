@@ -0,0 +1,86 @@
+package ru.mipt.java2016.homework.g597.spirin.task3;
+
+import org.junit.Test;
+import ru.mipt.java2016.homework.base.task2.TinyLfuCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cache which is used by HighPerformanceKeyValueStorage
+ */
+public class TinyLfuCacheTest {
+    @Test
+    public void testBoundedByBytes() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<>(100 * 1024);
+        for (int i = 0; i < 1000; ++i) {
+            cache.put(i, "value" + i, 1024);
+            assertTrue(cache.weightedSize() <= 100 * 1024);
+        }
+        assertTrue(cache.size() <= 100);
+        assertTrue(cache.evictionCount() >= 900);
+
+        cache.put(-1, "huge", 200 * 1024);
+        assertNull(cache.get(-1));
+    }
+
+    @Test
+    public void testFrequentValuesSurviveScan() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<>(100 * 1024);
+        for (int i = 0; i < 50; ++i) {
+            cache.put(i, "hot" + i, 1024);
+        }
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 0; i < 50; ++i) {
+                assertEquals("hot" + i, cache.get(i));
+            }
+        }
+        // Hot values are still read, but much rarer than the scan writes new ones
+        for (int i = 1000; i < 11000; ++i) {
+            cache.put(i, "cold" + i, 1024);
+            if (i % 4 == 0) {
+                cache.get(i / 4 % 50);
+            }
+        }
+        int hotHits = 0;
+        for (int i = 0; i < 50; ++i) {
+            if (("hot" + i).equals(cache.get(i))) {
+                ++hotHits;
+            }
+        }
+        assertTrue("Only " + hotHits + " hot values survived", hotHits >= 45);
+    }
+
+    @Test
+    public void testRejectedCandidateEvictsNothing() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(10000);
+        cache.put("cold", "cold", 4000);
+        cache.put("hot", "hot", 4000);
+        for (int i = 0; i < 10; ++i) {
+            cache.get("hot");
+        }
+        for (int i = 0; i < 3; ++i) {
+            cache.get("candidate");
+        }
+        // The candidate is more popular than "cold", but it fits only if "hot" is evicted too
+        cache.put("candidate", "candidate", 9000);
+        assertNull(cache.get("candidate"));
+        assertEquals("cold", cache.get("cold"));
+        assertEquals("hot", cache.get("hot"));
+        assertEquals(8000, cache.weightedSize());
+    }
+
+    @Test
+    public void testInvalidate() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(1024);
+        cache.put("key", "old", 10);
+        cache.put("key", "new", 20);
+        assertEquals("new", cache.get("key"));
+        assertEquals(20, cache.weightedSize());
+        cache.invalidate("key");
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.weightedSize());
+        assertEquals(1, cache.missCount());
+    }
+}
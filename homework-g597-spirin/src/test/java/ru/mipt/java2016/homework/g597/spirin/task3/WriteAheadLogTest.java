@@ -0,0 +1,164 @@
+package ru.mipt.java2016.homework.g597.spirin.task3;
+
+import org.junit.Test;
+import ru.mipt.java2016.homework.base.task2.WriteAheadLog;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static ru.mipt.java2016.homework.tests.task2.StorageTestUtils.doInTempDirectory;
+
+/**
+ * Write-ahead log from homework-base
+ */
+public class WriteAheadLogTest {
+    private static final int HEADER_SIZE = 8;
+
+    @Test
+    public void testReplay() {
+        doInTempDirectory(path -> {
+            Path file = Paths.get(path, "storage.wal");
+            try (WriteAheadLog log = new WriteAheadLog(file, 0, null)) {
+                for (int i = 0; i < 100; ++i) {
+                    log.append(bytes("record" + i));
+                }
+            }
+            List<String> replayed = replay(file);
+            assertEquals(100, replayed.size());
+            for (int i = 0; i < 100; ++i) {
+                assertEquals("record" + i, replayed.get(i));
+            }
+        });
+    }
+
+    @Test
+    public void testTornTailIsDropped() {
+        doInTempDirectory(path -> {
+            Path file = Paths.get(path, "storage.wal");
+            writeRecords(file, "first", "second");
+            long length = Files.size(file);
+            // Crash in the middle of a record: header promises more bytes than there are
+            try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+                raw.seek(length);
+                raw.writeInt(100);
+                raw.writeInt(0);
+                raw.write(bytes("torn"));
+            }
+
+            assertEquals(Arrays.asList("first", "second"), replay(file));
+            assertEquals(length, Files.size(file));
+
+            try (WriteAheadLog log = new WriteAheadLog(file, 0, null)) {
+                log.append(bytes("third"));
+            }
+            assertEquals(Arrays.asList("first", "second", "third"), replay(file));
+        });
+    }
+
+    @Test
+    public void testCorruptedRecordIsDroppedWithTail() {
+        doInTempDirectory(path -> {
+            Path file = Paths.get(path, "storage.wal");
+            writeRecords(file, "first", "second", "third");
+            try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+                // First byte of the body of "second"
+                raw.seek(HEADER_SIZE + "first".length() + HEADER_SIZE);
+                raw.write('S');
+            }
+
+            assertEquals(Arrays.asList("first"), replay(file));
+            assertEquals(HEADER_SIZE + "first".length(), Files.size(file));
+        });
+    }
+
+    @Test
+    public void testSynchronousAppendIsDurable() {
+        doInTempDirectory(path -> {
+            Path file = Paths.get(path, "storage.wal");
+            try (WriteAheadLog log = new WriteAheadLog(file, 0, null)) {
+                log.append(bytes("record"));
+                // Already on disk when append returns
+                assertEquals(HEADER_SIZE + "record".length(), Files.size(file));
+            }
+        });
+    }
+
+    @Test
+    public void testBackgroundSync() {
+        doInTempDirectory(path -> {
+            Path file = Paths.get(path, "storage.wal");
+            try (WriteAheadLog log = new WriteAheadLog(file, 20, null)) {
+                for (int i = 0; i < 10; ++i) {
+                    log.append(bytes("record" + i));
+                }
+                long deadline = System.currentTimeMillis() + 10000;
+                while (Files.size(file) == 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertTrue("Background sync has not written the records", Files.size(file) > 0);
+                log.append(bytes("last"));
+            }
+            // close writes what the background thread has not written yet
+            List<String> replayed = replay(file);
+            assertEquals(11, replayed.size());
+            assertEquals("last", replayed.get(10));
+        });
+    }
+
+    @Test
+    public void testReset() {
+        doInTempDirectory(path -> {
+            Path file = Paths.get(path, "storage.wal");
+            try (WriteAheadLog log = new WriteAheadLog(file, 0, null)) {
+                log.append(bytes("flushed"));
+                log.reset();
+                assertEquals(0, Files.size(file));
+                log.append(bytes("after reset"));
+            }
+            assertEquals(Arrays.asList("after reset"), replay(file));
+        });
+    }
+
+    @Test
+    public void testClosedLogRejectsAppend() {
+        doInTempDirectory(path -> {
+            WriteAheadLog log = new WriteAheadLog(Paths.get(path, "storage.wal"), 20, null);
+            log.close();
+            log.close();
+            try {
+                log.append(bytes("record"));
+                fail("Closed log should not accept records");
+            } catch (IllegalStateException expected) {
+                // ok
+            }
+        });
+    }
+
+    private static void writeRecords(Path file, String... records) throws IOException {
+        try (WriteAheadLog log = new WriteAheadLog(file, 0, null)) {
+            for (String record : records) {
+                log.append(bytes(record));
+            }
+        }
+    }
+
+    private static List<String> replay(Path file) throws IOException {
+        List<String> records = new ArrayList<>();
+        new WriteAheadLog(file, 0, record -> records.add(new String(record, StandardCharsets.UTF_8))).close();
+        return records;
+    }
+
+    private static byte[] bytes(String record) {
+        return record.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -11,6 +11,9 @@ import ru.mipt.java2016.homework.tests.task2.AbstractSingleFileStorageTest;
 import ru.mipt.java2016.homework.tests.task2.StorageTestUtils;
 
 /**
+ * Грубая оценка производительности по настенным часам, включая генерацию данных.
+ * Для сравнения реализаций между собой используйте JMH-бенчмарки из модуля homework-benchmarks.
+ *
  * @author Fedor S. Lavrentyev
  * @since 02.11.16
  */